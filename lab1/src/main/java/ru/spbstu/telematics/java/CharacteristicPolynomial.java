@@ -0,0 +1,283 @@
+package ru.spbstu.telematics.java;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.Math.abs;
+
+/**
+ * Вычисление характеристического многочлена det(xI - A) за O(n^3).
+ * Матрица приводится преобразованиями подобия к верхней форме Хессенберга,
+ * после чего многочлен находится по рекуррентной формуле для
+ * хессенберговых матриц:
+ * <pre>
+ * p[0] = 1,
+ * p[k] = (x - h[k][k]) p[k-1] - sum(i = 1..k-1) h[i][k] h[i+1][i] ... h[k][k-1] p[i-1].
+ * </pre>
+ * Для целочисленных матриц есть точный вариант: многочлен считается по
+ * модулю нескольких простых чисел и восстанавливается по китайской теореме
+ * об остатках.
+ * @see Matrix#characteristicPolynomial()
+ * @see Matrix#characteristicPolynomialExact()
+ */
+final class CharacteristicPolynomial {
+    /**
+     * Порядок матрицы, начиная с которого обновления строк и столбцов
+     * выполняются параллельно.
+     */
+    static final int PARALLEL_THRESHOLD = 64;
+
+    /**
+     * Минимальное количество строк в участке параллельного цикла.
+     */
+    static private final int MIN_CHUNK = 16;
+
+    /**
+     * Наибольшее по модулю целое число, точно представимое в double.
+     */
+    static private final double MAX_EXACT = 9007199254740992.0;
+
+    private CharacteristicPolynomial() {
+    }
+
+    /**
+     * Характеристический многочлен в арифметике с плавающей точкой.
+     * @param a квадратная матрица, не изменяется.
+     * @return коэффициенты многочлена, <code>c[k]</code> -- при x^k.
+     */
+    static double[] of(double[][] a) {
+        int n = a.length;
+        double[][] h = new double[n][];
+        for (int i = 0; i < n; i++)
+            h[i] = a[i].clone();
+        toHessenberg(h);
+        double[][] p = new double[n + 1][];
+        p[0] = new double[] {1};
+        for (int k = 1; k <= n; k++) {
+            double[] pk = new double[k + 1];
+            double[] prev = p[k - 1];
+            //(x - h[k][k]) p[k-1]
+            double d = h[k - 1][k - 1];
+            for (int j = 0; j < k; j++) {
+                pk[j + 1] += prev[j];
+                pk[j] -= d * prev[j];
+            }
+            double prod = 1;
+            for (int i = k - 1; i >= 1; i--) {
+                prod *= h[i][i - 1];
+                if (prod == 0)
+                    break;
+                double coef = h[i - 1][k - 1] * prod;
+                double[] pi = p[i - 1];
+                for (int j = 0; j < i; j++)
+                    pk[j] -= coef * pi[j];
+            }
+            p[k] = pk;
+        }
+        return p[n];
+    }
+
+    /**
+     * Приводит матрицу к верхней форме Хессенберга методом Гаусса с выбором
+     * ведущего элемента. Каждый шаг -- преобразование подобия, поэтому
+     * характеристический многочлен не меняется.
+     * @param h квадратная матрица, изменяется на месте.
+     */
+    static private void toHessenberg(final double[][] h) {
+        final int n = h.length;
+        for (int k = 0; k < n - 2; k++) {
+            final int r = k + 1;
+            int p = r;
+            for (int i = r + 1; i < n; i++)
+                if (abs(h[i][k]) > abs(h[p][k]))
+                    p = i;
+            if (h[p][k] == 0)
+                continue;
+            if (p != r) {
+                double[] t = h[p];
+                h[p] = h[r];
+                h[r] = t;
+                for (double[] row : h) {
+                    double v = row[p];
+                    row[p] = row[r];
+                    row[r] = v;
+                }
+            }
+            final int col = k;
+            final double[] m = new double[n];
+            final double pivot = h[r][k];
+            for (int i = r + 1; i < n; i++)
+                m[i] = h[i][k] / pivot;
+            //строки: h[i] -= m[i] * h[r]
+            ParallelLoop.Body rows = new ParallelLoop.Body() {
+                public void run(int from, int to) {
+                    double[] rowR = h[r];
+                    for (int i = from; i < to; i++) {
+                        if (m[i] == 0)
+                            continue;
+                        double[] rowI = h[i];
+                        double mi = m[i];
+                        rowI[col] = 0;
+                        for (int j = col + 1; j < n; j++)
+                            rowI[j] -= mi * rowR[j];
+                    }
+                }
+            };
+            //столбцы: h[.][r] += sum(m[i] * h[.][i])
+            ParallelLoop.Body cols = new ParallelLoop.Body() {
+                public void run(int from, int to) {
+                    for (int i = from; i < to; i++) {
+                        double[] row = h[i];
+                        double s = 0;
+                        for (int j = r + 1; j < n; j++)
+                            s += m[j] * row[j];
+                        row[r] += s;
+                    }
+                }
+            };
+            if (n >= PARALLEL_THRESHOLD) {
+                ParallelLoop.forRange(r + 1, n, MIN_CHUNK, rows);
+                ParallelLoop.forRange(0, n, MIN_CHUNK, cols);
+            }
+            else {
+                rows.run(r + 1, n);
+                cols.run(0, n);
+            }
+        }
+    }
+
+    /**
+     * Точный характеристический многочлен целочисленной матрицы.
+     * Коэффициенты ограничены по модулю (1 + ceil(sqrt(n)) B)^n, где B --
+     * наибольший по модулю элемент (оценка Адамара для главных миноров),
+     * поэтому берется столько простых чисел, чтобы их произведение было
+     * больше удвоенной оценки.
+     * @param a квадратная матрица с целыми элементами, не изменяется.
+     * @return коэффициенты многочлена, <code>c[k]</code> -- при x^k.
+     * @throws Exception если элементы матрицы не целые.
+     */
+    static BigInteger[] exact(double[][] a) throws Exception {
+        final int n = a.length;
+        final long[][] m = new long[n][n];
+        long maxAbs = 0;
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < n; j++) {
+                double v = a[i][j];
+                if (v != Math.rint(v) || abs(v) > MAX_EXACT)
+                    throw new Exception("Matrix is not integral!");
+                m[i][j] = (long) v;
+                maxAbs = Math.max(maxAbs, abs(m[i][j]));
+            }
+        BigInteger bound = BigInteger.valueOf((long) Math.ceil(Math.sqrt(n)))
+                .multiply(BigInteger.valueOf(maxAbs)).add(BigInteger.ONE).pow(n).shiftLeft(1);
+        List<Long> primeList = new ArrayList<Long>();
+        BigInteger product = BigInteger.ONE;
+        BigInteger p = BigInteger.ONE.shiftLeft(30);
+        while (product.compareTo(bound) <= 0) {
+            p = p.nextProbablePrime();
+            primeList.add(p.longValue());
+            product = product.multiply(p);
+        }
+        final long[] primes = new long[primeList.size()];
+        for (int i = 0; i < primes.length; i++)
+            primes[i] = primeList.get(i);
+        final long[][] residues = new long[primes.length][];
+        ParallelLoop.Body body = new ParallelLoop.Body() {
+            public void run(int from, int to) {
+                for (int t = from; t < to; t++)
+                    residues[t] = modular(m, primes[t]);
+            }
+        };
+        if (n >= PARALLEL_THRESHOLD)
+            ParallelLoop.forRange(0, primes.length, 1, body);
+        else
+            body.run(0, primes.length);
+        //восстановление по китайской теореме об остатках
+        BigInteger[] res = new BigInteger[n + 1];
+        BigInteger modulus = BigInteger.ONE;
+        for (int k = 0; k <= n; k++)
+            res[k] = BigInteger.ZERO;
+        for (int t = 0; t < primes.length; t++) {
+            BigInteger q = BigInteger.valueOf(primes[t]);
+            BigInteger inv = modulus.mod(q).modInverse(q);
+            for (int k = 0; k <= n; k++) {
+                BigInteger delta = BigInteger.valueOf(residues[t][k]).subtract(res[k]).multiply(inv).mod(q);
+                res[k] = res[k].add(modulus.multiply(delta));
+            }
+            modulus = modulus.multiply(q);
+        }
+        BigInteger half = modulus.shiftRight(1);
+        for (int k = 0; k <= n; k++)
+            if (res[k].compareTo(half) > 0)
+                res[k] = res[k].subtract(modulus);
+        return res;
+    }
+
+    /**
+     * Характеристический многочлен по модулю простого числа.
+     * @param a квадратная целочисленная матрица, не изменяется.
+     * @param p простое число меньше 2^31.
+     * @return коэффициенты многочлена по модулю <code>p</code>.
+     */
+    static private long[] modular(long[][] a, long p) {
+        int n = a.length;
+        long[][] h = new long[n][n];
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < n; j++)
+                h[i][j] = ((a[i][j] % p) + p) % p;
+        for (int k = 0; k < n - 2; k++) {
+            int r = k + 1;
+            int piv = r;
+            while (piv < n && h[piv][k] == 0)
+                piv++;
+            if (piv == n)
+                continue;
+            if (piv != r) {
+                long[] t = h[piv];
+                h[piv] = h[r];
+                h[r] = t;
+                for (long[] row : h) {
+                    long v = row[piv];
+                    row[piv] = row[r];
+                    row[r] = v;
+                }
+            }
+            long inv = BigInteger.valueOf(h[r][k]).modInverse(BigInteger.valueOf(p)).longValue();
+            for (int i = r + 1; i < n; i++) {
+                long mi = h[i][k] * inv % p;
+                if (mi == 0)
+                    continue;
+                long[] rowI = h[i];
+                long[] rowR = h[r];
+                for (int j = k; j < n; j++)
+                    rowI[j] = (rowI[j] + (p - mi) * rowR[j]) % p;
+                for (long[] row : h)
+                    row[r] = (row[r] + mi * row[i]) % p;
+            }
+        }
+        long[][] poly = new long[n + 1][];
+        poly[0] = new long[] {1};
+        for (int k = 1; k <= n; k++) {
+            long[] pk = new long[k + 1];
+            long[] prev = poly[k - 1];
+            long d = (p - h[k - 1][k - 1]) % p;
+            for (int j = 0; j < k; j++) {
+                pk[j + 1] = (pk[j + 1] + prev[j]) % p;
+                pk[j] = (pk[j] + d * prev[j]) % p;
+            }
+            long prod = 1;
+            for (int i = k - 1; i >= 1; i--) {
+                prod = prod * h[i][i - 1] % p;
+                if (prod == 0)
+                    break;
+                long coef = (p - h[i - 1][k - 1] * prod % p) % p;
+                long[] pi = poly[i - 1];
+                for (int j = 0; j < i; j++)
+                    pk[j] = (pk[j] + coef * pi[j]) % p;
+            }
+            poly[k] = pk;
+        }
+        return poly[n];
+    }
+}
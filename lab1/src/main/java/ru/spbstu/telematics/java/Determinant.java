@@ -1,26 +1,53 @@
 package ru.spbstu.telematics.java;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
 
 /**
  * Выполнимый класс для вычисления определителя матрицы. Матрицу считывает из
- * файл.
+ * файл. С ключом <code>--remote</code> вычисление выполняет
+ * {@link DeterminantServer}, если он запущен.
  * @see MatrixFileReader
  * @see Matrix
+ * @see DeterminantServer
  */
 public class Determinant
 {
     /**
-     * Вычисление определителя матрицы из файла.
-     * @param args относительный путь к файлу с матрицей.
+     * Вычисление определителя матрицы из файла. Файлы с расширением
+     * <code>.mtx</code> считываются в формате MatrixMarket. <br>
+     * С ключом <code>--remote</code> запрос сначала отправляется серверу на
+     * порт {@link DeterminantServer#DEFAULT_PORT} и печатается только
+     * определитель; если сервер не запущен или не ответил за
+     * {@link DeterminantClient#READ_TIMEOUT}, определитель вычисляется в этом
+     * процессе. С ключом <code>--server</code> запускает сервер, остальные
+     * аргументы передаются ему.
+     * @param args относительный путь к файлу с матрицей,
+     *             <code>--remote файл</code> или
+     *             <code>--server [порт] [файл кэша]</code>.
      * @see MatrixFileReader
+     * @see MatrixMarketReader
      * @see Matrix
+     * @see DeterminantServer#main(String[])
      */
     public static void main( String[] args ) {
         if (args.length == 0) {
             System.out.println("Missing argument: expected path to file!");
             return;
         }
+        if (args[0].equals("--server")) {
+            DeterminantServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        boolean remote = args[0].equals("--remote");
+        if (remote)
+            args = Arrays.copyOfRange(args, 1, args.length);
+        if (args.length == 0) {
+            System.out.println("Missing argument: expected path to file!");
+            return;
+        }
         if (args.length > 1) {
             System.out.println("Too much arguments!");
             return;
@@ -34,10 +61,14 @@ public class Determinant
             System.out.println("Error: '" + f.getAbsolutePath() + "' is supposed to be a file!");
             return;
         }
-        MatrixFileReader fr = new MatrixFileReader(f);
+        if (remote && computeRemote(f))
+            return;
         Matrix m;
         try {
-            m = fr.read();
+            if (f.getName().endsWith(".mtx"))
+                m = new MatrixMarketReader(f).read();
+            else
+                m = new MatrixFileReader(f).read();
         }
         catch (Exception e) {
             System.out.println("Error: Problem with file reading: '" + e.getMessage() + "'.");
@@ -53,4 +84,42 @@ public class Determinant
             System.out.println("Cannot evaluate determinant: Matrix is not square!");
         }
     }
+
+    /**
+     * Отправляет файл на вычисление серверу.
+     * @param f файл с матрицей.
+     * @return <code>true</code>, если сервер ответил, <code>false</code>,
+     * если сервер не запущен или не ответил вовремя.
+     */
+    private static boolean computeRemote(File f) {
+        DeterminantClient client;
+        try {
+            client = new DeterminantClient(DeterminantServer.DEFAULT_PORT);
+        }
+        catch (IOException e) {
+            return false;
+        }
+        try {
+            double det = client.determinant(f.getAbsolutePath());
+            System.out.println("Determinant:");
+            System.out.println(det);
+        }
+        catch (SocketTimeoutException e) {
+            return false;
+        }
+        catch (IOException e) {
+            System.out.println("Error: Connection to server failed: '" + e.getMessage() + "'.");
+        }
+        catch (Exception e) {
+            System.out.println("Error: '" + e.getMessage() + "'.");
+        }
+        finally {
+            try {
+                client.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,327 @@
+package ru.spbstu.telematics.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Кэш определителей, адресуемый содержимым матрицы. Ключом служит
+ * 128-битный хэш {@link MatrixHash}, значением -- определитель и, по запросу,
+ * LU-разложение. Записи вытесняются в порядке LRU при превышении ограничения
+ * на количество записей или на оценку занимаемой памяти. <br>
+ * Кэш можно связать с файлом: записи загружаются из него в конструкторе и
+ * сохраняются методом {@link DeterminantCache#save()}. Разложения на диск
+ * не сохраняются. <br>
+ * Все методы потокобезопасны; сами вычисления выполняются вне блокировки.
+ * @see MatrixHash
+ * @see LUDecomposition
+ */
+public class DeterminantCache {
+    /**
+     * Сигнатура файла кэша.
+     */
+    static private final int FILE_MAGIC = 0x44455443;
+
+    /**
+     * Оценка памяти под запись без разложения, в байтах.
+     */
+    static private final long ENTRY_BYTES = 96;
+
+    /**
+     * Запись кэша.
+     */
+    static private class Entry {
+        /**
+         * Определитель матрицы.
+         */
+        double determinant;
+
+        /**
+         * LU-разложение или <code>null</code>, если оно не запрашивалось.
+         */
+        LUDecomposition lu;
+
+        Entry(double determinant, LUDecomposition lu) {
+            this.determinant = determinant;
+            this.lu = lu;
+        }
+
+        /**
+         * @return оценка занимаемой записью памяти в байтах.
+         */
+        long bytes() {
+            if (lu == null)
+                return ENTRY_BYTES;
+            int n = lu.size();
+            return ENTRY_BYTES + 16 + 4L * n + n * (16 + 8L * n);
+        }
+    }
+
+    /**
+     * Записи в порядке обращения, первая -- давно не использовавшаяся.
+     */
+    private final LinkedHashMap<MatrixHash, Entry> entries =
+            new LinkedHashMap<MatrixHash, Entry>(16, 0.75f, true);
+
+    /**
+     * Максимальное количество записей.
+     */
+    private final int maxEntries;
+
+    /**
+     * Максимальная оценка занимаемой памяти в байтах.
+     */
+    private final long maxBytes;
+
+    /**
+     * Файл для сохранения кэша или <code>null</code>.
+     */
+    private final File store;
+
+    /**
+     * Текущая оценка занимаемой памяти в байтах.
+     */
+    private long bytes;
+
+    /**
+     * Количество попаданий.
+     */
+    private long hits;
+
+    /**
+     * Количество промахов.
+     */
+    private long misses;
+
+    /**
+     * Количество вытесненных записей.
+     */
+    private long evictions;
+
+    /**
+     * Создает кэш в памяти.
+     * @param maxEntries максимальное количество записей.
+     * @param maxBytes ограничение на оценку занимаемой памяти в байтах.
+     * @see DeterminantCache#DeterminantCache(int, long, File)
+     */
+    public DeterminantCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.store = null;
+    }
+
+    /**
+     * Создает кэш, связанный с файлом. Если файл существует и не пуст,
+     * записи загружаются из него.
+     * @param maxEntries максимальное количество записей.
+     * @param maxBytes ограничение на оценку занимаемой памяти в байтах.
+     * @param store файл кэша.
+     * @throws IOException ошибка чтения или неверный формат файла.
+     * @see DeterminantCache#save()
+     */
+    public DeterminantCache(int maxEntries, long maxBytes, File store) throws IOException {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.store = store;
+        if (store.isFile() && store.length() > 0)
+            load();
+    }
+
+    /**
+     * Определитель матрицы. При промахе вычисляется методом
+     * {@link Matrix#determinant()} и запоминается.
+     * @param m квадратная матрица.
+     * @return определитель матрицы.
+     * @throws Exception если матрица не квадратная.
+     */
+    public double determinant(Matrix m) throws Exception {
+        long start = MatrixStats.start();
+        MatrixHash key = MatrixHash.of(m);
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null) {
+                hits++;
+                MatrixStats.cache(true);
+                MatrixStats.determinant(MatrixStats.Strategy.CACHED, start, 0);
+                return e.determinant;
+            }
+            misses++;
+        }
+        MatrixStats.cache(false);
+        double det = m.determinant();
+        synchronized (this) {
+            if (!entries.containsKey(key))
+                put(key, new Entry(det, null));
+        }
+        return det;
+    }
+
+    /**
+     * LU-разложение матрицы. При промахе разложение вычисляется и
+     * запоминается вместе с определителем.
+     * @param m квадратная матрица.
+     * @return LU-разложение матрицы.
+     * @throws Exception если матрица не квадратная.
+     */
+    public LUDecomposition factorization(Matrix m) throws Exception {
+        MatrixHash key = MatrixHash.of(m);
+        Entry e;
+        synchronized (this) {
+            e = entries.get(key);
+            if (e != null && e.lu != null) {
+                hits++;
+                MatrixStats.cache(true);
+                return e.lu;
+            }
+            misses++;
+        }
+        MatrixStats.cache(false);
+        LUDecomposition lu = new LUDecomposition(m);
+        synchronized (this) {
+            e = entries.get(key);
+            if (e == null) {
+                put(key, new Entry(lu.determinant(), lu));
+            }
+            else if (e.lu == null) {
+                bytes -= e.bytes();
+                e.lu = lu;
+                bytes += e.bytes();
+                evict();
+            }
+        }
+        return lu;
+    }
+
+    /**
+     * Добавляет запись и вытесняет лишние.
+     * @param key хэш матрицы.
+     * @param e запись.
+     */
+    private void put(MatrixHash key, Entry e) {
+        entries.put(key, e);
+        bytes += e.bytes();
+        evict();
+    }
+
+    /**
+     * Вытесняет давно не использовавшиеся записи, пока кэш превышает
+     * ограничения. Последняя добавленная запись не вытесняется.
+     */
+    private void evict() {
+        Iterator<Map.Entry<MatrixHash, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > 1 && (entries.size() > maxEntries || bytes > maxBytes)) {
+            bytes -= it.next().getValue().bytes();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @return количество записей в кэше.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return оценка занимаемой кэшем памяти в байтах.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return количество попаданий.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return количество промахов.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return количество вытесненных записей.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Очищает кэш. Статистика не сбрасывается.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Загружает записи из файла кэша.
+     * @throws IOException ошибка чтения или неверный формат файла.
+     */
+    private synchronized void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(store)));
+        try {
+            if (in.readInt() != FILE_MAGIC)
+                throw new IOException("Invalid format of cache file '" + store + "'!");
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                MatrixHash key = new MatrixHash(in.readLong(), in.readLong());
+                put(key, new Entry(in.readDouble(), null));
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Сохраняет определители в файл кэша, от давно не использовавшихся к
+     * недавним, чтобы при загрузке сохранился порядок вытеснения.
+     * Ничего не делает, если кэш не связан с файлом.
+     * @throws IOException ошибка записи.
+     */
+    public synchronized void save() throws IOException {
+        if (store == null)
+            return;
+        File tmp = new File(store.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(entries.size());
+            for (Map.Entry<MatrixHash, Entry> e : entries.entrySet()) {
+                out.writeLong(e.getKey().high);
+                out.writeLong(e.getKey().low);
+                out.writeDouble(e.getValue().determinant);
+            }
+        }
+        finally {
+            out.close();
+        }
+        if (!tmp.renameTo(store)) {
+            if (!store.delete() || !tmp.renameTo(store))
+                throw new IOException("Cannot write cache file '" + store + "'!");
+        }
+    }
+
+    /**
+     * @return статистика кэша.
+     */
+    @Override
+    public synchronized String toString() {
+        return "entries: " + entries.size() + ", bytes: " + bytes + ", hits: " + hits
+                + ", misses: " + misses + ", evictions: " + evictions;
+    }
+}
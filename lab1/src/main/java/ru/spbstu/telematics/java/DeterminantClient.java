@@ -0,0 +1,140 @@
+package ru.spbstu.telematics.java;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Клиент для {@link DeterminantServer}. Одно соединение можно использовать
+ * для нескольких запросов.
+ * @see DeterminantServer
+ */
+public class DeterminantClient implements Closeable {
+    /**
+     * Время ожидания соединения с сервером, в миллисекундах.
+     */
+    static final int CONNECT_TIMEOUT = 200;
+
+    /**
+     * Время ожидания ответа сервера по умолчанию, в миллисекундах.
+     */
+    static final int READ_TIMEOUT = 30000;
+
+    /**
+     * Сокет соединения.
+     */
+    private final Socket socket;
+
+    /**
+     * Поток ответов сервера.
+     */
+    private final BufferedReader in;
+
+    /**
+     * Поток запросов к серверу.
+     */
+    private final Writer out;
+
+    /**
+     * Соединяется с сервером на loopback-интерфейсе, ответ ждет не дольше
+     * {@link DeterminantClient#READ_TIMEOUT}.
+     * @param port номер порта сервера.
+     * @throws IOException сервер недоступен.
+     */
+    public DeterminantClient(int port) throws IOException {
+        this(port, READ_TIMEOUT);
+    }
+
+    /**
+     * Соединяется с сервером на loopback-интерфейсе.
+     * @param port номер порта сервера.
+     * @param readTimeout время ожидания ответа в миллисекундах, 0 -- без ограничения.
+     * @throws IOException сервер недоступен.
+     */
+    public DeterminantClient(int port, int readTimeout) throws IOException {
+        socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(readTimeout);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Отправляет запрос и дожидается ответа.
+     * @param request строка запроса без перевода строки.
+     * @return результат из ответа <code>OK</code>.
+     * @throws java.net.SocketTimeoutException сервер не ответил вовремя.
+     * @throws IOException ошибка соединения.
+     * @throws Exception сервер вернул ошибку.
+     */
+    private String request(String request) throws Exception {
+        out.write(request);
+        out.write('\n');
+        out.flush();
+        String response = in.readLine();
+        if (response == null)
+            throw new IOException("Server closed connection!");
+        if (response.startsWith("OK "))
+            return response.substring(3);
+        if (response.startsWith("ERR "))
+            throw new Exception(response.substring(4));
+        throw new IOException("Invalid response '" + response + "'!");
+    }
+
+    /**
+     * Определитель матрицы из файла. Файл читает сервер, поэтому путь
+     * должен быть абсолютным.
+     * @param path абсолютный путь к файлу с матрицей.
+     * @return определитель матрицы.
+     * @throws IOException ошибка соединения.
+     * @throws Exception сервер не смог вычислить определитель.
+     */
+    public double determinant(String path) throws Exception {
+        return Double.parseDouble(request("FILE " + path));
+    }
+
+    /**
+     * Определитель матрицы, передаваемой серверу целиком.
+     * @param m матрица.
+     * @return определитель матрицы.
+     * @throws IOException ошибка соединения.
+     * @throws Exception сервер не смог вычислить определитель.
+     */
+    public double determinant(Matrix m) throws Exception {
+        double[][] a = m.getMatrix();
+        StringBuilder req = new StringBuilder("MATRIX ");
+        req.append(a.length).append(' ').append(a.length == 0 ? 0 : a[0].length);
+        for (double[] row : a)
+            for (double v : row)
+                req.append(' ').append(v);
+        return Double.parseDouble(request(req.toString()));
+    }
+
+    /**
+     * @return статистика кэша сервера.
+     * @throws Exception ошибка соединения.
+     */
+    public String stats() throws Exception {
+        return request("STATS");
+    }
+
+    /**
+     * Закрывает соединение.
+     * @throws IOException ошибка сокета.
+     */
+    public void close() throws IOException {
+        socket.close();
+    }
+}
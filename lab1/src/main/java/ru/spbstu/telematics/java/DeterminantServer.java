@@ -0,0 +1,333 @@
+package ru.spbstu.telematics.java;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Резидентный сервер для вычисления определителей. Работает в одной JVM
+ * долгое время, поэтому не тратит время на запуск и прогрев JIT при каждом
+ * вызове, а результаты накапливаются в общем {@link DeterminantCache}. <br>
+ * Принимает соединения только на loopback-интерфейсе. Протокол текстовый,
+ * одна строка -- один запрос:
+ * <ul>
+ *     <li><code>FILE &lt;путь&gt;</code> -- определитель матрицы из файла;</li>
+ *     <li><code>MATRIX &lt;m&gt; &lt;n&gt; &lt;элементы...&gt;</code> -- определитель
+ *     матрицы, переданной в строке;</li>
+ *     <li><code>STATS</code> -- статистика кэша.</li>
+ * </ul>
+ * Ответ -- одна строка <code>OK &lt;результат&gt;</code> или
+ * <code>ERR &lt;сообщение&gt;</code>. <br>
+ * Количество одновременных соединений и длина запроса ограничены: лишнее
+ * соединение и слишком длинный запрос получают ответ <code>ERR</code>, после
+ * которого соединение закрывается.
+ * @see DeterminantClient
+ */
+public class DeterminantServer {
+    /**
+     * Порт по умолчанию.
+     */
+    public static final int DEFAULT_PORT = 9753;
+
+    /**
+     * Наибольшее количество одновременных соединений по умолчанию.
+     */
+    static final int MAX_CONNECTIONS = 16;
+
+    /**
+     * Наибольшая длина строки запроса в символах по умолчанию.
+     */
+    static final int MAX_REQUEST_LENGTH = 1 << 22;
+
+    /**
+     * Серверный сокет.
+     */
+    private final ServerSocket server;
+
+    /**
+     * Общий кэш определителей.
+     */
+    private final DeterminantCache cache;
+
+    /**
+     * Потоки для обработки соединений.
+     */
+    private final ThreadPoolExecutor pool;
+
+    /**
+     * Наибольшая длина строки запроса в символах.
+     */
+    private final int maxRequestLength;
+
+    /**
+     * Конструктор с ограничениями по умолчанию, открывает порт на
+     * loopback-интерфейсе.
+     * @param port номер порта, 0 -- любой свободный.
+     * @param cache кэш определителей.
+     * @throws IOException не удалось открыть порт.
+     */
+    public DeterminantServer(int port, DeterminantCache cache) throws IOException {
+        this(port, cache, MAX_CONNECTIONS, MAX_REQUEST_LENGTH);
+    }
+
+    /**
+     * Конструктор, открывает порт на loopback-интерфейсе.
+     * @param port номер порта, 0 -- любой свободный.
+     * @param cache кэш определителей.
+     * @param maxConnections наибольшее количество одновременных соединений.
+     * @param maxRequestLength наибольшая длина строки запроса в символах.
+     * @throws IOException не удалось открыть порт.
+     * @throws IllegalArgumentException если ограничения меньше 1.
+     */
+    public DeterminantServer(int port, DeterminantCache cache, int maxConnections, int maxRequestLength)
+            throws IOException {
+        if (maxConnections < 1 || maxRequestLength < 1)
+            throw new IllegalArgumentException("Limits must be positive!");
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.cache = cache;
+        this.maxRequestLength = maxRequestLength;
+        //без очереди: соединение сверх ограничения сразу отклоняется
+        this.pool = new ThreadPoolExecutor(maxConnections, maxConnections, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>());
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return номер порта, на котором работает сервер.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Прогревает вычислительные методы на случайных матрицах, чтобы первые
+     * запросы не выполнялись в интерпретаторе.
+     */
+    public void warmUp() {
+        Random r = new Random(0);
+        for (int k = 0; k < 2000; k++) {
+            int n = 2 + k % 6;
+            double[][] a = new double[n][n];
+            for (double[] row : a)
+                for (int j = 0; j < n; j++)
+                    row[j] = r.nextInt(10) - 5;
+            new Matrix(a).determinantSafe();
+            MatrixHash.of(new Matrix(a));
+        }
+    }
+
+    /**
+     * Принимает соединения, пока сервер не будет закрыт методом
+     * {@link DeterminantServer#close()}.
+     * @throws IOException ошибка сокета.
+     */
+    public void serve() throws IOException {
+        while (!server.isClosed()) {
+            final Socket s;
+            try {
+                s = server.accept();
+            }
+            catch (SocketException e) {
+                if (server.isClosed())
+                    return;
+                throw e;
+            }
+            try {
+                pool.execute(new Runnable() {
+                    public void run() {
+                        serveConnection(s);
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                reject(s, "Too many connections!");
+            }
+        }
+    }
+
+    /**
+     * Отвечает ошибкой и закрывает соединение.
+     * @param s сокет соединения.
+     * @param message сообщение об ошибке.
+     */
+    private static void reject(Socket s, String message) {
+        try {
+            Writer out = new OutputStreamWriter(s.getOutputStream(), "UTF-8");
+            out.write("ERR " + message + "\n");
+            out.flush();
+        }
+        catch (IOException ignored) {
+        }
+        finally {
+            try {
+                s.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Читает строку запроса не длиннее {@link DeterminantServer#maxRequestLength}.
+     * @param in поток запросов.
+     * @return строка без перевода строки или <code>null</code>, если поток кончился.
+     * @throws ProtocolException строка слишком длинная.
+     * @throws IOException ошибка соединения.
+     */
+    private String readRequest(BufferedReader in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (line.length() == maxRequestLength)
+                throw new ProtocolException("Request is longer than " + maxRequestLength + " characters!");
+            line.append((char) c);
+        }
+        if (c == -1 && line.length() == 0)
+            return null;
+        int end = line.length();
+        if (end > 0 && line.charAt(end - 1) == '\r')
+            line.setLength(end - 1);
+        return line.toString();
+    }
+
+    /**
+     * Обрабатывает запросы одного соединения до его закрытия клиентом.
+     * @param s сокет соединения.
+     */
+    private void serveConnection(Socket s) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+            Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), "UTF-8"));
+            String line;
+            try {
+                while ((line = readRequest(in)) != null) {
+                    out.write(handle(line));
+                    out.write('\n');
+                    out.flush();
+                }
+            }
+            catch (ProtocolException e) {
+                //остаток строки не прочитан, соединение закрывается
+                out.write("ERR " + e.getMessage() + "\n");
+                out.flush();
+            }
+        }
+        catch (IOException ignored) {
+            //клиент отключился
+        }
+        finally {
+            try {
+                s.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Выполняет один запрос.
+     * @param request строка запроса.
+     * @return строка ответа.
+     */
+    String handle(String request) {
+        String line = request.trim();
+        int space = line.indexOf(' ');
+        String command = (space < 0) ? line : line.substring(0, space);
+        String arg = (space < 0) ? "" : line.substring(space + 1).trim();
+        try {
+            if (command.equals("FILE")) {
+                File f = new File(arg);
+                if (!f.isFile())
+                    return "ERR File '" + f.getAbsolutePath() + "' doesn't exist!";
+                Matrix m = f.getName().endsWith(".mtx") ? new MatrixMarketReader(f).read()
+                        : new MatrixFileReader(f).read();
+                return "OK " + cache.determinant(m);
+            }
+            if (command.equals("MATRIX"))
+                return "OK " + cache.determinant(MatrixFileReader.parse(arg));
+            if (command.equals("STATS"))
+                return "OK " + cache;
+            return "ERR Unknown command '" + command + "'!";
+        }
+        catch (Exception e) {
+            return "ERR " + e.getMessage();
+        }
+    }
+
+    /**
+     * Закрывает сервер. Соединения, которые уже обрабатываются, завершаются.
+     * Если кэш связан с файлом, он сохраняется.
+     */
+    public void close() {
+        try {
+            server.close();
+        }
+        catch (IOException ignored) {
+        }
+        pool.shutdown();
+        try {
+            cache.save();
+        }
+        catch (IOException e) {
+            System.out.println("Error: Cannot save cache: '" + e.getMessage() + "'.");
+        }
+    }
+
+    /**
+     * Запуск сервера.
+     * @param args необязательные номер порта и путь к файлу кэша.
+     */
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        DeterminantCache cache;
+        try {
+            if (args.length > 0)
+                port = Integer.parseInt(args[0]);
+            cache = (args.length > 1) ? new DeterminantCache(100000, 256L << 20, new File(args[1]))
+                    : new DeterminantCache(100000, 256L << 20);
+        }
+        catch (NumberFormatException e) {
+            System.out.println("Error: Invalid port '" + args[0] + "'!");
+            return;
+        }
+        catch (IOException e) {
+            System.out.println("Error: Cannot read cache: '" + e.getMessage() + "'.");
+            return;
+        }
+        final DeterminantServer s;
+        try {
+            s = new DeterminantServer(port, cache);
+        }
+        catch (IOException e) {
+            System.out.println("Error: Cannot open port " + port + ": '" + e.getMessage() + "'.");
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                s.close();
+            }
+        }));
+        s.warmUp();
+        System.out.println("Determinant server is listening on port " + s.getPort());
+        try {
+            s.serve();
+        }
+        catch (IOException e) {
+            System.out.println("Error: '" + e.getMessage() + "'.");
+        }
+    }
+}
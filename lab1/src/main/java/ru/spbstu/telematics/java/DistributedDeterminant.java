@@ -0,0 +1,395 @@
+package ru.spbstu.telematics.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.Math.abs;
+
+/**
+ * Координатор распределенного вычисления определителя блочным
+ * LU-разложением. Матрица делится на блоки <code>nb x nb</code>, которые
+ * распределяются по решетке рабочих процессов <code>P x Q</code>
+ * блочно-циклически: блок (I, J) хранится у процесса
+ * <code>(I mod P) * Q + (J mod Q)</code>. <br>
+ * Для каждой панели (блочного столбца) координатор собирает ее у рабочих
+ * процессов, раскладывает с выбором ведущего элемента по столбцу, вычисляет
+ * строки U панели и рассылает рабочим множители L и U; обновление
+ * оставшейся части матрицы рабочие выполняют одновременно. Строки физически
+ * не переставляются: перестановка запоминается, и ее знак учитывается в
+ * определителе, который равен произведению ведущих элементов всех панелей.
+ * @see DistributedWorker
+ */
+public class DistributedDeterminant implements Closeable {
+    /**
+     * Соединение с рабочим процессом.
+     */
+    static private class Connection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Connection(InetSocketAddress address) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(address);
+                socket.setTcpNoDelay(true);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            }
+            catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Дожидается ответа на команду.
+         * @throws IOException ошибка соединения или рабочий процесс вернул ошибку.
+         */
+        void expectOk() throws IOException {
+            byte status = in.readByte();
+            if (status != DistributedWorker.OK)
+                throw new IOException("Worker error: " + in.readUTF());
+        }
+    }
+
+    /**
+     * Соединения с рабочими процессами по строкам решетки.
+     */
+    private final Connection[] workers;
+
+    /**
+     * Количество строк решетки процессов.
+     */
+    private final int gridRows;
+
+    /**
+     * Количество столбцов решетки процессов.
+     */
+    private final int gridCols;
+
+    /**
+     * Размер блока.
+     */
+    private final int nb;
+
+    /**
+     * Соединяется с рабочими процессами.
+     * @param addresses адреса рабочих процессов, решетка заполняется по строкам.
+     * @param gridRows количество строк решетки, должно делить количество процессов.
+     * @param blockSize размер блока.
+     * @throws IOException не удалось соединиться с рабочим процессом.
+     * @throws IllegalArgumentException неверные размеры решетки или блока.
+     */
+    public DistributedDeterminant(List<InetSocketAddress> addresses, int gridRows, int blockSize)
+            throws IOException {
+        if (gridRows < 1 || addresses.isEmpty() || addresses.size() % gridRows != 0)
+            throw new IllegalArgumentException("Cannot arrange " + addresses.size()
+                    + " workers into " + gridRows + " grid rows!");
+        if (blockSize < 1)
+            throw new IllegalArgumentException("Block size must be positive!");
+        this.gridRows = gridRows;
+        this.gridCols = addresses.size() / gridRows;
+        this.nb = blockSize;
+        this.workers = new Connection[addresses.size()];
+        try {
+            for (int i = 0; i < workers.length; i++)
+                workers[i] = new Connection(addresses.get(i));
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Рабочий процесс, хранящий блок.
+     * @param bi номер блочной строки.
+     * @param bj номер блочного столбца.
+     * @return соединение с рабочим процессом.
+     */
+    private Connection owner(int bi, int bj) {
+        return workers[(bi % gridRows) * gridCols + (bj % gridCols)];
+    }
+
+    /**
+     * Вычисляет определитель матрицы.
+     * @param m квадратная матрица.
+     * @return определитель матрицы.
+     * @throws Exception если матрица не квадратная или произошла ошибка связи.
+     */
+    public double determinant(Matrix m) throws Exception {
+        double[][] a = m.getMatrix();
+        int n = a.length;
+        if (n != a[0].length)
+            throw new Exception("Matrix is not square!");
+        long start = MatrixStats.start();
+        long ops = 0;
+        int blocks = (n + nb - 1) / nb;
+        //рассылка блоков
+        for (Connection c : workers) {
+            c.out.writeByte(DistributedWorker.INIT);
+            c.out.writeInt(n);
+            c.out.writeInt(nb);
+        }
+        for (int bi = 0; bi < blocks; bi++)
+            for (int bj = 0; bj < blocks; bj++) {
+                Connection c = owner(bi, bj);
+                int rows = Math.min(nb, n - bi * nb);
+                int cols = Math.min(nb, n - bj * nb);
+                c.out.writeByte(DistributedWorker.PUT);
+                c.out.writeInt(bi);
+                c.out.writeInt(bj);
+                c.out.writeInt(rows);
+                c.out.writeInt(cols);
+                for (int i = 0; i < rows; i++)
+                    for (int j = 0; j < cols; j++)
+                        c.out.writeDouble(a[bi * nb + i][bj * nb + j]);
+            }
+        flushAll();
+        for (Connection c : workers)
+            c.expectOk();
+        for (int bi = 0; bi < blocks; bi++)
+            for (int bj = 0; bj < blocks; bj++)
+                owner(bi, bj).expectOk();
+
+        boolean[] active = new boolean[n];
+        Arrays.fill(active, true);
+        int[] perm = new int[n];
+        double det = 1;
+        for (int k = 0; k < blocks; k++) {
+            int c0 = k * nb;
+            int w = Math.min(nb, n - c0);
+            //сбор панели
+            for (int bi = 0; bi < blocks; bi++) {
+                Connection c = owner(bi, k);
+                c.out.writeByte(DistributedWorker.GET_BLOCK);
+                c.out.writeInt(bi);
+                c.out.writeInt(k);
+            }
+            flushAll();
+            double[][] panel = new double[n][];
+            for (int bi = 0; bi < blocks; bi++) {
+                Connection c = owner(bi, k);
+                c.expectOk();
+                int rows = c.in.readInt();
+                int cols = c.in.readInt();
+                for (int i = 0; i < rows; i++) {
+                    double[] row = new double[cols];
+                    for (int j = 0; j < cols; j++)
+                        row[j] = c.in.readDouble();
+                    panel[bi * nb + i] = row;
+                }
+            }
+            //разложение панели
+            double[][] l = new double[n][w];
+            int[] piv = new int[w];
+            for (int t = 0; t < w; t++) {
+                int p = -1;
+                for (int r = 0; r < n; r++)
+                    if (active[r] && (p < 0 || abs(panel[r][t]) > abs(panel[p][t])))
+                        p = r;
+                double d = panel[p][t];
+                if (d == 0) {
+                    MatrixStats.determinant(MatrixStats.Strategy.DISTRIBUTED, start, ops);
+                    return 0;
+                }
+                piv[t] = p;
+                perm[c0 + t] = p;
+                active[p] = false;
+                det *= d;
+                for (int r = 0; r < n; r++) {
+                    if (!active[r])
+                        continue;
+                    double f = panel[r][t] / d;
+                    l[r][t] = f;
+                    for (int j = t + 1; j < w; j++)
+                        panel[r][j] -= f * panel[p][j];
+                    ops += 1 + 2 * (w - t - 1);
+                }
+            }
+            if (k == blocks - 1)
+                break;
+            //строки U панели: U[t] = A[piv[t]] - sum(L[piv[t]][s] * U[s], s < t)
+            int width = n - c0 - w;
+            double[][] u = new double[w][width];
+            Map<Integer, List<Integer>> groups = new LinkedHashMap<Integer, List<Integer>>();
+            for (int t = 0; t < w; t++) {
+                List<Integer> g = groups.get(piv[t] / nb);
+                if (g == null) {
+                    g = new ArrayList<Integer>();
+                    groups.put(piv[t] / nb, g);
+                }
+                g.add(t);
+            }
+            for (int bj = k + 1; bj < blocks; bj++)
+                for (Map.Entry<Integer, List<Integer>> g : groups.entrySet()) {
+                    int bi = g.getKey();
+                    Connection c = owner(bi, bj);
+                    c.out.writeByte(DistributedWorker.GET_ROWS);
+                    c.out.writeInt(bi);
+                    c.out.writeInt(bj);
+                    c.out.writeInt(g.getValue().size());
+                    for (int t : g.getValue())
+                        c.out.writeInt(piv[t] - bi * nb);
+                }
+            flushAll();
+            for (int bj = k + 1; bj < blocks; bj++) {
+                int cols = Math.min(nb, n - bj * nb);
+                int offset = bj * nb - c0 - w;
+                for (Map.Entry<Integer, List<Integer>> g : groups.entrySet()) {
+                    Connection c = owner(g.getKey(), bj);
+                    c.expectOk();
+                    for (int t : g.getValue())
+                        for (int j = 0; j < cols; j++)
+                            u[t][offset + j] = c.in.readDouble();
+                }
+            }
+            for (int t = 0; t < w; t++)
+                for (int s = 0; s < t; s++) {
+                    double f = l[piv[t]][s];
+                    if (f == 0)
+                        continue;
+                    for (int j = 0; j < width; j++)
+                        u[t][j] -= f * u[s][j];
+                    ops += 2 * width;
+                }
+            //рассылка обновления; рабочие считают одновременно
+            for (int wi = 0; wi < workers.length; wi++) {
+                Connection c = workers[wi];
+                int gridRow = wi / gridCols;
+                List<Integer> rows = new ArrayList<Integer>();
+                for (int r = 0; r < n; r++)
+                    if (active[r] && (r / nb) % gridRows == gridRow)
+                        rows.add(r);
+                c.out.writeByte(DistributedWorker.UPDATE);
+                c.out.writeInt(k);
+                c.out.writeInt(w);
+                c.out.writeInt(width);
+                for (double[] row : u)
+                    for (double v : row)
+                        c.out.writeDouble(v);
+                c.out.writeInt(rows.size());
+                for (int r : rows) {
+                    c.out.writeInt(r);
+                    for (int t = 0; t < w; t++)
+                        c.out.writeDouble(l[r][t]);
+                }
+                ops += 2L * rows.size() * w * width / gridCols;
+            }
+            flushAll();
+            for (Connection c : workers)
+                c.expectOk();
+        }
+        MatrixStats.determinant(MatrixStats.Strategy.DISTRIBUTED, start, ops);
+        return permutationSign(perm) * det;
+    }
+
+    /**
+     * Знак перестановки, вычисляется по разложению на циклы.
+     * @param perm перестановка.
+     * @return 1 для четной перестановки, -1 для нечетной.
+     */
+    static private int permutationSign(int[] perm) {
+        boolean[] seen = new boolean[perm.length];
+        int sign = 1;
+        for (int i = 0; i < perm.length; i++) {
+            if (seen[i])
+                continue;
+            int len = 0;
+            for (int j = i; !seen[j]; j = perm[j]) {
+                seen[j] = true;
+                len++;
+            }
+            if (len % 2 == 0)
+                sign = -sign;
+        }
+        return sign;
+    }
+
+    /**
+     * Отправляет накопленные команды всем рабочим процессам.
+     * @throws IOException ошибка соединения.
+     */
+    private void flushAll() throws IOException {
+        for (Connection c : workers)
+            c.out.flush();
+    }
+
+    /**
+     * Завершает соединения с рабочими процессами.
+     */
+    public void close() {
+        for (Connection c : workers) {
+            if (c == null)
+                continue;
+            try {
+                c.out.writeByte(DistributedWorker.BYE);
+                c.out.flush();
+            }
+            catch (IOException ignored) {
+            }
+            try {
+                c.socket.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Вычисление определителя матрицы из файла на рабочих процессах.
+     * @param args путь к файлу, количество строк решетки, размер блока и
+     *             адреса рабочих процессов в виде <code>host:port</code>.
+     */
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.out.println("Expected: <file> <grid rows> <block size> <host:port>...");
+            return;
+        }
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        int gridRows;
+        int blockSize;
+        try {
+            gridRows = Integer.parseInt(args[1]);
+            blockSize = Integer.parseInt(args[2]);
+            for (int i = 3; i < args.length; i++) {
+                int colon = args[i].lastIndexOf(':');
+                addresses.add(new InetSocketAddress(args[i].substring(0, colon),
+                        Integer.parseInt(args[i].substring(colon + 1))));
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("Error: Invalid arguments: '" + e.getMessage() + "'.");
+            return;
+        }
+        File f = new File(args[0]);
+        DistributedDeterminant d = null;
+        try {
+            Matrix m = f.getName().endsWith(".mtx") ? new MatrixMarketReader(f).read()
+                    : new MatrixFileReader(f).read();
+            d = new DistributedDeterminant(addresses, gridRows, blockSize);
+            System.out.println("Determinant:");
+            System.out.println(d.determinant(m));
+        }
+        catch (Exception e) {
+            System.out.println("Error: '" + e.getMessage() + "'.");
+        }
+        finally {
+            if (d != null)
+                d.close();
+        }
+    }
+}
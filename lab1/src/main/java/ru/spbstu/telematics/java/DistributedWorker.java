@@ -0,0 +1,433 @@
+package ru.spbstu.telematics.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Рабочий процесс распределенного вычисления определителя. Хранит свои
+ * блоки матрицы и выполняет над ними обновления, которые присылает
+ * координатор {@link DistributedDeterminant}. Каждое соединение
+ * обслуживается в отдельном потоке и имеет свой набор блоков, поэтому
+ * несколько координаторов могут использовать процесс одновременно. <br>
+ * Протокол двоичный ({@link DataInputStream}/{@link DataOutputStream}):
+ * команда -- байт с кодом и аргументы, ответ -- байт {@link DistributedWorker#OK}
+ * и данные или {@link DistributedWorker#ERROR} и сообщение. Если аргументы
+ * команды некорректны и дочитать их нельзя, после ответа
+ * {@link DistributedWorker#ERROR} соединение закрывается. <br>
+ * По умолчанию процесс принимает соединения только на loopback-интерфейсе.
+ * @see DistributedDeterminant
+ */
+public class DistributedWorker {
+    /**
+     * Начать новую матрицу: порядок и размер блока.
+     */
+    static final byte INIT = 1;
+
+    /**
+     * Сохранить блок: номера блока, размеры и элементы по строкам.
+     */
+    static final byte PUT = 2;
+
+    /**
+     * Прислать блок: номера блока. Ответ -- размеры и элементы.
+     */
+    static final byte GET_BLOCK = 3;
+
+    /**
+     * Прислать строки блока: номера блока, количество и номера строк внутри блока.
+     * Ответ -- элементы строк.
+     */
+    static final byte GET_ROWS = 4;
+
+    /**
+     * Обновить блоки правее панели: номер панели, ширина панели, ширина
+     * оставшейся части, матрица U панели, количество строк и для каждой
+     * строки ее номер и множители L.
+     */
+    static final byte UPDATE = 5;
+
+    /**
+     * Завершить соединение.
+     */
+    static final byte BYE = 6;
+
+    /**
+     * Команда выполнена.
+     */
+    static final byte OK = 0;
+
+    /**
+     * Ошибка выполнения команды.
+     */
+    static final byte ERROR = -1;
+
+    /**
+     * Наибольший допустимый размер блока.
+     */
+    static final int MAX_BLOCK_SIZE = 1 << 12;
+
+    /**
+     * Серверный сокет.
+     */
+    private final ServerSocket server;
+
+    /**
+     * Потоки для обработки соединений.
+     */
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+
+    /**
+     * Конструктор, открывает порт на loopback-интерфейсе.
+     * @param port номер порта, 0 -- любой свободный.
+     * @throws IOException не удалось открыть порт.
+     */
+    public DistributedWorker(int port) throws IOException {
+        this(port, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Конструктор, открывает порт на заданном адресе.
+     * @param port номер порта, 0 -- любой свободный.
+     * @param bindAddress адрес интерфейса, <code>null</code> -- все интерфейсы.
+     * @throws IOException не удалось открыть порт.
+     */
+    public DistributedWorker(int port, InetAddress bindAddress) throws IOException {
+        server = new ServerSocket(port, 50, bindAddress);
+    }
+
+    /**
+     * @return номер порта, на котором работает процесс.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Ключ блока.
+     * @param bi номер блочной строки.
+     * @param bj номер блочного столбца.
+     * @return ключ для таблицы блоков соединения.
+     */
+    static private long key(int bi, int bj) {
+        return ((long) bi << 32) | (bj & 0xffffffffL);
+    }
+
+    /**
+     * Принимает соединения координаторов, пока процесс не будет закрыт
+     * методом {@link DistributedWorker#close()}.
+     * @throws IOException ошибка сокета.
+     */
+    public void serve() throws IOException {
+        while (!server.isClosed()) {
+            Socket s;
+            try {
+                s = server.accept();
+            }
+            catch (SocketException e) {
+                if (server.isClosed())
+                    return;
+                throw e;
+            }
+            final Socket socket = s;
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        socket.setTcpNoDelay(true);
+                        new Session().serve(socket);
+                    }
+                    catch (IOException ignored) {
+                        //координатор отключился
+                    }
+                    finally {
+                        try {
+                            socket.close();
+                        }
+                        catch (IOException ignored) {
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Состояние одного соединения: блоки матрицы координатора.
+     */
+    static private class Session {
+        /**
+         * Блоки матрицы, ключ -- пара номеров блока.
+         */
+        private final Map<Long, double[][]> blocks = new HashMap<Long, double[][]>();
+
+        /**
+         * Порядок матрицы.
+         */
+        private int n;
+
+        /**
+         * Размер блока.
+         */
+        private int nb;
+
+        /**
+         * Выполняет команды одного координатора.
+         * @param s сокет соединения.
+         * @throws IOException ошибка соединения.
+         */
+        void serve(Socket s) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            while (true) {
+                byte command;
+                try {
+                    command = in.readByte();
+                }
+                catch (EOFException e) {
+                    return;
+                }
+                if (command == BYE)
+                    return;
+                try {
+                    execute(command, in, out);
+                }
+                catch (ProtocolException e) {
+                    //остаток команды не прочитан, поток рассогласован
+                    out.writeByte(ERROR);
+                    out.writeUTF(String.valueOf(e.getMessage()));
+                    out.flush();
+                    return;
+                }
+                catch (RuntimeException e) {
+                    out.writeByte(ERROR);
+                    out.writeUTF(String.valueOf(e.getMessage()));
+                }
+                out.flush();
+            }
+        }
+
+        /**
+         * Проверяет аргумент команды до выделения памяти под данные.
+         * @param value значение аргумента.
+         * @param min наименьшее допустимое значение.
+         * @param max наибольшее допустимое значение.
+         * @param name название аргумента.
+         * @return значение.
+         * @throws ProtocolException значение вне диапазона.
+         */
+        static private int check(int value, int min, int max, String name) throws ProtocolException {
+            if (value < min || value > max)
+                throw new ProtocolException("Illegal " + name + ": " + value + "!");
+            return value;
+        }
+
+        /**
+         * @return количество блоков в строке матрицы.
+         * @throws ProtocolException матрица не начата командой INIT.
+         */
+        private int blockCount() throws ProtocolException {
+            if (nb == 0)
+                throw new ProtocolException("Matrix is not initialized!");
+            return (n + nb - 1) / nb;
+        }
+
+        /**
+         * Выполняет одну команду. Размеры проверяются до выделения памяти.
+         * Если аргументы корректны, они читаются полностью до начала
+         * вычислений, и при ошибке вычислений поток остается согласованным;
+         * иначе выбрасывается {@link ProtocolException} и соединение
+         * закрывается.
+         * @param command код команды.
+         * @param in поток команд.
+         * @param out поток ответов.
+         * @throws ProtocolException некорректные аргументы или неизвестная команда.
+         * @throws IOException ошибка соединения.
+         */
+        private void execute(byte command, DataInputStream in, DataOutputStream out) throws IOException {
+            switch (command) {
+                case INIT: {
+                    int order = check(in.readInt(), 0, Integer.MAX_VALUE, "order");
+                    int size = check(in.readInt(), 1, MAX_BLOCK_SIZE, "block size");
+                    n = order;
+                    nb = size;
+                    blocks.clear();
+                    out.writeByte(OK);
+                    break;
+                }
+                case PUT: {
+                    int count = blockCount();
+                    int bi = check(in.readInt(), 0, count - 1, "block row");
+                    int bj = check(in.readInt(), 0, count - 1, "block column");
+                    int rows = check(in.readInt(), 1, Math.min(nb, n - bi * nb), "block rows");
+                    int cols = check(in.readInt(), 1, Math.min(nb, n - bj * nb), "block columns");
+                    double[][] b = new double[rows][cols];
+                    for (double[] row : b)
+                        for (int j = 0; j < row.length; j++)
+                            row[j] = in.readDouble();
+                    blocks.put(key(bi, bj), b);
+                    out.writeByte(OK);
+                    break;
+                }
+                case GET_BLOCK: {
+                    double[][] b = block(in.readInt(), in.readInt());
+                    out.writeByte(OK);
+                    out.writeInt(b.length);
+                    out.writeInt(b[0].length);
+                    for (double[] row : b)
+                        for (double v : row)
+                            out.writeDouble(v);
+                    break;
+                }
+                case GET_ROWS: {
+                    int bi = in.readInt();
+                    int bj = in.readInt();
+                    int[] rows = new int[check(in.readInt(), 0, nb, "row count")];
+                    for (int i = 0; i < rows.length; i++)
+                        rows[i] = in.readInt();
+                    double[][] b = block(bi, bj);
+                    //ответ OK нельзя отменить, поэтому строки проверяются до него
+                    for (int r : rows)
+                        check(r, 0, b.length - 1, "row");
+                    out.writeByte(OK);
+                    for (int r : rows)
+                        for (double v : b[r])
+                            out.writeDouble(v);
+                    break;
+                }
+                case UPDATE: {
+                    int k = check(in.readInt(), 0, blockCount() - 1, "panel");
+                    int w = check(in.readInt(), 1, nb, "panel width");
+                    int width = check(in.readInt(), 0, (int) Math.max(0, n - (long) (k + 1) * nb), "update width");
+                    double[][] u = new double[w][width];
+                    for (double[] row : u)
+                        for (int j = 0; j < width; j++)
+                            row[j] = in.readDouble();
+                    int count = check(in.readInt(), 0, n, "row count");
+                    int[] rows = new int[count];
+                    double[][] l = new double[count][w];
+                    for (int r = 0; r < count; r++) {
+                        rows[r] = in.readInt();
+                        for (int t = 0; t < w; t++)
+                            l[r][t] = in.readDouble();
+                    }
+                    update(k, u, rows, l);
+                    out.writeByte(OK);
+                    break;
+                }
+                default:
+                    throw new ProtocolException("Unknown command " + command + "!");
+            }
+        }
+
+        /**
+         * Блок с проверкой наличия.
+         * @param bi номер блочной строки.
+         * @param bj номер блочного столбца.
+         * @return блок.
+         */
+        private double[][] block(int bi, int bj) {
+            double[][] b = blocks.get(key(bi, bj));
+            if (b == null)
+                throw new IllegalArgumentException("Block (" + bi + ", " + bj + ") is not stored here!");
+            return b;
+        }
+
+        /**
+         * Обновление оставшейся части после панели <code>k</code>:
+         * A[r][j] -= sum(L[r][t] * U[t][j]) для своих блоков правее панели.
+         * @param k номер панели.
+         * @param u матрица U панели, столбцы -- с первого столбца после панели.
+         * @param rows номера обновляемых строк матрицы.
+         * @param l множители L для этих строк.
+         */
+        private void update(int k, double[][] u, int[] rows, double[][] l) {
+            int first = (k + 1) * nb;
+            for (Map.Entry<Long, double[][]> e : blocks.entrySet()) {
+                int bi = (int) (e.getKey() >> 32);
+                int bj = (int) (long) e.getKey();
+                if (bj <= k)
+                    continue;
+                double[][] b = e.getValue();
+                int rowFrom = bi * nb;
+                int colOffset = bj * nb - first;
+                for (int r = 0; r < rows.length; r++) {
+                    int local = rows[r] - rowFrom;
+                    if (local < 0 || local >= b.length)
+                        continue;
+                    double[] row = b[local];
+                    double[] lr = l[r];
+                    for (int t = 0; t < lr.length; t++) {
+                        double m = lr[t];
+                        if (m == 0)
+                            continue;
+                        double[] ut = u[t];
+                        for (int j = 0; j < row.length; j++)
+                            row[j] -= m * ut[colOffset + j];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Закрывает процесс.
+     */
+    public void close() {
+        try {
+            server.close();
+        }
+        catch (IOException ignored) {
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * Запуск рабочего процесса.
+     * @param args номер порта и, возможно, адрес интерфейса; по умолчанию
+     *             loopback-интерфейс.
+     */
+    public static void main(String[] args) {
+        if (args.length != 1 && args.length != 2) {
+            System.out.println("Expected port number and optional bind address!");
+            return;
+        }
+        DistributedWorker w;
+        try {
+            InetAddress address = (args.length == 2) ? InetAddress.getByName(args[1])
+                                                     : InetAddress.getLoopbackAddress();
+            w = new DistributedWorker(Integer.parseInt(args[0]), address);
+        }
+        catch (NumberFormatException e) {
+            System.out.println("Error: Invalid port '" + args[0] + "'!");
+            return;
+        }
+        catch (UnknownHostException e) {
+            System.out.println("Error: Invalid bind address '" + args[1] + "'!");
+            return;
+        }
+        catch (IOException e) {
+            System.out.println("Error: Cannot open port " + args[0] + ": '" + e.getMessage() + "'.");
+            return;
+        }
+        System.out.println("Worker is listening on port " + w.getPort());
+        try {
+            w.serve();
+        }
+        catch (IOException e) {
+            System.out.println("Error: '" + e.getMessage() + "'.");
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ru.spbstu.telematics.java;
+
+import static java.lang.Math.abs;
+
+/**
+ * LU-разложение квадратной матрицы с выбором ведущего элемента по столбцу:
+ * PA = LU. Матрицы L (с единичной диагональю) и U хранятся в одном массиве.
+ * Разложение выполняется за O(n^3) и позволяет найти определитель как
+ * произведение диагональных элементов U.
+ * @see Matrix
+ * @see DeterminantCache
+ */
+public class LUDecomposition {
+    /**
+     * Совмещенные матрицы L и U. Под диагональю -- множители L,
+     * на диагонали и выше -- элементы U.
+     */
+    final double[][] lu;
+
+    /**
+     * Перестановка строк: в строке <code>i</code> разложения находится
+     * строка <code>pivot[i]</code> исходной матрицы.
+     */
+    final int[] pivot;
+
+    /**
+     * Знак перестановки строк, 1 или -1.
+     */
+    final int pivotSign;
+
+    /**
+     * Конструктор, выполняет разложение. Исходная матрица не изменяется.
+     * @param m квадратная матрица.
+     * @throws Exception если матрица не квадратная.
+     */
+    public LUDecomposition(Matrix m) throws Exception {
+        double[][] a = m.getMatrix();
+        int n = a.length;
+        if (n != a[0].length)
+            throw new Exception("Matrix is not square!");
+        long start = MatrixStats.start();
+        long ops = 0;
+        lu = new double[n][];
+        for (int i = 0; i < n; i++)
+            lu[i] = a[i].clone();
+        pivot = new int[n];
+        for (int i = 0; i < n; i++)
+            pivot[i] = i;
+        int sign = 1;
+        for (int k = 0; k < n; k++) {
+            int p = k;
+            for (int i = k + 1; i < n; i++)
+                if (abs(lu[i][k]) > abs(lu[p][k]))
+                    p = i;
+            if (p != k) {
+                double[] t = lu[p];
+                lu[p] = lu[k];
+                lu[k] = t;
+                int ti = pivot[p];
+                pivot[p] = pivot[k];
+                pivot[k] = ti;
+                sign = -sign;
+            }
+            double d = lu[k][k];
+            if (d == 0)
+                continue;
+            double[] rowK = lu[k];
+            for (int i = k + 1; i < n; i++) {
+                double[] rowI = lu[i];
+                double l = rowI[k] / d;
+                rowI[k] = l;
+                ops++;
+                if (l != 0) {
+                    for (int j = k + 1; j < n; j++)
+                        rowI[j] -= l * rowK[j];
+                    ops += 2 * (n - k - 1);
+                }
+            }
+        }
+        pivotSign = sign;
+        MatrixStats.determinant(MatrixStats.Strategy.LU, start, ops);
+    }
+
+    /**
+     * @return порядок матрицы.
+     */
+    public int size() {
+        return lu.length;
+    }
+
+    /**
+     * Диагональный элемент матрицы U.
+     * @param i номер элемента, нумеруется с 0.
+     * @return элемент U(i, i).
+     */
+    public double getPivot(int i) {
+        return lu[i][i];
+    }
+
+    /**
+     * @return знак перестановки строк, 1 или -1.
+     */
+    public int getPivotSign() {
+        return pivotSign;
+    }
+
+    /**
+     * @return <code>true</code>, если матрица вырождена.
+     */
+    public boolean isSingular() {
+        for (int i = 0; i < lu.length; i++)
+            if (lu[i][i] == 0)
+                return true;
+        return false;
+    }
+
+    /**
+     * Определитель как произведение ведущих элементов.
+     * Для больших матриц может переполниться.
+     * @return определитель матрицы.
+     * @see LUDecomposition#logDeterminant()
+     */
+    public double determinant() {
+        double res = pivotSign;
+        for (int i = 0; i < lu.length; i++)
+            res *= lu[i][i];
+        return res;
+    }
+
+    /**
+     * Определитель в форме знака и логарифма модуля, без переполнения.
+     * @return определитель матрицы.
+     * @see LogDeterminant
+     */
+    public LogDeterminant logDeterminant() {
+        double[] pivots = new double[lu.length];
+        for (int i = 0; i < lu.length; i++)
+            pivots[i] = lu[i][i];
+        return LogDeterminant.product(pivotSign, pivots, pivots.length);
+    }
+}
@@ -0,0 +1,131 @@
+package ru.spbstu.telematics.java;
+
+import static java.lang.Math.abs;
+
+/**
+ * Определитель в форме, не переполняющейся при больших порядках матрицы:
+ * знак, натуральный логарифм модуля и представление модуля в виде
+ * mantissa * 2^exponent с мантиссой из [1, 2). <br>
+ * Произведение ведущих элементов накапливается с нормализацией после
+ * каждого умножения, поэтому ни мантисса, ни порядок не переполняются,
+ * а логарифм получается из них без суммирования логарифмов отдельных
+ * элементов.
+ * @see Matrix#logDeterminant()
+ * @see LUDecomposition#logDeterminant()
+ */
+public final class LogDeterminant {
+    /**
+     * Знак определителя: 1, -1 или 0.
+     */
+    private final int sign;
+
+    /**
+     * Мантисса модуля, из [1, 2), или 0 для нулевого определителя.
+     */
+    private final double mantissa;
+
+    /**
+     * Двоичный порядок модуля.
+     */
+    private final long exponent;
+
+    /**
+     * Конструктор.
+     * @param sign знак определителя.
+     * @param mantissa мантисса модуля.
+     * @param exponent двоичный порядок модуля.
+     */
+    private LogDeterminant(int sign, double mantissa, long exponent) {
+        this.sign = sign;
+        this.mantissa = mantissa;
+        this.exponent = exponent;
+    }
+
+    /**
+     * Произведение чисел со знаком.
+     * @param sign начальный знак, 1 или -1.
+     * @param values сомножители.
+     * @param count количество сомножителей.
+     * @return произведение в форме {@link LogDeterminant}.
+     */
+    static LogDeterminant product(int sign, double[] values, int count) {
+        double m = 1;
+        long e = 0;
+        for (int i = 0; i < count; i++) {
+            double v = values[i];
+            if (v == 0)
+                return new LogDeterminant(0, 0, 0);
+            if (v < 0)
+                sign = -sign;
+            v = abs(v);
+            int ve = Math.getExponent(v);
+            if (ve < Double.MIN_EXPONENT) {
+                //денормализованное число: сначала сдвигаем в нормальный диапазон
+                v = Math.scalb(v, 64);
+                e -= 64;
+                ve = Math.getExponent(v);
+            }
+            //обе мантиссы из [1, 2), произведение из [1, 4)
+            m *= Math.scalb(v, -ve);
+            e += ve;
+            if (m >= 2) {
+                m *= 0.5;
+                e++;
+            }
+        }
+        return new LogDeterminant(sign, m, e);
+    }
+
+    /**
+     * @return знак определителя: 1, -1 или 0.
+     */
+    public int getSign() {
+        return sign;
+    }
+
+    /**
+     * @return натуральный логарифм модуля определителя,
+     * <code>-Infinity</code> для нулевого определителя.
+     */
+    public double getLogAbs() {
+        if (sign == 0)
+            return Double.NEGATIVE_INFINITY;
+        return Math.log(mantissa) + exponent * Math.log(2);
+    }
+
+    /**
+     * @return мантисса модуля определителя из [1, 2), 0 для нулевого определителя.
+     */
+    public double getMantissa() {
+        return mantissa;
+    }
+
+    /**
+     * @return двоичный порядок модуля определителя.
+     */
+    public long getExponent() {
+        return exponent;
+    }
+
+    /**
+     * Определитель как <code>double</code>.
+     * @return определитель, <code>±Infinity</code> при переполнении или 0
+     * при потере значимости.
+     */
+    public double toDouble() {
+        if (sign == 0)
+            return 0;
+        int e = (int) Math.max(Math.min(exponent, 2 * Double.MAX_EXPONENT), 2 * Double.MIN_EXPONENT);
+        return sign * Math.scalb(mantissa, e);
+    }
+
+    /**
+     * @return строковое представление вида <code>-1.5 * 2^4000</code>.
+     */
+    @Override
+    public String toString() {
+        if (sign == 0)
+            return "0";
+        return (sign < 0 ? "-" : "") + mantissa + " * 2^" + exponent;
+    }
+}
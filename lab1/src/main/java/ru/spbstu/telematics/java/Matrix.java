@@ -1,5 +1,7 @@
 package ru.spbstu.telematics.java;
 
+import java.math.BigInteger;
+
 import static java.lang.Math.abs;
 
 /**
@@ -139,6 +141,7 @@ public class Matrix {
      * @return матрица, соответсвующая минору (i, j).
      */
     private Matrix minorMatrix(int i, int j) {
+        MatrixStats.minor();
         Matrix res = new Matrix(new double[matrix.length - 1][matrix.length - 1]);
         for (int k = 0; k < matrix.length - 1; k++) {
             for (int l = 0; l < matrix.length - 1; l++) {
@@ -164,14 +167,28 @@ public class Matrix {
      * @return опеределитель матрицы.
      * @throws Exception если матрица не квадратная.
      * @see Matrix#minorMatrix(int, int)
+     * @see MatrixStats
      */
     public double determinant() throws Exception {
         if (matrix.length != matrix[0].length)
             throw new Exception("Matrix is not square!");
+        long start = MatrixStats.start();
+        double res = cofactorDeterminant();
+        MatrixStats.determinant(MatrixStats.Strategy.COFACTOR, start, 0);
+        return res;
+    }
+
+    /**
+     * Рекурсивная часть метода {@link Matrix#determinant()} для квадратной матрицы.
+     * @return опеределитель матрицы.
+     */
+    private double cofactorDeterminant() {
         if (matrix.length == 1)
             return matrix[0][0];
-        if (matrix.length == 2)
+        if (matrix.length == 2) {
+            MatrixStats.flops(3);
             return matrix[0][0] * matrix[1][1] - matrix[1][0] * matrix[0][1];
+        }
         double res = 0;
         int maxZeros = 0;
         int maxZerosIndex = 0;
@@ -204,7 +221,8 @@ public class Matrix {
             if (matrix[x][y] != 0) {
                 Matrix minor = minorMatrix(x, y);
                 //System.out.println(minor);
-                double d = matrix[x][y] * minor.determinant();
+                double d = matrix[x][y] * minor.cofactorDeterminant();
+                MatrixStats.flops(2);
                 if ((x + y) % 2 == 0)
                     res += d;
                 else
@@ -214,6 +232,18 @@ public class Matrix {
         return res;
     }
 
+    /**
+     * Определитель в форме знака и логарифма модуля. Вычисляется по одному
+     * LU-разложению за O(n^3) и не переполняется для матриц большого порядка,
+     * в отличие от произведения ведущих элементов в <code>double</code>.
+     * @return определитель матрицы.
+     * @throws Exception если матрица не квадратная.
+     * @see LogDeterminant
+     */
+    public LogDeterminant logDeterminant() throws Exception {
+        return new LUDecomposition(this).logDeterminant();
+    }
+
     /**
      * Аналогичен методу {@link Matrix#determinant()}, но не выкидывает
      * исключение, а возвращает 0, если матрица не квадратная.
@@ -231,6 +261,53 @@ public class Matrix {
         return res;
     }
 
+    /**
+     * Неизменяемый снимок текущего состояния матрицы. Снимок можно
+     * передавать другим потокам без копирования.
+     * @return снимок матрицы.
+     * @see MatrixSnapshot
+     */
+    public MatrixSnapshot snapshot() {
+        return MatrixSnapshot.of(this);
+    }
+
+    /**
+     * Ленивое выражение над этой матрицей. Операции над выражением не
+     * создают промежуточных массивов до вызова терминальной операции.
+     * @return выражение, значением которого является эта матрица.
+     * @see MatrixExpr
+     */
+    public MatrixExpr lazy() {
+        return MatrixExpr.of(this);
+    }
+
+    /**
+     * Характеристический многочлен det(xI - A). Вычисляется за O(n^3)
+     * приведением к форме Хессенберга; для больших матриц вычисления
+     * выполняются параллельно.
+     * @return коэффициенты многочлена, элемент <code>k</code> -- коэффициент при x^k.
+     * @throws Exception если матрица не квадратная.
+     * @see Matrix#characteristicPolynomialExact()
+     */
+    public double[] characteristicPolynomial() throws Exception {
+        if (matrix.length != matrix[0].length)
+            throw new Exception("Matrix is not square!");
+        return CharacteristicPolynomial.of(matrix);
+    }
+
+    /**
+     * Точный характеристический многочлен det(xI - A) для матрицы из целых
+     * чисел. Вычисляется по модулю нескольких простых чисел.
+     * @return коэффициенты многочлена, элемент <code>k</code> -- коэффициент при x^k.
+     * @throws Exception если матрица не квадратная или ее элементы не целые.
+     * @see Matrix#characteristicPolynomial()
+     */
+    public BigInteger[] characteristicPolynomialExact() throws Exception {
+        if (matrix.length != matrix[0].length)
+            throw new Exception("Matrix is not square!");
+        return CharacteristicPolynomial.exact(matrix);
+    }
+
     /**
      * Строковое представление матрицы для удобного вывода на экран.
      * @return строковое представлене матрицы
@@ -0,0 +1,386 @@
+package ru.spbstu.telematics.java;
+
+/**
+ * Ленивое матричное выражение над {@link Matrix}. Операции (сложение,
+ * умножение на число, произведение, транспонирование, подматрица) только
+ * строят дерево выражения; вычисление происходит в терминальных операциях
+ * {@link MatrixExpr#materialise()} и {@link MatrixExpr#determinant()}. <br>
+ * Элемент выражения вычисляется сразу по всему дереву, поэтому цепочки
+ * поэлементных операций проходятся за один проход без промежуточных
+ * массивов, а транспонирование и подматрицы -- это только пересчет индексов.
+ * Промежуточный массив создается один раз лишь для операнда произведения,
+ * который сам содержит произведение, иначе его элементы пересчитывались бы
+ * многократно. <br>
+ * Выражение ссылается на исходные матрицы, а не копирует их: изменения
+ * матриц видны в последующих вычислениях, кроме операндов произведения,
+ * которые уже были вычислены в массив.
+ * @see Matrix#lazy()
+ */
+public abstract class MatrixExpr {
+    /**
+     * @return количество строк результата.
+     */
+    public abstract int rows();
+
+    /**
+     * @return количество столбцов результата.
+     */
+    public abstract int cols();
+
+    /**
+     * Вычисляет один элемент выражения.
+     * @param i номер строки, нумеруется с 0.
+     * @param j номер столбца, нумеруется с 0.
+     * @return значение элемента ij.
+     */
+    public abstract double get(int i, int j);
+
+    /**
+     * @return <code>true</code>, если выражение содержит произведение матриц,
+     * то есть вычисление элемента стоит больше O(1).
+     */
+    abstract boolean hasProduct();
+
+    /**
+     * Выражение из одной матрицы.
+     * @param m матрица.
+     * @return выражение, значением которого является матрица.
+     */
+    public static MatrixExpr of(Matrix m) {
+        return new Leaf(m.getMatrix());
+    }
+
+    /**
+     * Сумма выражений.
+     * @param other второе слагаемое.
+     * @return выражение this + other.
+     * @throws IllegalArgumentException если размеры не совпадают.
+     */
+    public MatrixExpr plus(MatrixExpr other) {
+        checkSameSize(other);
+        return new Sum(this, other, 1);
+    }
+
+    /**
+     * Разность выражений.
+     * @param other вычитаемое.
+     * @return выражение this - other.
+     * @throws IllegalArgumentException если размеры не совпадают.
+     */
+    public MatrixExpr minus(MatrixExpr other) {
+        checkSameSize(other);
+        return new Sum(this, other, -1);
+    }
+
+    /**
+     * Умножение на число.
+     * @param k множитель.
+     * @return выражение k * this.
+     */
+    public MatrixExpr scale(double k) {
+        return new Scaled(this, k);
+    }
+
+    /**
+     * Матричное произведение.
+     * @param other правый множитель.
+     * @return выражение this * other.
+     * @throws IllegalArgumentException если количество столбцов не равно
+     * количеству строк правого множителя.
+     */
+    public MatrixExpr times(MatrixExpr other) {
+        if (cols() != other.rows())
+            throw new IllegalArgumentException("Cannot multiply " + rows() + "x" + cols()
+                    + " matrix by " + other.rows() + "x" + other.cols() + " matrix!");
+        return new Product(this, other);
+    }
+
+    /**
+     * Транспонирование.
+     * @return транспонированное выражение.
+     */
+    public MatrixExpr transpose() {
+        return new Transposed(this);
+    }
+
+    /**
+     * Подматрица.
+     * @param row номер первой строки подматрицы.
+     * @param col номер первого столбца подматрицы.
+     * @param rows количество строк подматрицы.
+     * @param cols количество столбцов подматрицы.
+     * @return выражение для подматрицы.
+     * @throws ArrayIndexOutOfBoundsException если подматрица выходит за границы.
+     */
+    public MatrixExpr submatrix(int row, int col, int rows, int cols) throws ArrayIndexOutOfBoundsException {
+        if (row < 0 || col < 0 || rows < 0 || cols < 0 || row + rows > rows() || col + cols > cols())
+            throw new ArrayIndexOutOfBoundsException("Submatrix is out of " + rows() + "x" + cols() + " matrix!");
+        return new Sub(this, row, col, rows, cols);
+    }
+
+    /**
+     * Вычисляет выражение за один проход в новую матрицу.
+     * @return матрица со значением выражения.
+     */
+    public Matrix materialise() {
+        return new Matrix(evaluate());
+    }
+
+    /**
+     * Вычисляет определитель значения выражения.
+     * @return определитель.
+     * @throws Exception если результат не квадратная матрица.
+     * @see Matrix#determinant()
+     */
+    public double determinant() throws Exception {
+        if (rows() != cols())
+            throw new Exception("Matrix is not square!");
+        return materialise().determinant();
+    }
+
+    /**
+     * Вычисляет выражение в новый массив.
+     * @return массив со значением выражения.
+     */
+    double[][] evaluate() {
+        int n = rows();
+        int m = cols();
+        double[][] res = new double[n][m];
+        for (int i = 0; i < n; i++) {
+            double[] row = res[i];
+            for (int j = 0; j < m; j++)
+                row[j] = get(i, j);
+        }
+        return res;
+    }
+
+    /**
+     * Проверяет совпадение размеров для поэлементных операций.
+     * @param other второй операнд.
+     * @throws IllegalArgumentException если размеры не совпадают.
+     */
+    private void checkSameSize(MatrixExpr other) {
+        if (rows() != other.rows() || cols() != other.cols())
+            throw new IllegalArgumentException("Matrix dimensions do not match: " + rows() + "x" + cols()
+                    + " and " + other.rows() + "x" + other.cols() + "!");
+    }
+
+    /**
+     * @return строковое представление значения выражения.
+     */
+    @Override
+    public String toString() {
+        return materialise().toString();
+    }
+
+    /**
+     * Лист выражения -- массив матрицы.
+     */
+    static private class Leaf extends MatrixExpr {
+        final double[][] a;
+
+        Leaf(double[][] a) {
+            this.a = a;
+        }
+
+        public int rows() {
+            return a.length;
+        }
+
+        public int cols() {
+            return (a.length == 0) ? 0 : a[0].length;
+        }
+
+        public double get(int i, int j) {
+            return a[i][j];
+        }
+
+        boolean hasProduct() {
+            return false;
+        }
+    }
+
+    /**
+     * Сумма <code>left + sign * right</code>.
+     */
+    static private class Sum extends MatrixExpr {
+        final MatrixExpr left;
+        final MatrixExpr right;
+        final double sign;
+
+        Sum(MatrixExpr left, MatrixExpr right, double sign) {
+            this.left = left;
+            this.right = right;
+            this.sign = sign;
+        }
+
+        public int rows() {
+            return left.rows();
+        }
+
+        public int cols() {
+            return left.cols();
+        }
+
+        public double get(int i, int j) {
+            return left.get(i, j) + sign * right.get(i, j);
+        }
+
+        boolean hasProduct() {
+            return left.hasProduct() || right.hasProduct();
+        }
+    }
+
+    /**
+     * Умножение на число. Вложенные умножения сворачиваются в одно.
+     */
+    static private class Scaled extends MatrixExpr {
+        final MatrixExpr inner;
+        final double k;
+
+        Scaled(MatrixExpr inner, double k) {
+            if (inner instanceof Scaled) {
+                this.inner = ((Scaled) inner).inner;
+                this.k = k * ((Scaled) inner).k;
+            }
+            else {
+                this.inner = inner;
+                this.k = k;
+            }
+        }
+
+        public int rows() {
+            return inner.rows();
+        }
+
+        public int cols() {
+            return inner.cols();
+        }
+
+        public double get(int i, int j) {
+            return k * inner.get(i, j);
+        }
+
+        boolean hasProduct() {
+            return inner.hasProduct();
+        }
+    }
+
+    /**
+     * Транспонирование -- перестановка индексов.
+     */
+    static private class Transposed extends MatrixExpr {
+        final MatrixExpr inner;
+
+        Transposed(MatrixExpr inner) {
+            this.inner = inner;
+        }
+
+        @Override
+        public MatrixExpr transpose() {
+            return inner;
+        }
+
+        public int rows() {
+            return inner.cols();
+        }
+
+        public int cols() {
+            return inner.rows();
+        }
+
+        public double get(int i, int j) {
+            return inner.get(j, i);
+        }
+
+        boolean hasProduct() {
+            return inner.hasProduct();
+        }
+    }
+
+    /**
+     * Подматрица -- сдвиг индексов.
+     */
+    static private class Sub extends MatrixExpr {
+        final MatrixExpr inner;
+        final int row;
+        final int col;
+        final int rows;
+        final int cols;
+
+        Sub(MatrixExpr inner, int row, int col, int rows, int cols) {
+            this.inner = inner;
+            this.row = row;
+            this.col = col;
+            this.rows = rows;
+            this.cols = cols;
+        }
+
+        public int rows() {
+            return rows;
+        }
+
+        public int cols() {
+            return cols;
+        }
+
+        public double get(int i, int j) {
+            return inner.get(row + i, col + j);
+        }
+
+        boolean hasProduct() {
+            return inner.hasProduct();
+        }
+    }
+
+    /**
+     * Матричное произведение. Элемент -- скалярное произведение строки левого
+     * и столбца правого операнда. Операнды, которые сами содержат
+     * произведение, при первом обращении вычисляются в массив.
+     */
+    static private class Product extends MatrixExpr {
+        MatrixExpr left;
+        MatrixExpr right;
+        volatile boolean prepared;
+
+        Product(MatrixExpr left, MatrixExpr right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * Вычисляет в массивы операнды, содержащие произведение.
+         */
+        synchronized void prepare() {
+            if (prepared)
+                return;
+            if (left.hasProduct())
+                left = new Leaf(left.evaluate());
+            if (right.hasProduct())
+                right = new Leaf(right.evaluate());
+            prepared = true;
+        }
+
+        public int rows() {
+            return left.rows();
+        }
+
+        public int cols() {
+            return right.cols();
+        }
+
+        public double get(int i, int j) {
+            if (!prepared)
+                prepare();
+            int n = left.cols();
+            double s = 0;
+            for (int k = 0; k < n; k++)
+                s += left.get(i, k) * right.get(k, j);
+            return s;
+        }
+
+        boolean hasProduct() {
+            return true;
+        }
+    }
+}
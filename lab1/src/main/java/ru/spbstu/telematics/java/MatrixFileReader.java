@@ -29,8 +29,33 @@ public class MatrixFileReader {
      * @throws Exception неверный формат файла.
      */
     public Matrix read() throws Exception {
-        FileReader fr = new FileReader(file);
-        Scanner sc = new Scanner(fr);
+        long start = MatrixStats.start();
+        Matrix res = parse(new Scanner(new FileReader(file)));
+        MatrixStats.parsed(file.length(), start);
+        return res;
+    }
+
+    /**
+     * Считывает матрицу из строки в том же формате, что и файл:
+     * количество строк, количество столбцов и элементы по строкам.
+     * @param text строка с матрицей.
+     * @return матрица, считанная из строки.
+     * @throws Exception неверный формат строки.
+     */
+    public static Matrix parse(String text) throws Exception {
+        long start = MatrixStats.start();
+        Matrix res = parse(new Scanner(text));
+        MatrixStats.parsed(text.length(), start);
+        return res;
+    }
+
+    /**
+     * Считывает матрицу из сканера и закрывает его.
+     * @param sc сканер с матрицей.
+     * @return считанная матрица.
+     * @throws Exception неверный формат данных.
+     */
+    private static Matrix parse(Scanner sc) throws Exception {
         //используем, чтобы считать double
         sc.useLocale(Locale.US);
         int m, n;
@@ -0,0 +1,121 @@
+package ru.spbstu.telematics.java;
+
+/**
+ * 128-битный хэш содержимого матрицы (MurmurHash3 x64 128). Хэшируются
+ * размеры матрицы и битовые представления элементов, причем -0.0 и 0.0
+ * считаются одинаковыми. Используется как ключ в {@link DeterminantCache}.
+ * @see DeterminantCache
+ */
+public final class MatrixHash {
+    static private final long C1 = 0x87c37b91114253d5L;
+    static private final long C2 = 0x4cf5ad432745937fL;
+
+    /**
+     * Старшие 64 бита хэша.
+     */
+    final long high;
+
+    /**
+     * Младшие 64 бита хэша.
+     */
+    final long low;
+
+    /**
+     * Конструктор.
+     * @param high старшие 64 бита хэша.
+     * @param low младшие 64 бита хэша.
+     */
+    public MatrixHash(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Вычисляет хэш содержимого матрицы.
+     * @param m матрица.
+     * @return хэш матрицы.
+     */
+    public static MatrixHash of(Matrix m) {
+        double[][] a = m.getMatrix();
+        int cols = (a.length == 0) ? 0 : a[0].length;
+        long h1 = 0;
+        long h2 = 0;
+        //поток из 64-битных слов: размеры, затем элементы по строкам
+        long first = ((long) a.length << 32) | (cols & 0xffffffffL);
+        long pending = first;
+        boolean hasPending = true;
+        long words = 1;
+        for (double[] row : a) {
+            for (double v : row) {
+                long k = (v == 0) ? 0 : Double.doubleToLongBits(v);
+                words++;
+                if (!hasPending) {
+                    pending = k;
+                    hasPending = true;
+                    continue;
+                }
+                long k1 = pending * C1;
+                k1 = Long.rotateLeft(k1, 31) * C2;
+                h1 ^= k1;
+                h1 = Long.rotateLeft(h1, 27) + h2;
+                h1 = h1 * 5 + 0x52dce729;
+                long k2 = k * C2;
+                k2 = Long.rotateLeft(k2, 33) * C1;
+                h2 ^= k2;
+                h2 = Long.rotateLeft(h2, 31) + h1;
+                h2 = h2 * 5 + 0x38495ab5;
+                hasPending = false;
+            }
+        }
+        if (hasPending) {
+            long k1 = pending * C1;
+            k1 = Long.rotateLeft(k1, 31) * C2;
+            h1 ^= k1;
+        }
+        long len = words * 8;
+        h1 ^= len;
+        h2 ^= len;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        return new MatrixHash(h1, h2);
+    }
+
+    /**
+     * Финальное перемешивание битов MurmurHash3.
+     * @param k значение.
+     * @return перемешанное значение.
+     */
+    static private long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof MatrixHash)) return false;
+        MatrixHash other = (MatrixHash) o;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (low ^ (low >>> 32));
+    }
+
+    /**
+     * @return хэш в шестнадцатеричной записи.
+     */
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", high, low);
+    }
+}
@@ -0,0 +1,421 @@
+package ru.spbstu.telematics.java;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Класс для потокового считывания матрицы из файла в формате MatrixMarket
+ * (coordinate). Поддерживаются поля <code>real</code>, <code>integer</code>,
+ * <code>pattern</code> и симметрии <code>general</code>, <code>symmetric</code>,
+ * <code>skew-symmetric</code>. <br>
+ * Строки файла читаются блоками по {@link MatrixMarketReader#CHUNK_LINES}, блоки
+ * разбираются параллельно, а результаты складываются в порядке следования в файле.
+ * Одновременно в памяти находится не больше нескольких блоков на поток.
+ * @see MatrixFileReader
+ * @see SparseMatrix
+ */
+public class MatrixMarketReader {
+    /**
+     * Количество строк файла в одном блоке для разбора.
+     */
+    static final int CHUNK_LINES = 1 << 14;
+
+    /**
+     * Наибольшее количество троек в разреженной матрице.
+     */
+    static final int MAX_TRIPLETS = Integer.MAX_VALUE - 8;
+
+    /**
+     * Файл матрицы
+     */
+    File file;
+
+    /**
+     * Количество потоков для разбора.
+     */
+    private final int threads;
+
+    /**
+     * Заголовок файла: формат и размеры матрицы.
+     */
+    static private class Header {
+        /**
+         * Количество строк матрицы.
+         */
+        int rows;
+
+        /**
+         * Количество столбцов матрицы.
+         */
+        int cols;
+
+        /**
+         * Количество записей в файле.
+         */
+        int entries;
+
+        /**
+         * Значения не указаны, все элементы равны 1.
+         */
+        boolean pattern;
+
+        /**
+         * Матрица симметричная, хранится только нижний треугольник.
+         */
+        boolean symmetric;
+
+        /**
+         * Матрица кососимметричная, хранится только нижний треугольник.
+         */
+        boolean skew;
+
+        /**
+         * Номер строки файла, с которой начинаются записи.
+         */
+        int firstLine;
+    }
+
+    /**
+     * Разобранный блок записей: тройки (строка, столбец, значение),
+     * индексы нумеруются с 0.
+     */
+    static private class Triplets {
+        int[] rows;
+        int[] cols;
+        double[] values;
+        int size;
+
+        Triplets(int capacity) {
+            rows = new int[capacity];
+            cols = new int[capacity];
+            values = new double[capacity];
+            size = 0;
+        }
+
+        void add(int i, int j, double v) {
+            rows[size] = i;
+            cols[size] = j;
+            values[size] = v;
+            size++;
+        }
+
+        /**
+         * Дописывает тройки другого блока, при необходимости увеличивая
+         * массивы вдвое.
+         * @param t дописываемый блок.
+         * @throws Exception троек больше, чем помещается в массив.
+         */
+        void addAll(Triplets t) throws Exception {
+            long needed = (long) size + t.size;
+            if (needed > MAX_TRIPLETS)
+                throw new Exception("Too many matrix elements: " + needed + "!");
+            if (needed > rows.length) {
+                int capacity = (int) Math.min(Math.max(needed, 2L * rows.length), MAX_TRIPLETS);
+                rows = Arrays.copyOf(rows, capacity);
+                cols = Arrays.copyOf(cols, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            System.arraycopy(t.rows, 0, rows, size, t.size);
+            System.arraycopy(t.cols, 0, cols, size, t.size);
+            System.arraycopy(t.values, 0, values, size, t.size);
+            size += t.size;
+        }
+    }
+
+    /**
+     * Получатель разобранных блоков. Блоки передаются в порядке следования в файле.
+     */
+    private interface TripletSink {
+        void accept(Triplets t) throws Exception;
+    }
+
+    /**
+     * Конструктор, разбор ведется во всех доступных потоках.
+     * @param f файл матрицы
+     */
+    public MatrixMarketReader(File f) {
+        this(f, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Конструктор
+     * @param f файл матрицы
+     * @param threads количество потоков для разбора, 1 -- разбор в
+     *                вызывающем потоке.
+     * @throws IllegalArgumentException если количество потоков меньше 1.
+     */
+    public MatrixMarketReader(File f, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Illegal number of threads: " + threads + "!");
+        file = f;
+        this.threads = threads;
+    }
+
+    /**
+     * Считывает матрицу из файла в плотном виде.
+     * @return матрица, считанная из файла.
+     * @throws Exception неверный формат файла.
+     */
+    public Matrix read() throws Exception {
+        long start = MatrixStats.start();
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        try {
+            Header h = readHeader(br);
+            final double[][] array = new double[h.rows][h.cols];
+            parseEntries(br, h, new TripletSink() {
+                public void accept(Triplets t) {
+                    for (int k = 0; k < t.size; k++)
+                        array[t.rows[k]][t.cols[k]] += t.values[k];
+                }
+            });
+            MatrixStats.parsed(file.length(), start);
+            return new Matrix(array);
+        }
+        finally {
+            br.close();
+        }
+    }
+
+    /**
+     * Считывает матрицу из файла в разреженном виде. Объем памяти
+     * пропорционален количеству записей в файле.
+     * @return разреженная матрица, считанная из файла.
+     * @throws Exception неверный формат файла.
+     */
+    public SparseMatrix readSparse() throws Exception {
+        long start = MatrixStats.start();
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        try {
+            Header h = readHeader(br);
+            //массивы растут по мере чтения: заголовку нельзя доверять
+            final Triplets all = new Triplets(0);
+            parseEntries(br, h, new TripletSink() {
+                public void accept(Triplets t) throws Exception {
+                    all.addAll(t);
+                }
+            });
+            SparseMatrix res = new SparseMatrix(h.rows, h.cols, all.rows, all.cols, all.values, all.size);
+            MatrixStats.parsed(file.length(), start);
+            return res;
+        }
+        finally {
+            br.close();
+        }
+    }
+
+    /**
+     * Считывает баннер, комментарии и строку с размерами.
+     * @param br поток файла.
+     * @return заголовок файла.
+     * @throws Exception неверный формат файла.
+     */
+    private Header readHeader(BufferedReader br) throws Exception {
+        String banner = br.readLine();
+        if (banner == null)
+            throw new Exception("Invalid format of file! File is empty.");
+        String[] words = banner.trim().toLowerCase(Locale.US).split("\\s+");
+        if (words.length != 5 || !words[0].equals("%%matrixmarket") || !words[1].equals("matrix"))
+            throw new Exception("Invalid format of file! Expected MatrixMarket banner.");
+        if (!words[2].equals("coordinate"))
+            throw new Exception("Unsupported MatrixMarket format '" + words[2] + "'!");
+        Header h = new Header();
+        if (words[3].equals("pattern"))
+            h.pattern = true;
+        else if (!words[3].equals("real") && !words[3].equals("integer"))
+            throw new Exception("Unsupported MatrixMarket field '" + words[3] + "'!");
+        if (words[4].equals("symmetric"))
+            h.symmetric = true;
+        else if (words[4].equals("skew-symmetric"))
+            h.skew = true;
+        else if (!words[4].equals("general"))
+            throw new Exception("Unsupported MatrixMarket symmetry '" + words[4] + "'!");
+        int lineNo = 1;
+        String line;
+        do {
+            line = br.readLine();
+            lineNo++;
+        } while (line != null && (line.startsWith("%") || line.trim().isEmpty()));
+        if (line == null)
+            throw new Exception("Invalid format of file! Missing size line.");
+        String[] size = line.trim().split("\\s+");
+        if (size.length != 3)
+            throw new Exception("Invalid format of file! Bad size line " + lineNo + ".");
+        try {
+            h.rows = Integer.parseInt(size[0]);
+            h.cols = Integer.parseInt(size[1]);
+            h.entries = Integer.parseInt(size[2]);
+        }
+        catch (NumberFormatException e) {
+            throw new Exception("Invalid format of file! Bad size line " + lineNo + ".");
+        }
+        if (h.rows < 0 || h.cols < 0 || h.entries < 0)
+            throw new Exception("Invalid format of file! Bad size line " + lineNo + ".");
+        if (h.entries > (long) h.rows * h.cols)
+            throw new Exception("Invalid format of file! " + h.entries + " entries in "
+                    + h.rows + "x" + h.cols + " matrix.");
+        h.firstLine = lineNo + 1;
+        return h;
+    }
+
+    /**
+     * Читает записи блоками и передает их на разбор. Разобранные блоки
+     * отдаются получателю в исходном порядке; количество блоков в работе
+     * ограничено, чтобы не держать в памяти весь файл.
+     * @param br поток файла, установленный после строки с размерами.
+     * @param h заголовок файла.
+     * @param sink получатель разобранных блоков.
+     * @throws Exception неверный формат файла.
+     */
+    private void parseEntries(BufferedReader br, final Header h, TripletSink sink) throws Exception {
+        ExecutorService pool = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+        Queue<Future<Triplets>> inFlight = new ArrayDeque<Future<Triplets>>();
+        int read = 0;
+        int lineNo = h.firstLine;
+        try {
+            while (true) {
+                String[] chunk = new String[CHUNK_LINES];
+                int n = 0;
+                final int chunkStart = lineNo;
+                String line;
+                while (n < CHUNK_LINES && (line = br.readLine()) != null) {
+                    lineNo++;
+                    chunk[n++] = line;
+                }
+                if (n == 0)
+                    break;
+                final String[] lines = chunk;
+                final int count = n;
+                Callable<Triplets> task = new Callable<Triplets>() {
+                    public Triplets call() throws Exception {
+                        return parseChunk(lines, count, chunkStart, h);
+                    }
+                };
+                if (pool == null) {
+                    Triplets t = task.call();
+                    read = deliver(t, read, h, sink);
+                    continue;
+                }
+                inFlight.add(pool.submit(task));
+                if (inFlight.size() >= 2 * threads) {
+                    Triplets t = take(inFlight.remove());
+                    read = deliver(t, read, h, sink);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                Triplets t = take(inFlight.remove());
+                read = deliver(t, read, h, sink);
+            }
+        }
+        finally {
+            if (pool != null)
+                pool.shutdownNow();
+        }
+        if (read != h.entries)
+            throw new Exception("Invalid format of file! Expected " + h.entries
+                    + " entries, found " + read + ".");
+    }
+
+    /**
+     * Передает разобранный блок получателю, проверив, что записей в файле
+     * не больше, чем указано в заголовке.
+     * @param t разобранный блок.
+     * @param read количество записей, переданных ранее.
+     * @param h заголовок файла.
+     * @param sink получатель разобранных блоков.
+     * @return количество записей, переданных с учетом этого блока.
+     * @throws Exception записей больше, чем указано в заголовке.
+     */
+    static private int deliver(Triplets t, int read, Header h, TripletSink sink) throws Exception {
+        read += countEntries(t, h);
+        if (read > h.entries)
+            throw new Exception("Invalid format of file! More than " + h.entries + " entries.");
+        sink.accept(t);
+        return read;
+    }
+
+    /**
+     * Дожидается разбора блока.
+     * @param f задача разбора блока.
+     * @return разобранный блок.
+     * @throws Exception ошибка разбора блока.
+     */
+    static private Triplets take(Future<Triplets> f) throws Exception {
+        try {
+            return f.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Количество записей файла, из которых получен блок. Для симметричных
+     * матриц внедиагональные записи дают по два элемента.
+     * @param t разобранный блок.
+     * @param h заголовок файла.
+     * @return количество записей.
+     */
+    static private int countEntries(Triplets t, Header h) {
+        if (!h.symmetric && !h.skew)
+            return t.size;
+        int res = 0;
+        for (int k = 0; k < t.size; k++)
+            if (t.rows[k] >= t.cols[k])
+                res++;
+        return res;
+    }
+
+    /**
+     * Разбирает блок строк с записями.
+     * @param lines строки блока.
+     * @param count количество строк в блоке.
+     * @param firstLine номер первой строки блока в файле.
+     * @param h заголовок файла.
+     * @return разобранный блок.
+     * @throws Exception неверный формат записи.
+     */
+    static private Triplets parseChunk(String[] lines, int count, int firstLine, Header h) throws Exception {
+        boolean mirror = h.symmetric || h.skew;
+        Triplets t = new Triplets(mirror ? 2 * count : count);
+        for (int k = 0; k < count; k++) {
+            String line = lines[k].trim();
+            if (line.isEmpty() || line.startsWith("%"))
+                continue;
+            String[] words = line.split("\\s+");
+            int i, j;
+            double v = 1;
+            try {
+                if (words.length != (h.pattern ? 2 : 3))
+                    throw new NumberFormatException();
+                i = Integer.parseInt(words[0]) - 1;
+                j = Integer.parseInt(words[1]) - 1;
+                if (!h.pattern)
+                    v = Double.parseDouble(words[2]);
+            }
+            catch (NumberFormatException e) {
+                throw new Exception("Invalid format of file! Bad entry at line " + (firstLine + k) + ".");
+            }
+            if (i < 0 || i >= h.rows || j < 0 || j >= h.cols)
+                throw new Exception("Invalid format of file! Index out of range at line " + (firstLine + k) + ".");
+            if (mirror && i < j)
+                throw new Exception("Invalid format of file! Entry above diagonal at line "
+                        + (firstLine + k) + ".");
+            t.add(i, j, v);
+            if (mirror && i != j)
+                t.add(j, i, h.skew ? -v : v);
+        }
+        return t;
+    }
+}
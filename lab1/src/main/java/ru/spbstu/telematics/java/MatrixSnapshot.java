@@ -0,0 +1,242 @@
+package ru.spbstu.telematics.java;
+
+import java.util.Arrays;
+
+/**
+ * Неизменяемый снимок матрицы. Снимок можно без копирования передавать
+ * между потоками: его строки никогда не изменяются, а ссылка на них хранится
+ * в final-поле. <br>
+ * Изменения создают новый снимок с копированием при записи: новые снимки
+ * разделяют со старыми все строки, кроме измененных. Для серии изменений
+ * используется {@link MatrixSnapshot.Editor}, который копирует каждую строку
+ * не больше одного раза. <br>
+ * Производные значения (определитель, хэш содержимого) вычисляются один раз
+ * и запоминаются; публиковать их безопасно.
+ * @see Matrix#snapshot()
+ */
+public final class MatrixSnapshot {
+    /**
+     * Строки матрицы. Не изменяются после создания снимка и могут быть общими
+     * для нескольких снимков.
+     */
+    final double[][] rows;
+
+    /**
+     * Количество столбцов.
+     */
+    private final int cols;
+
+    /**
+     * Запомненный определитель или <code>null</code>, если он еще не вычислялся.
+     */
+    private volatile Double determinant;
+
+    /**
+     * Запомненный хэш содержимого или <code>null</code>.
+     */
+    private volatile MatrixHash hash;
+
+    /**
+     * Конструктор. Массив строк не копируется.
+     * @param rows строки одинаковой длины, которые больше никто не изменяет.
+     */
+    private MatrixSnapshot(double[][] rows) {
+        this.rows = rows;
+        this.cols = (rows.length == 0) ? 0 : rows[0].length;
+    }
+
+    /**
+     * Создает снимок матрицы. Элементы копируются один раз, дальнейшие
+     * изменения матрицы на снимок не влияют.
+     * @param m матрица.
+     * @return снимок матрицы.
+     */
+    public static MatrixSnapshot of(Matrix m) {
+        double[][] a = m.getMatrix();
+        double[][] copy = new double[a.length][];
+        for (int i = 0; i < a.length; i++)
+            copy[i] = a[i].clone();
+        return new MatrixSnapshot(copy);
+    }
+
+    /**
+     * @return количество строк.
+     */
+    public int getRows() {
+        return rows.length;
+    }
+
+    /**
+     * @return количество столбцов.
+     */
+    public int getColumns() {
+        return cols;
+    }
+
+    /**
+     * Доступ к отдельному элементу матрицы на чтение.
+     * @param i номер строки, нумеруется с 0.
+     * @param j номер столбца, нумеруется с 0.
+     * @return значение элемента ij.
+     * @throws ArrayIndexOutOfBoundsException в случае некорректных индексов.
+     */
+    public double getElement(int i, int j) throws ArrayIndexOutOfBoundsException {
+        return rows[i][j];
+    }
+
+    /**
+     * @param i номер строки, нумеруется с 0.
+     * @return копия строки.
+     */
+    public double[] getRow(int i) {
+        return rows[i].clone();
+    }
+
+    /**
+     * Новый снимок с одним измененным элементом. Копируется только
+     * измененная строка и массив ссылок на строки.
+     * @param i номер строки, нумеруется с 0.
+     * @param j номер столбца, нумеруется с 0.
+     * @param val новое значение элемента.
+     * @return новый снимок.
+     * @throws ArrayIndexOutOfBoundsException в случае некорректных индексов.
+     */
+    public MatrixSnapshot with(int i, int j, double val) throws ArrayIndexOutOfBoundsException {
+        double[] row = rows[i].clone();
+        row[j] = val;
+        double[][] res = rows.clone();
+        res[i] = row;
+        return new MatrixSnapshot(res);
+    }
+
+    /**
+     * @return редактор, начальное состояние которого -- этот снимок.
+     */
+    public Editor edit() {
+        return new Editor(this);
+    }
+
+    /**
+     * @return изменяемая матрица с копией элементов снимка.
+     */
+    public Matrix toMatrix() {
+        double[][] copy = new double[rows.length][];
+        for (int i = 0; i < rows.length; i++)
+            copy[i] = rows[i].clone();
+        return new Matrix(copy);
+    }
+
+    /**
+     * Определитель матрицы, вычисляется при первом вызове.
+     * @return определитель матрицы.
+     * @throws Exception если матрица не квадратная.
+     * @see Matrix#determinant()
+     */
+    public double determinant() throws Exception {
+        Double d = determinant;
+        if (d == null) {
+            //Matrix только читает общие строки, копии не нужны
+            d = new Matrix(rows).determinant();
+            determinant = d;
+        }
+        return d;
+    }
+
+    /**
+     * Хэш содержимого матрицы, вычисляется при первом вызове.
+     * @return хэш содержимого.
+     * @see MatrixHash
+     */
+    public MatrixHash hash() {
+        MatrixHash h = hash;
+        if (h == null) {
+            h = MatrixHash.of(new Matrix(rows));
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof MatrixSnapshot)) return false;
+        return Arrays.deepEquals(rows, ((MatrixSnapshot) o).rows);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash().hashCode();
+    }
+
+    /**
+     * @return строковое представление матрицы.
+     */
+    @Override
+    public String toString() {
+        return new Matrix(rows).toString();
+    }
+
+    /**
+     * Редактор снимков. Разделяет строки с исходным снимком и копирует
+     * строку при первой записи в нее. Редактор не потокобезопасен.
+     */
+    public static final class Editor {
+        /**
+         * Текущие строки.
+         */
+        private double[][] rows;
+
+        /**
+         * Строки, которые уже скопированы этим редактором и принадлежат ему.
+         */
+        private boolean[] owned;
+
+        /**
+         * Конструктор.
+         * @param base исходный снимок.
+         */
+        private Editor(MatrixSnapshot base) {
+            rows = base.rows.clone();
+            owned = new boolean[rows.length];
+        }
+
+        /**
+         * Доступ к отдельному элементу на чтение.
+         * @param i номер строки, нумеруется с 0.
+         * @param j номер столбца, нумеруется с 0.
+         * @return значение элемента ij.
+         */
+        public double get(int i, int j) {
+            return rows[i][j];
+        }
+
+        /**
+         * Доступ к отдельному элементу на запись. Строка копируется при
+         * первой записи.
+         * @param i номер строки, нумеруется с 0.
+         * @param j номер столбца, нумеруется с 0.
+         * @param val новое значение элемента.
+         * @return этот редактор.
+         */
+        public Editor set(int i, int j, double val) {
+            if (!owned[i]) {
+                rows[i] = rows[i].clone();
+                owned[i] = true;
+            }
+            rows[i][j] = val;
+            return this;
+        }
+
+        /**
+         * Создает снимок из текущего состояния. Строки передаются снимку, и
+         * последующие записи через редактор снова копируют их.
+         * @return новый снимок.
+         */
+        public MatrixSnapshot snapshot() {
+            MatrixSnapshot res = new MatrixSnapshot(rows);
+            rows = rows.clone();
+            owned = new boolean[rows.length];
+            return res;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package ru.spbstu.telematics.java;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Накопительные счетчики операций с матрицами, доступные через JMX.
+ * Счетчики -- {@link LongAdder}, поэтому обновление из нескольких потоков
+ * почти не создает конкуренции. <br>
+ * Сбор статистики отключается системным свойством
+ * <code>-Dru.spbstu.telematics.java.stats=false</code>: флаг
+ * {@link MatrixStats#ENABLED} -- константа, и JIT убирает все обращения к
+ * счетчикам, а MBean не регистрируется.
+ * @see MatrixStatsMXBean
+ */
+public final class MatrixStats implements MatrixStatsMXBean {
+    /**
+     * Включен ли сбор статистики.
+     */
+    public static final boolean ENABLED =
+            !"false".equalsIgnoreCase(System.getProperty("ru.spbstu.telematics.java.stats"));
+
+    /**
+     * Имя, под которым MBean регистрируется в платформенном MBean-сервере.
+     */
+    public static final String OBJECT_NAME = "ru.spbstu.telematics.java:type=MatrixStats";
+
+    /**
+     * Количество интервалов в гистограммах времени.
+     */
+    static final int BUCKETS = 32;
+
+    /**
+     * Стратегия вычисления определителя.
+     */
+    public enum Strategy {
+        /**
+         * Разложение по строке или столбцу, {@link Matrix#determinant()}.
+         */
+        COFACTOR,
+        /**
+         * LU-разложение, {@link LUDecomposition}.
+         */
+        LU,
+        /**
+         * Результат взят из {@link DeterminantCache}.
+         */
+        CACHED,
+        /**
+         * Блочное LU-разложение на рабочих процессах, {@link DistributedDeterminant}.
+         */
+        DISTRIBUTED
+    }
+
+    /**
+     * Единственный экземпляр.
+     */
+    static final MatrixStats INSTANCE = new MatrixStats();
+
+    /**
+     * Количество вычислений определителя, по стратегиям.
+     */
+    private final LongAdder[] calls = newAdders(Strategy.values().length);
+
+    /**
+     * Количество созданных матриц миноров.
+     */
+    private final LongAdder minors = new LongAdder();
+
+    /**
+     * Количество операций с плавающей точкой.
+     */
+    private final LongAdder flops = new LongAdder();
+
+    /**
+     * Количество считанных матриц.
+     */
+    private final LongAdder parsed = new LongAdder();
+
+    /**
+     * Количество считанных байт.
+     */
+    private final LongAdder bytesParsed = new LongAdder();
+
+    /**
+     * Суммарное время считывания в наносекундах.
+     */
+    private final LongAdder parseNanos = new LongAdder();
+
+    /**
+     * Суммарное время вычисления определителей в наносекундах.
+     */
+    private final LongAdder computeNanos = new LongAdder();
+
+    /**
+     * Гистограмма времени считывания.
+     */
+    private final LongAdder[] parseHistogram = newAdders(BUCKETS);
+
+    /**
+     * Гистограмма времени вычисления определителей.
+     */
+    private final LongAdder[] computeHistogram = newAdders(BUCKETS);
+
+    /**
+     * Количество попаданий в кэш определителей.
+     */
+    private final LongAdder cacheHits = new LongAdder();
+
+    /**
+     * Количество промахов кэша определителей.
+     */
+    private final LongAdder cacheMisses = new LongAdder();
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+            }
+            catch (JMException ignored) {
+                //уже зарегистрирован другим загрузчиком классов
+            }
+        }
+    }
+
+    private MatrixStats() {
+    }
+
+    /**
+     * @return экземпляр со счетчиками, зарегистрированный в MBean-сервере.
+     */
+    public static MatrixStats getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Создает массив счетчиков.
+     * @param n размер массива.
+     * @return массив новых счетчиков.
+     */
+    static private LongAdder[] newAdders(int n) {
+        LongAdder[] res = new LongAdder[n];
+        for (int i = 0; i < n; i++)
+            res[i] = new LongAdder();
+        return res;
+    }
+
+    /**
+     * Номер интервала гистограммы для длительности.
+     * @param nanos длительность в наносекундах.
+     * @return номер интервала.
+     */
+    static int bucket(long nanos) {
+        int b = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+        return (b < BUCKETS) ? b : BUCKETS - 1;
+    }
+
+    /**
+     * @return текущее время для замера длительности или 0, если статистика отключена.
+     */
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Учитывает вычисление определителя.
+     * @param s стратегия вычисления.
+     * @param startNanos время начала, полученное от {@link MatrixStats#start()}.
+     * @param ops количество операций с плавающей точкой.
+     */
+    static void determinant(Strategy s, long startNanos, long ops) {
+        if (!ENABLED)
+            return;
+        long nanos = System.nanoTime() - startNanos;
+        INSTANCE.calls[s.ordinal()].increment();
+        INSTANCE.flops.add(ops);
+        INSTANCE.computeNanos.add(nanos);
+        INSTANCE.computeHistogram[bucket(nanos)].increment();
+    }
+
+    /**
+     * Учитывает создание матрицы минора.
+     */
+    static void minor() {
+        if (ENABLED)
+            INSTANCE.minors.increment();
+    }
+
+    /**
+     * Учитывает операции с плавающей точкой.
+     * @param ops количество операций.
+     */
+    static void flops(long ops) {
+        if (ENABLED)
+            INSTANCE.flops.add(ops);
+    }
+
+    /**
+     * Учитывает считывание матрицы.
+     * @param bytes размер считанных данных в байтах.
+     * @param startNanos время начала, полученное от {@link MatrixStats#start()}.
+     */
+    static void parsed(long bytes, long startNanos) {
+        if (!ENABLED)
+            return;
+        long nanos = System.nanoTime() - startNanos;
+        INSTANCE.parsed.increment();
+        INSTANCE.bytesParsed.add(bytes);
+        INSTANCE.parseNanos.add(nanos);
+        INSTANCE.parseHistogram[bucket(nanos)].increment();
+    }
+
+    /**
+     * Учитывает обращение к кэшу определителей.
+     * @param hit <code>true</code> для попадания, <code>false</code> для промаха.
+     */
+    static void cache(boolean hit) {
+        if (!ENABLED)
+            return;
+        if (hit)
+            INSTANCE.cacheHits.increment();
+        else
+            INSTANCE.cacheMisses.increment();
+    }
+
+    /**
+     * Значения массива счетчиков.
+     * @param adders счетчики.
+     * @return массив сумм.
+     */
+    static private long[] sums(LongAdder[] adders) {
+        long[] res = new long[adders.length];
+        for (int i = 0; i < adders.length; i++)
+            res[i] = adders[i].sum();
+        return res;
+    }
+
+    public boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public Map<String, Long> getDeterminantCalls() {
+        Map<String, Long> res = new LinkedHashMap<String, Long>();
+        for (Strategy s : Strategy.values())
+            res.put(s.name(), calls[s.ordinal()].sum());
+        return res;
+    }
+
+    /**
+     * @param s стратегия вычисления.
+     * @return количество вычислений определителя по стратегии.
+     */
+    public long getDeterminantCalls(Strategy s) {
+        return calls[s.ordinal()].sum();
+    }
+
+    public long getMinorsAllocated() {
+        return minors.sum();
+    }
+
+    public long getFlops() {
+        return flops.sum();
+    }
+
+    public long getMatricesParsed() {
+        return parsed.sum();
+    }
+
+    public long getBytesParsed() {
+        return bytesParsed.sum();
+    }
+
+    public long getParseNanos() {
+        return parseNanos.sum();
+    }
+
+    public long getComputeNanos() {
+        return computeNanos.sum();
+    }
+
+    public long[] getParseLatencyHistogram() {
+        return sums(parseHistogram);
+    }
+
+    public long[] getComputeLatencyHistogram() {
+        return sums(computeHistogram);
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    public void reset() {
+        for (LongAdder a : calls)
+            a.reset();
+        for (LongAdder a : parseHistogram)
+            a.reset();
+        for (LongAdder a : computeHistogram)
+            a.reset();
+        minors.reset();
+        flops.reset();
+        parsed.reset();
+        bytesParsed.reset();
+        parseNanos.reset();
+        computeNanos.reset();
+        cacheHits.reset();
+        cacheMisses.reset();
+    }
+}
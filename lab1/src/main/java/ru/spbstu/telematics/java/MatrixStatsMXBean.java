@@ -0,0 +1,82 @@
+package ru.spbstu.telematics.java;
+
+import java.util.Map;
+
+/**
+ * Интерфейс управления для счетчиков {@link MatrixStats}. Регистрируется в
+ * платформенном MBean-сервере под именем {@link MatrixStats#OBJECT_NAME}.
+ * Все счетчики накопительные, с момента запуска или последнего
+ * вызова {@link MatrixStatsMXBean#reset()}.
+ * @see MatrixStats
+ */
+public interface MatrixStatsMXBean {
+    /**
+     * @return <code>true</code>, если сбор статистики включен.
+     */
+    boolean isEnabled();
+
+    /**
+     * @return количество вычислений определителя по каждой стратегии.
+     * @see MatrixStats.Strategy
+     */
+    Map<String, Long> getDeterminantCalls();
+
+    /**
+     * @return количество созданных матриц миноров.
+     */
+    long getMinorsAllocated();
+
+    /**
+     * @return количество арифметических операций с плавающей точкой.
+     */
+    long getFlops();
+
+    /**
+     * @return количество считанных матриц.
+     */
+    long getMatricesParsed();
+
+    /**
+     * @return количество считанных байт.
+     */
+    long getBytesParsed();
+
+    /**
+     * @return суммарное время считывания матриц в наносекундах.
+     */
+    long getParseNanos();
+
+    /**
+     * @return суммарное время вычисления определителей в наносекундах.
+     */
+    long getComputeNanos();
+
+    /**
+     * Гистограмма времени считывания: элемент <code>k</code> -- количество
+     * считываний, длившихся меньше 2^k микросекунд, но не меньше 2^(k-1).
+     * @return гистограмма времени считывания.
+     */
+    long[] getParseLatencyHistogram();
+
+    /**
+     * Гистограмма времени вычисления определителей, устроена так же, как
+     * {@link MatrixStatsMXBean#getParseLatencyHistogram()}.
+     * @return гистограмма времени вычисления.
+     */
+    long[] getComputeLatencyHistogram();
+
+    /**
+     * @return количество попаданий в кэш определителей.
+     */
+    long getCacheHits();
+
+    /**
+     * @return количество промахов кэша определителей.
+     */
+    long getCacheMisses();
+
+    /**
+     * Обнуляет все счетчики.
+     */
+    void reset();
+}
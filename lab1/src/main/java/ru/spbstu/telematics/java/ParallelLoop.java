@@ -0,0 +1,79 @@
+package ru.spbstu.telematics.java;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Параллельный цикл по диапазону индексов для плотных вычислительных ядер.
+ * Диапазон делится на участки, которые выполняются в общем пуле
+ * {@link ForkJoinPool#commonPool()}.
+ */
+final class ParallelLoop {
+    /**
+     * Использовать ли несколько потоков.
+     */
+    static boolean USE_THREADS = true;
+
+    /**
+     * Тело цикла для участка индексов.
+     */
+    interface Body {
+        /**
+         * Выполняет итерации с <code>from</code> по <code>to - 1</code>.
+         * @param from первый индекс участка.
+         * @param to индекс после последнего индекса участка.
+         */
+        void run(int from, int to);
+    }
+
+    private ParallelLoop() {
+    }
+
+    /**
+     * Выполняет цикл по индексам с <code>from</code> по <code>to - 1</code>.
+     * Если итераций меньше, чем <code>2 * minChunk</code>, или потоки
+     * отключены, цикл выполняется в текущем потоке.
+     * @param from первый индекс.
+     * @param to индекс после последнего.
+     * @param minChunk минимальное количество итераций в участке.
+     * @param body тело цикла.
+     */
+    static void forRange(int from, int to, int minChunk, final Body body) {
+        int n = to - from;
+        int threads = ForkJoinPool.getCommonPoolParallelism();
+        if (!USE_THREADS || threads < 2 || n < 2 * minChunk) {
+            body.run(from, to);
+            return;
+        }
+        int chunks = Math.min(threads * 2, n / minChunk);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            final int lo = from + (int) ((long) n * c / chunks);
+            final int hi = from + (int) ((long) n * (c + 1) / chunks);
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    body.run(lo, hi);
+                    return null;
+                }
+            });
+        }
+        for (Future<Void> f : ForkJoinPool.commonPool().invokeAll(tasks)) {
+            try {
+                f.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package ru.spbstu.telematics.java;
+
+import java.util.Arrays;
+
+/**
+ * Разреженная матрица в формате CSR (compressed sparse row). Хранятся
+ * только ненулевые элементы, поэтому объем памяти пропорционален их
+ * количеству, а не размеру матрицы.
+ * @see MatrixMarketReader
+ * @see Matrix
+ */
+public class SparseMatrix {
+    /**
+     * Количество строк.
+     */
+    final int rows;
+
+    /**
+     * Количество столбцов.
+     */
+    final int cols;
+
+    /**
+     * Начала строк в массивах {@link SparseMatrix#columns} и
+     * {@link SparseMatrix#values}. Элементы строки <code>i</code> занимают
+     * индексы с <code>rowStart[i]</code> по <code>rowStart[i + 1] - 1</code>.
+     */
+    final int[] rowStart;
+
+    /**
+     * Номера столбцов элементов, внутри строки упорядочены по возрастанию.
+     */
+    final int[] columns;
+
+    /**
+     * Значения элементов.
+     */
+    final double[] values;
+
+    /**
+     * Конструктор, строит CSR-представление по списку троек
+     * (строка, столбец, значение). Повторяющиеся позиции суммируются.
+     * Массивы троек не сохраняются и могут быть переиспользованы.
+     * @param rows количество строк.
+     * @param cols количество столбцов.
+     * @param rowIdx номера строк элементов, нумеруются с 0.
+     * @param colIdx номера столбцов элементов, нумеруются с 0.
+     * @param vals значения элементов.
+     * @param size количество троек.
+     * @throws ArrayIndexOutOfBoundsException если номер строки или столбца
+     * выходит за пределы матрицы.
+     */
+    public SparseMatrix(int rows, int cols, int[] rowIdx, int[] colIdx, double[] vals, int size)
+            throws ArrayIndexOutOfBoundsException {
+        this.rows = rows;
+        this.cols = cols;
+        //сортировка подсчетом по строкам
+        int[] start = new int[rows + 1];
+        for (int k = 0; k < size; k++) {
+            if (rowIdx[k] < 0 || rowIdx[k] >= rows || colIdx[k] < 0 || colIdx[k] >= cols)
+                throw new ArrayIndexOutOfBoundsException("Element (" + rowIdx[k] + ", " + colIdx[k]
+                        + ") is out of " + rows + "x" + cols + " matrix!");
+            start[rowIdx[k] + 1]++;
+        }
+        for (int i = 0; i < rows; i++)
+            start[i + 1] += start[i];
+        int[] pos = Arrays.copyOf(start, rows);
+        int[] c = new int[size];
+        double[] v = new double[size];
+        for (int k = 0; k < size; k++) {
+            int p = pos[rowIdx[k]]++;
+            c[p] = colIdx[k];
+            v[p] = vals[k];
+        }
+        //сортируем каждую строку по столбцам и складываем повторы
+        int nnz = 0;
+        for (int i = 0; i < rows; i++) {
+            int from = start[i];
+            int to = start[i + 1];
+            sortRow(c, v, from, to);
+            start[i] = nnz;
+            for (int p = from; p < to; p++) {
+                if (nnz > start[i] && c[nnz - 1] == c[p]) {
+                    v[nnz - 1] += v[p];
+                }
+                else {
+                    c[nnz] = c[p];
+                    v[nnz] = v[p];
+                    nnz++;
+                }
+            }
+        }
+        start[rows] = nnz;
+        rowStart = start;
+        columns = (nnz == size) ? c : Arrays.copyOf(c, nnz);
+        values = (nnz == size) ? v : Arrays.copyOf(v, nnz);
+    }
+
+    /**
+     * Длина строки, начиная с которой вместо сортировки вставками
+     * используется сортировка массива ключей.
+     */
+    static final int INSERTION_SORT_LIMIT = 32;
+
+    /**
+     * Сортировка участка строки по номерам столбцов. Строки разреженных
+     * матриц обычно короткие и почти упорядочены, поэтому они сортируются
+     * вставками; длинные строки сортируются за O(k log k) через массив
+     * ключей, в котором номер столбца дополнен номером элемента.
+     * @param c номера столбцов.
+     * @param v значения.
+     * @param from начало участка.
+     * @param to конец участка (не включается).
+     */
+    static private void sortRow(int[] c, double[] v, int from, int to) {
+        if (to - from > INSERTION_SORT_LIMIT) {
+            long[] keys = new long[to - from];
+            for (int p = from; p < to; p++)
+                keys[p - from] = ((long) c[p] << 32) | (p - from);
+            Arrays.sort(keys);
+            double[] vals = Arrays.copyOfRange(v, from, to);
+            for (int p = from; p < to; p++) {
+                long key = keys[p - from];
+                c[p] = (int) (key >>> 32);
+                v[p] = vals[(int) key];
+            }
+            return;
+        }
+        for (int p = from + 1; p < to; p++) {
+            int col = c[p];
+            double val = v[p];
+            int q = p - 1;
+            while (q >= from && c[q] > col) {
+                c[q + 1] = c[q];
+                v[q + 1] = v[q];
+                q--;
+            }
+            c[q + 1] = col;
+            v[q + 1] = val;
+        }
+    }
+
+    /**
+     * @return количество строк.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return количество столбцов.
+     */
+    public int getColumns() {
+        return cols;
+    }
+
+    /**
+     * @return количество хранимых элементов.
+     */
+    public int getNonZeros() {
+        return values.length;
+    }
+
+    /**
+     * Доступ к отдельному элементу матрицы на чтение.
+     * Элемент ищется двоичным поиском внутри строки.
+     * @param i номер строки, нумеруется с 0.
+     * @param j номер столбца, нумеруется с 0.
+     * @return значение элемента ij.
+     * @throws ArrayIndexOutOfBoundsException в случае некорректных индексов.
+     */
+    public double getElement(int i, int j) throws ArrayIndexOutOfBoundsException {
+        if (i < 0 || i >= rows || j < 0 || j >= cols)
+            throw new ArrayIndexOutOfBoundsException("Element (" + i + ", " + j + ") is out of matrix!");
+        int p = Arrays.binarySearch(columns, rowStart[i], rowStart[i + 1], j);
+        return (p < 0) ? 0 : values[p];
+    }
+
+    /**
+     * Преобразует разреженную матрицу в плотную.
+     * @return плотная матрица с теми же элементами.
+     * @see Matrix
+     */
+    public Matrix toMatrix() {
+        double[][] array = new double[rows][cols];
+        for (int i = 0; i < rows; i++)
+            for (int p = rowStart[i]; p < rowStart[i + 1]; p++)
+                array[i][columns[p]] = values[p];
+        return new Matrix(array);
+    }
+
+    /**
+     * @return строковое представление в виде списка ненулевых элементов.
+     */
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder();
+        res.append(rows).append("x").append(cols).append(", nnz = ").append(values.length).append("\n");
+        for (int i = 0; i < rows; i++)
+            for (int p = rowStart[i]; p < rowStart[i + 1]; p++)
+                res.append("(").append(i).append(", ").append(columns[p]).append(") ")
+                        .append(values[p]).append("\n");
+        return res.toString();
+    }
+}
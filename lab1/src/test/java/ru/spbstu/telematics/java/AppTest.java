@@ -4,8 +4,27 @@ import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * Тесты для вычисления определителя матрицы
@@ -79,4 +98,558 @@ public class AppTest
         }
         System.out.println("Tests are passed");
     }
+
+    /**
+     * Записывает текст во временный файл.
+     * @param suffix расширение файла.
+     * @param text содержимое файла.
+     * @return временный файл, удаляется при завершении.
+     */
+    private static File tempFile(String suffix, String text) throws IOException {
+        File f = File.createTempFile("matrix", suffix);
+        f.deleteOnExit();
+        FileWriter w = new FileWriter(f);
+        w.write(text);
+        w.close();
+        return f;
+    }
+
+    /**
+     * Считывание матрицы в формате MatrixMarket: симметрия, комментарии,
+     * повторяющиеся записи и разбор несколькими блоками.
+     */
+    public void testMatrixMarket() throws Exception
+    {
+        File f = tempFile(".mtx", "%%MatrixMarket matrix coordinate real symmetric\n"
+                + "% comment\n"
+                + "3 3 5\n"
+                + "1 1 3\n"
+                + "2 1 1\n"
+                + "3 3 1\n"
+                + "3 2 2.5\n"
+                + "3 3 1\n");
+        Matrix m = new MatrixMarketReader(f).read();
+        assertEquals(1.0, m.getElement(0, 1));
+        assertEquals(2.5, m.getElement(1, 2));
+        assertEquals(2.0, m.getElement(2, 2));
+        assertEquals(m.determinant(), new Matrix(new double[][] {{3, 1, 0}, {1, 0, 2.5}, {0, 2.5, 2}}).determinant());
+        SparseMatrix s = new MatrixMarketReader(f).readSparse();
+        assertEquals(6, s.getNonZeros());
+        assertEquals(0.0, s.getElement(0, 2));
+        assertEquals(2.0, s.getElement(2, 2));
+        assertEquals(m.determinant(), s.toMatrix().determinant());
+
+        int n = 3 * MatrixMarketReader.CHUNK_LINES / 2;
+        StringBuilder text = new StringBuilder("%%MatrixMarket matrix coordinate pattern general\n");
+        text.append(n).append(' ').append(n).append(' ').append(n).append('\n');
+        for (int i = n; i > 0; i--)
+            text.append(i).append(' ').append(n + 1 - i).append('\n');
+        s = new MatrixMarketReader(tempFile(".mtx", text.toString())).readSparse();
+        assertEquals(n, s.getNonZeros());
+        assertEquals(1.0, s.getElement(0, n - 1));
+        assertEquals(1.0, s.getElement(n - 1, 0));
+        assertEquals(0.0, s.getElement(0, 0));
+        SparseMatrix single = new MatrixMarketReader(tempFile(".mtx", text.toString()), 1).readSparse();
+        assertEquals(s.toString(), single.toString());
+
+        //длинная строка в обратном порядке с повторами
+        int k = 4 * SparseMatrix.INSERTION_SORT_LIMIT;
+        text = new StringBuilder("%%MatrixMarket matrix coordinate real general\n");
+        text.append(1).append(' ').append(k).append(' ').append(k).append('\n');
+        for (int j = k; j > 1; j--)
+            text.append("1 ").append(j).append(' ').append(j).append('\n');
+        text.append("1 ").append(k).append(" 1\n");
+        s = new MatrixMarketReader(tempFile(".mtx", text.toString())).readSparse();
+        assertEquals(k - 1, s.getNonZeros());
+        assertEquals(0.0, s.getElement(0, 0));
+        for (int j = 1; j < k - 1; j++)
+            assertEquals(j + 1.0, s.getElement(0, j));
+        assertEquals(k + 1.0, s.getElement(0, k - 1));
+
+        try {
+            new MatrixMarketReader(tempFile(".mtx", "%%MatrixMarket matrix coordinate real general\n"
+                    + "2 2 2\n1 1 1\n")).read();
+            fail("Missing entries are not detected");
+        }
+        catch (Exception e) {
+            assertTrue(e.getMessage().startsWith("Invalid format of file!"));
+        }
+        try {
+            new MatrixMarketReader(tempFile(".mtx", "%%MatrixMarket matrix coordinate real general\n"
+                    + "2 2 5\n1 1 1\n")).readSparse();
+            fail("Too many entries in header are accepted");
+        }
+        catch (Exception e) {
+            assertEquals("Invalid format of file! 5 entries in 2x2 matrix.", e.getMessage());
+        }
+        //заголовок обещает миллиарды записей, но память под них не выделяется
+        try {
+            new MatrixMarketReader(tempFile(".mtx", "%%MatrixMarket matrix coordinate real symmetric\n"
+                    + "100000 100000 2000000000\n1 1 1\n")).readSparse();
+            fail("Missing entries are not detected");
+        }
+        catch (Exception e) {
+            assertEquals("Invalid format of file! Expected 2000000000 entries, found 1.", e.getMessage());
+        }
+    }
+
+    /**
+     * LU-разложение дает тот же определитель, что и метод миноров.
+     */
+    public void testLUDecomposition() throws Exception
+    {
+        for (double[][] array : determinantTestData.keySet()) {
+            Matrix m = new Matrix(array);
+            if (array.length != array[0].length)
+                continue;
+            assertEquals(m.determinant(), new LUDecomposition(m).determinant(), 1e-9);
+        }
+    }
+
+    /**
+     * Кэш определителей: попадания, вытеснение LRU и сохранение в файл.
+     */
+    public void testDeterminantCache() throws Exception
+    {
+        assertEquals(MatrixHash.of(new Matrix(new double[][] {{0.0, 1}})),
+                MatrixHash.of(new Matrix(new double[][] {{-0.0, 1}})));
+        assertFalse(MatrixHash.of(new Matrix(new double[][] {{1, 2}})).equals(
+                MatrixHash.of(new Matrix(new double[][] {{1}, {2}}))));
+
+        DeterminantCache cache = new DeterminantCache(2, Long.MAX_VALUE);
+        Matrix a = new Matrix(new double[][] {{3, 4, 3}, {1, -1, 5}, {5, 6, 1}});
+        Matrix b = new Matrix(new double[][] {{1, 2}, {4, 3}});
+        Matrix c = new Matrix(new double[][] {{2}});
+        assertEquals(36.0, cache.determinant(a));
+        assertEquals(36.0, cache.determinant(new Matrix(new double[][] {{3, 4, 3}, {1, -1, 5}, {5, 6, 1}})));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(-5.0, cache.determinant(b));
+        cache.determinant(a);
+        assertEquals(2.0, cache.determinant(c));
+        assertEquals(1, cache.getEvictions());
+        cache.determinant(a);
+        assertEquals(3, cache.getHits());
+        cache.determinant(b);
+        assertEquals(4, cache.getMisses());
+        assertSame(cache.factorization(b), cache.factorization(b));
+
+        File store = File.createTempFile("determinants", ".cache");
+        store.deleteOnExit();
+        DeterminantCache persistent = new DeterminantCache(10, 1 << 20, store);
+        persistent.determinant(a);
+        persistent.determinant(b);
+        persistent.save();
+        DeterminantCache restored = new DeterminantCache(10, 1 << 20, store);
+        assertEquals(2, restored.size());
+        assertEquals(-5.0, restored.determinant(b));
+        assertEquals(1, restored.getHits());
+        assertEquals(0, restored.getMisses());
+    }
+
+    /**
+     * Сервер определителей: запросы с файлом, с матрицей в строке и ошибки.
+     */
+    public void testDeterminantServer() throws Exception
+    {
+        final DeterminantServer server = new DeterminantServer(0, new DeterminantCache(100, 1 << 20));
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        DeterminantClient client = new DeterminantClient(server.getPort());
+        try {
+            File f = tempFile(".txt", "3 3\n3 4 3\n1 -1 5\n5 6 1\n");
+            assertEquals(36.0, client.determinant(f.getAbsolutePath()));
+            assertEquals(36.0, client.determinant(new Matrix(new double[][] {{3, 4, 3}, {1, -1, 5}, {5, 6, 1}})));
+            assertEquals(-5.0, client.determinant(new Matrix(new double[][] {{1, 2}, {4, 3}})));
+            assertTrue(client.stats().contains("hits: 1"));
+            try {
+                client.determinant(new Matrix(new double[][] {{1, 0, 1}, {0, 1, 0}}));
+                fail("Non-square matrix is accepted");
+            }
+            catch (IOException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                assertEquals("Matrix is not square!", e.getMessage());
+            }
+        }
+        finally {
+            client.close();
+            server.close();
+            t.join();
+        }
+        //сервис, который принимает соединение, но не отвечает
+        ServerSocket silent = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        try {
+            DeterminantClient stuck = new DeterminantClient(silent.getLocalPort(), 100);
+            try {
+                stuck.determinant(new Matrix(new double[][] {{1}}));
+                fail("Silent server is not timed out");
+            }
+            catch (SocketTimeoutException ignored) {
+            }
+            finally {
+                stuck.close();
+            }
+        }
+        finally {
+            silent.close();
+        }
+        //ограничения на количество соединений и длину запроса
+        final DeterminantServer limited = new DeterminantServer(0, new DeterminantCache(100, 1 << 20), 2, 32);
+        t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    limited.serve();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        DeterminantClient first = new DeterminantClient(limited.getPort());
+        DeterminantClient second = new DeterminantClient(limited.getPort());
+        Socket third = new Socket(InetAddress.getLoopbackAddress(), limited.getPort());
+        try {
+            assertEquals(-5.0, first.determinant(new Matrix(new double[][] {{1, 2}, {4, 3}})));
+            assertEquals(-5.0, second.determinant(new Matrix(new double[][] {{1, 2}, {4, 3}})));
+            third.setSoTimeout(10000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(third.getInputStream(), "UTF-8"));
+            assertEquals("ERR Too many connections!", in.readLine());
+            assertNull(in.readLine());
+            try {
+                second.determinant(new Matrix(new double[][] {{1, 2, 3}, {4, 5, 6}, {7, 8, 10}}));
+                fail("Too long request is accepted");
+            }
+            catch (IOException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                assertEquals("Request is longer than 32 characters!", e.getMessage());
+            }
+            assertEquals(-5.0, first.determinant(new Matrix(new double[][] {{1, 2}, {4, 3}})));
+        }
+        finally {
+            third.close();
+            second.close();
+            first.close();
+            limited.close();
+            t.join();
+        }
+    }
+
+    /**
+     * Характеристический многочлен: известные примеры, связь со следом и
+     * определителем, совпадение точного и приближенного вариантов.
+     */
+    public void testCharacteristicPolynomial() throws Exception
+    {
+        double[] c = new Matrix(new double[][] {{0, 1}, {-2, -3}}).characteristicPolynomial();
+        assertEquals(3, c.length);
+        assertEquals(2.0, c[0], 1e-12);
+        assertEquals(3.0, c[1], 1e-12);
+        assertEquals(1.0, c[2], 1e-12);
+        BigInteger[] e = new Matrix(new double[][] {{3, 4, 3}, {1, -1, 5}, {5, 6, 1}}).characteristicPolynomialExact();
+        assertEquals(BigInteger.valueOf(-36), e[0]);
+        assertEquals(BigInteger.valueOf(-3), e[2]);
+        assertEquals(BigInteger.ONE, e[3]);
+
+        Random r = new Random(29);
+        for (int n : new int[] {1, 5, 12, 70}) {
+            double[][] a = new double[n][n];
+            for (double[] row : a)
+                for (int j = 0; j < n; j++)
+                    row[j] = r.nextInt(7) - 3;
+            Matrix m = new Matrix(a);
+            BigInteger[] exact = m.characteristicPolynomialExact();
+            double[] approx = m.characteristicPolynomial();
+            double trace = 0;
+            for (int i = 0; i < n; i++)
+                trace += a[i][i];
+            assertEquals(BigInteger.ONE, exact[n]);
+            assertEquals(BigInteger.valueOf((long) -trace), exact[n - 1]);
+            double det = new LUDecomposition(m).determinant();
+            assertEquals((n % 2 == 0) ? det : -det, exact[0].doubleValue(), 1e-6 * Math.abs(det) + 1e-6);
+            if (n <= 12)
+                for (int k = 0; k <= n; k++)
+                    assertEquals(exact[k].doubleValue(), approx[k], 1e-8 * (1 + Math.abs(exact[k].doubleValue())));
+        }
+        try {
+            new Matrix(new double[][] {{0.5}}).characteristicPolynomialExact();
+            fail("Non-integral matrix is accepted");
+        }
+        catch (Exception ex) {
+            assertEquals("Matrix is not integral!", ex.getMessage());
+        }
+    }
+
+    /**
+     * Счетчики операций: стратегии, миноры, считывание, кэш и доступ через JMX.
+     */
+    public void testMatrixStats() throws Exception
+    {
+        MatrixStats stats = MatrixStats.getInstance();
+        if (!MatrixStats.ENABLED)
+            return;
+        long cofactor = stats.getDeterminantCalls(MatrixStats.Strategy.COFACTOR);
+        long lu = stats.getDeterminantCalls(MatrixStats.Strategy.LU);
+        long cached = stats.getDeterminantCalls(MatrixStats.Strategy.CACHED);
+        long minors = stats.getMinorsAllocated();
+        long parsed = stats.getMatricesParsed();
+        long bytes = stats.getBytesParsed();
+        long hits = stats.getCacheHits();
+
+        File f = tempFile(".txt", "3 3\n3 4 3\n1 -1 5\n5 6 1\n");
+        Matrix m = new MatrixFileReader(f).read();
+        DeterminantCache cache = new DeterminantCache(10, 1 << 20);
+        cache.determinant(m);
+        cache.determinant(m);
+        new LUDecomposition(m);
+
+        assertEquals(cofactor + 1, stats.getDeterminantCalls(MatrixStats.Strategy.COFACTOR));
+        assertEquals(lu + 1, stats.getDeterminantCalls(MatrixStats.Strategy.LU));
+        assertEquals(cached + 1, stats.getDeterminantCalls(MatrixStats.Strategy.CACHED));
+        assertEquals(minors + 3, stats.getMinorsAllocated());
+        assertEquals(parsed + 1, stats.getMatricesParsed());
+        assertEquals(bytes + f.length(), stats.getBytesParsed());
+        assertEquals(hits + 1, stats.getCacheHits());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(MatrixStats.OBJECT_NAME);
+        assertTrue(server.isRegistered(name));
+        assertEquals(stats.getMinorsAllocated(), server.getAttribute(name, "MinorsAllocated"));
+        long[] histogram = (long[]) server.getAttribute(name, "ComputeLatencyHistogram");
+        assertEquals(MatrixStats.BUCKETS, histogram.length);
+    }
+
+    /**
+     * Ленивые выражения: det(A * B + C), транспонирование, подматрицы и
+     * проверка размеров.
+     */
+    public void testMatrixExpr() throws Exception
+    {
+        Matrix a = new Matrix(new double[][] {{1, 2}, {3, 4}});
+        Matrix b = new Matrix(new double[][] {{0, 1}, {1, 0}});
+        Matrix c = new Matrix(new double[][] {{1, 0}, {0, 1}});
+        MatrixExpr e = a.lazy().times(b.lazy()).plus(c.lazy());
+        //A * B = [[2, 1], [4, 3]], + I = [[3, 1], [4, 4]]
+        assertEquals(8.0, e.determinant());
+        Matrix t = e.transpose().materialise();
+        assertEquals(4.0, t.getElement(0, 1));
+        assertEquals(1.0, t.getElement(1, 0));
+        assertEquals(4.0, e.transpose().transpose().get(1, 0));
+        assertEquals(-9.0, a.lazy().scale(2).scale(-1.5).minus(c.lazy()).get(1, 0), 1e-12);
+        assertEquals(-4.0, a.lazy().scale(2).scale(-1.5).minus(c.lazy()).get(0, 0), 1e-12);
+        assertEquals(3.0, a.lazy().submatrix(1, 0, 1, 2).get(0, 0));
+        //(A * B) * A^T
+        Matrix p = a.lazy().times(b.lazy()).times(a.lazy().transpose()).materialise();
+        assertEquals(2 * 1 + 1 * 2.0, p.getElement(0, 0));
+        assertEquals(4 * 3 + 3 * 4.0, p.getElement(1, 1));
+        try {
+            a.lazy().plus(new Matrix(new double[][] {{1, 2, 3}}).lazy());
+            fail("Dimension mismatch is not detected");
+        }
+        catch (IllegalArgumentException ignored) {
+        }
+        try {
+            a.lazy().submatrix(1, 1, 2, 1);
+            fail("Submatrix out of bounds is not detected");
+        }
+        catch (ArrayIndexOutOfBoundsException ignored) {
+        }
+    }
+
+    /**
+     * Снимки матриц: независимость от исходной матрицы, разделение строк
+     * при изменениях и запоминание определителя.
+     */
+    public void testMatrixSnapshot() throws Exception
+    {
+        Matrix m = new Matrix(new double[][] {{3, 4, 3}, {1, -1, 5}, {5, 6, 1}});
+        MatrixSnapshot s = m.snapshot();
+        m.setElement(0, 0, 100);
+        assertEquals(3.0, s.getElement(0, 0));
+        assertEquals(36.0, s.determinant());
+        assertEquals(36.0, s.determinant());
+
+        MatrixSnapshot s2 = s.with(1, 1, 0);
+        assertEquals(-1.0, s.getElement(1, 1));
+        assertEquals(0.0, s2.getElement(1, 1));
+        assertSame(s.rows[0], s2.rows[0]);
+        assertNotSame(s.rows[1], s2.rows[1]);
+
+        MatrixSnapshot.Editor e = s.edit();
+        e.set(2, 0, 0).set(2, 1, 0);
+        MatrixSnapshot s3 = e.snapshot();
+        e.set(2, 2, 7);
+        assertEquals(1.0, s3.getElement(2, 2));
+        assertEquals(0.0, s3.getElement(2, 0));
+        assertSame(s.rows[0], s3.rows[0]);
+        assertSame(s.rows[1], s3.rows[1]);
+        assertEquals(3.0 * -1 - 4 * 1, s3.determinant());
+        assertEquals(s, m.lazy().submatrix(0, 0, 3, 3).materialise().snapshot().with(0, 0, 3));
+        assertEquals(MatrixHash.of(s.toMatrix()), s.hash());
+    }
+
+    /**
+     * Распределенное блочное LU-разложение на решетке 2x2 рабочих процессов
+     * в этой же JVM.
+     */
+    public void testDistributedDeterminant() throws Exception
+    {
+        List<DistributedWorker> workers = new ArrayList<DistributedWorker>();
+        List<Thread> threads = new ArrayList<Thread>();
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for (int i = 0; i < 4; i++) {
+            final DistributedWorker w = new DistributedWorker(0);
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        w.serve();
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            t.start();
+            workers.add(w);
+            threads.add(t);
+            addresses.add(new InetSocketAddress("localhost", w.getPort()));
+        }
+        DistributedDeterminant grid = new DistributedDeterminant(addresses, 2, 3);
+        DistributedDeterminant single = new DistributedDeterminant(addresses.subList(0, 1), 1, 4);
+        try {
+            Random r = new Random(33);
+            for (int n : new int[] {1, 2, 7, 12, 20}) {
+                double[][] a = new double[n][n];
+                for (double[] row : a)
+                    for (int j = 0; j < n; j++)
+                        row[j] = r.nextInt(19) - 9;
+                Matrix m = new Matrix(a);
+                double expected = new LUDecomposition(m).determinant();
+                double eps = 1e-9 * Math.max(1, Math.abs(expected));
+                assertEquals(expected, grid.determinant(m), eps);
+                assertEquals(expected, single.determinant(m), eps);
+            }
+            Matrix singular = new Matrix(new double[][] {{1, 2, 3}, {2, 4, 6}, {1, 0, 1}});
+            assertEquals(0.0, grid.determinant(singular));
+            //некорректные размеры отклоняются до выделения памяти, соединение закрывается
+            Socket raw = new Socket(InetAddress.getLoopbackAddress(), workers.get(0).getPort());
+            try {
+                DataOutputStream out = new DataOutputStream(raw.getOutputStream());
+                DataInputStream in = new DataInputStream(raw.getInputStream());
+                out.writeByte(DistributedWorker.INIT);
+                out.writeInt(10);
+                out.writeInt(4);
+                out.writeByte(DistributedWorker.PUT);
+                out.writeInt(0);
+                out.writeInt(0);
+                out.writeInt(-1);
+                out.writeInt(Integer.MAX_VALUE);
+                out.writeDouble(1);
+                out.flush();
+                assertEquals(DistributedWorker.OK, in.readByte());
+                assertEquals(DistributedWorker.ERROR, in.readByte());
+                assertEquals("Illegal block rows: -1!", in.readUTF());
+                assertEquals(-1, in.read());
+            }
+            finally {
+                raw.close();
+            }
+            //строка вне блока отклоняется до ответа OK
+            raw = new Socket(InetAddress.getLoopbackAddress(), workers.get(0).getPort());
+            try {
+                DataOutputStream out = new DataOutputStream(raw.getOutputStream());
+                DataInputStream in = new DataInputStream(raw.getInputStream());
+                out.writeByte(DistributedWorker.INIT);
+                out.writeInt(3);
+                out.writeInt(2);
+                out.writeByte(DistributedWorker.PUT);
+                out.writeInt(1);
+                out.writeInt(1);
+                out.writeInt(1);
+                out.writeInt(1);
+                out.writeDouble(5);
+                out.writeByte(DistributedWorker.GET_ROWS);
+                out.writeInt(1);
+                out.writeInt(1);
+                out.writeInt(2);
+                out.writeInt(0);
+                out.writeInt(1);
+                out.flush();
+                assertEquals(DistributedWorker.OK, in.readByte());
+                assertEquals(DistributedWorker.OK, in.readByte());
+                assertEquals(DistributedWorker.ERROR, in.readByte());
+                assertEquals("Illegal row: 1!", in.readUTF());
+                assertEquals(-1, in.read());
+            }
+            finally {
+                raw.close();
+            }
+            for (double[][] array : determinantTestData.keySet()) {
+                Matrix m = new Matrix(array);
+                if (array.length == array[0].length)
+                    assertEquals(m.determinant(), grid.determinant(m), 1e-9);
+            }
+        }
+        finally {
+            grid.close();
+            single.close();
+            for (DistributedWorker w : workers)
+                w.close();
+            for (Thread t : threads)
+                t.join();
+        }
+    }
+
+    /**
+     * Логарифм определителя: совпадение с обычным определителем и отсутствие
+     * переполнения и потери значимости для больших порядков.
+     */
+    public void testLogDeterminant() throws Exception
+    {
+        LogDeterminant d = new Matrix(new double[][] {{3, 4, 3}, {1, -1, 5}, {5, 6, 1}}).logDeterminant();
+        assertEquals(1, d.getSign());
+        assertEquals(Math.log(36), d.getLogAbs(), 1e-12);
+        assertEquals(36.0, d.toDouble(), 1e-12);
+        d = new Matrix(new double[][] {{0, 1}, {1, 0}}).logDeterminant();
+        assertEquals(-1, d.getSign());
+        assertEquals(-1.0, d.toDouble());
+        d = new Matrix(new double[][] {{1, 2}, {2, 4}}).logDeterminant();
+        assertEquals(0, d.getSign());
+        assertEquals(Double.NEGATIVE_INFINITY, d.getLogAbs());
+        assertEquals(0.0, d.toDouble());
+
+        int n = 400;
+        double[][] big = new double[n][n];
+        double[][] small = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            big[i][i] = 10;
+            small[i][i] = 1e-3;
+        }
+        big[0][0] = -10;
+        d = new Matrix(big).logDeterminant();
+        assertEquals(Double.NEGATIVE_INFINITY, new LUDecomposition(new Matrix(big)).determinant());
+        assertEquals(-1, d.getSign());
+        assertEquals(n * Math.log(10), d.getLogAbs(), 1e-9);
+        assertEquals(Double.NEGATIVE_INFINITY, d.toDouble());
+        d = new Matrix(small).logDeterminant();
+        assertEquals(1, d.getSign());
+        assertEquals(n * Math.log(1e-3), d.getLogAbs(), 1e-9);
+        assertEquals(0.0, d.toDouble());
+        d = new Matrix(new double[][] {{Double.MIN_VALUE, 0}, {0, 1e300}}).logDeterminant();
+        assertEquals(Math.log(Double.MIN_VALUE) + Math.log(1e300), d.getLogAbs(), 1e-9);
+        assertEquals(Double.MIN_VALUE * 1e300, d.toDouble(), 1e-300 * 1e-9);
+    }
 }
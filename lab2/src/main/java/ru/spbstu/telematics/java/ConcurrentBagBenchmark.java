@@ -0,0 +1,152 @@
+package ru.spbstu.telematics.java;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Сравнение {@link ConcurrentMyBag} и {@link MyBag} под общим монитором
+ * при добавлении из нескольких потоков. Ключи выбираются из небольшого
+ * набора, чтобы потоки конкурировали за одни и те же элементы. <br>
+ * Для каждого количества потоков -- степеней двойки и наибольшего --
+ * сначала выполняются прогревочные запуски, затем замеры, в которых
+ * реализации чередуются, чтобы ни одна не была всегда первой. Печатается
+ * медиана замеров.
+ */
+public class ConcurrentBagBenchmark {
+    /**
+     * Количество прогревочных запусков каждой реализации.
+     */
+    static final int WARMUP_ROUNDS = 3;
+
+    /**
+     * Количество замеров каждой реализации.
+     */
+    static final int ROUNDS = 5;
+
+    /**
+     * Количество различных ключей.
+     */
+    static final int KEYS = 64;
+
+    /**
+     * Запуск сравнения.
+     * @param args количество добавлений на один поток (по умолчанию
+     *             1000000) и наибольшее количество потоков (по умолчанию
+     *             количество процессоров).
+     */
+    public static void main(String[] args) {
+        int ops = 1000000;
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        try {
+            if (args.length > 0)
+                ops = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                maxThreads = Integer.parseInt(args[1]);
+        }
+        catch (NumberFormatException e) {
+            System.out.println("Error: Expected [operations per thread] [max threads]!");
+            return;
+        }
+        if (ops < 1 || maxThreads < 1) {
+            System.out.println("Error: Expected positive numbers!");
+            return;
+        }
+        TreeSet<Integer> counts = new TreeSet<Integer>();
+        for (int threads = 1; threads < maxThreads; threads *= 2)
+            counts.add(threads);
+        counts.add(maxThreads);
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processors, " + ops
+                + " adds per thread, median of " + ROUNDS + " rounds");
+        for (int threads : counts) {
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                runLocked(threads, ops);
+                runConcurrent(threads, ops);
+            }
+            long[] locked = new long[ROUNDS];
+            long[] concurrent = new long[ROUNDS];
+            for (int i = 0; i < ROUNDS; i++) {
+                if (i % 2 == 0) {
+                    locked[i] = runLocked(threads, ops);
+                    concurrent[i] = runConcurrent(threads, ops);
+                }
+                else {
+                    concurrent[i] = runConcurrent(threads, ops);
+                    locked[i] = runLocked(threads, ops);
+                }
+            }
+            System.out.println(threads + " threads: synchronized MyBag " + median(locked)
+                    + " ms, ConcurrentMyBag " + median(concurrent) + " ms");
+        }
+    }
+
+    /**
+     * @param times замеры, массив сортируется.
+     * @return медиана.
+     */
+    private static long median(long[] times) {
+        Arrays.sort(times);
+        return times[times.length / 2];
+    }
+
+    /**
+     * Добавления в {@link MyBag} под общим монитором.
+     * @param threads количество потоков.
+     * @param ops количество добавлений на один поток.
+     * @return время работы в миллисекундах.
+     */
+    private static long runLocked(int threads, final int ops) {
+        final MyBag<Integer> locked = new MyBag<Integer>();
+        return runThreads(threads, new Runnable() {
+            public void run() {
+                Random r = new Random();
+                for (int i = 0; i < ops; i++) {
+                    Integer val = r.nextInt(KEYS);
+                    synchronized (locked) {
+                        locked.add(val);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Добавления в {@link ConcurrentMyBag}.
+     * @param threads количество потоков.
+     * @param ops количество добавлений на один поток.
+     * @return время работы в миллисекундах.
+     */
+    private static long runConcurrent(int threads, final int ops) {
+        final ConcurrentMyBag<Integer> concurrent = new ConcurrentMyBag<Integer>();
+        return runThreads(threads, new Runnable() {
+            public void run() {
+                Random r = new Random();
+                for (int i = 0; i < ops; i++)
+                    concurrent.add(r.nextInt(KEYS));
+            }
+        });
+    }
+
+    /**
+     * Запускает задачу в нескольких потоках и ждет их завершения.
+     * @param threads количество потоков.
+     * @param task задача.
+     * @return время работы в миллисекундах.
+     */
+    private static long runThreads(int threads, Runnable task) {
+        Thread[] pool = new Thread[threads];
+        long m = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            pool[i] = new Thread(task);
+            pool[i].start();
+        }
+        try {
+            for (Thread t : pool)
+                t.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return System.currentTimeMillis() - m;
+    }
+}
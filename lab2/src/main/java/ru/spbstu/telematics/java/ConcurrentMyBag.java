@@ -0,0 +1,526 @@
+package ru.spbstu.telematics.java;
+
+import org.apache.commons.collections4.Bag;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Потокобезопасная сумка с тем же контрактом <code>Bag</code>, что и
+ * {@link MyBag}. Элементы хранятся в {@link ConcurrentHashMap}, кратность
+ * каждого элемента -- в счетчике {@link Counter}. <br>
+ * Добавление не использует блокировок: кратность увеличивается через CAS,
+ * а при конкуренции потоков за один элемент счетчик, как {@link LongAdder},
+ * разбивается на ячейки, и каждый поток увеличивает свою ячейку. Удаления
+ * одного элемента выполняются под монитором его счетчика, но не мешают
+ * добавлениям. Счетчик с нулевой кратностью запечатывается и удаляется из
+ * таблицы; поток, который пытается добавить в запечатанный счетчик,
+ * создает новый. <br>
+ * {@link ConcurrentMyBag#uniqueSet()}, итератор, <code>size()</code> и
+ * <code>getCount()</code> слабо согласованы: они не бросают
+ * {@link ConcurrentModificationException} и отражают изменения, которые
+ * произошли во время обхода, частично.
+ * @param <T> тип элемента коллекции.
+ * @see MyBag
+ */
+public class ConcurrentMyBag<T> extends AbstractCollection<T> implements Bag<T> {
+    /**
+     * Счетчики элементов. Ключ -- элемент в виде {@link MyBag#mask(Object)}.
+     */
+    private final ConcurrentHashMap<Object, Counter> map = new ConcurrentHashMap<Object, Counter>();
+
+    /**
+     * Общее количество элементов, учитывая кратность.
+     */
+    private final LongAdder total = new LongAdder();
+
+    /**
+     * Количество ячеек в счетчике при конкуренции, степень двойки.
+     */
+    static final int STRIPES = Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2);
+
+    /**
+     * Расстояние между ячейками в массиве, чтобы ячейки разных потоков
+     * не попадали в одну строку кэша.
+     */
+    static final int PAD = 16;
+
+    /**
+     * Кратность элемента. Пока потоки не конкурируют, кратность хранится в
+     * базовом значении, иначе -- в базовом значении и ячейках
+     * {@link Counter#cells}. Отрицательное значение -- запечатанный счетчик.
+     */
+    static final class Counter extends AtomicInteger {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Ячейки или <code>null</code>, если конкуренции еще не было.
+         */
+        volatile AtomicIntegerArray cells;
+
+        /**
+         * Счетчик запечатан и больше не используется.
+         */
+        volatile boolean retired;
+
+        private static final AtomicReferenceFieldUpdater<Counter, AtomicIntegerArray> CELLS =
+                AtomicReferenceFieldUpdater.newUpdater(Counter.class, AtomicIntegerArray.class, "cells");
+
+        /**
+         * Запечатанные ячейки для счетчика, в котором ячеек еще не было.
+         * Общий для всех счетчиков и никогда не изменяется.
+         */
+        private static final AtomicIntegerArray SEALED = new AtomicIntegerArray(STRIPES * PAD);
+
+        static {
+            for (int i = 0; i < SEALED.length(); i++)
+                SEALED.set(i, -1);
+        }
+
+        /**
+         * Конструктор.
+         * @param n начальная кратность.
+         */
+        Counter(int n) {
+            super(n);
+        }
+
+        /**
+         * Ячейка текущего потока.
+         * @return индекс ячейки в {@link Counter#cells}.
+         */
+        static int stripe() {
+            return (MyBag.spread((int) Thread.currentThread().getId()) & (STRIPES - 1)) * PAD;
+        }
+
+        /**
+         * Увеличивает кратность без блокировок.
+         * @param n количество добавляемых копий.
+         * @return <code>false</code>, если счетчик запечатывается и добавить
+         *         в него нельзя.
+         */
+        boolean add(int n) {
+            AtomicIntegerArray cs = cells;
+            if (cs == null) {
+                int v = get();
+                if (v < 0)
+                    return false;
+                if (compareAndSet(v, v + n))
+                    return true;
+                //конкуренция: дальше добавляем в ячейки
+                CELLS.compareAndSet(this, null, new AtomicIntegerArray(STRIPES * PAD));
+                cs = cells;
+            }
+            int i = stripe();
+            while (true) {
+                int v = cs.get(i);
+                if (v < 0)
+                    return false;
+                if (cs.compareAndSet(i, v, v + n))
+                    return true;
+            }
+        }
+
+        /**
+         * @return текущая кратность.
+         */
+        int sum() {
+            int res = Math.max(get(), 0);
+            AtomicIntegerArray cs = cells;
+            if (cs != null)
+                for (int i = 0; i < cs.length(); i += PAD)
+                    res += Math.max(cs.get(i), 0);
+            return res;
+        }
+
+        /**
+         * Уменьшает кратность. Вызывается под монитором счетчика.
+         * @param n количество удаляемых копий.
+         * @return сколько копий удалено.
+         */
+        int drain(int n) {
+            int left = n;
+            while (left > 0) {
+                int v = get();
+                if (v <= 0)
+                    break;
+                int t = Math.min(v, left);
+                if (compareAndSet(v, v - t))
+                    left -= t;
+            }
+            AtomicIntegerArray cs = cells;
+            if (cs != null)
+                for (int i = 0; i < cs.length() && left > 0; i += PAD) {
+                    int v = cs.get(i);
+                    if (v <= 0)
+                        continue;
+                    int t = Math.min(v, left);
+                    if (cs.compareAndSet(i, v, v - t))
+                        left -= t;
+                    else
+                        i -= PAD; //повторяем ту же ячейку
+                }
+            return n - left;
+        }
+
+        /**
+         * Запечатывает пустой счетчик: все значения переводятся из 0 в -1.
+         * Если какой-то поток успел добавить копию, запечатывание отменяется.
+         * Вызывается под монитором счетчика.
+         * @return <code>true</code>, если счетчик запечатан.
+         */
+        boolean retire() {
+            if (!compareAndSet(0, -1))
+                return false;
+            if (!CELLS.compareAndSet(this, null, SEALED)) {
+                AtomicIntegerArray cs = cells;
+                for (int i = 0; i < cs.length(); i += PAD) {
+                    if (!cs.compareAndSet(i, 0, -1)) {
+                        for (int j = 0; j < i; j += PAD)
+                            cs.set(j, 0);
+                        set(0);
+                        return false;
+                    }
+                }
+            }
+            retired = true;
+            return true;
+        }
+    }
+
+    /**
+     * Конструктор по умолчанию. Создает пустую сумку.
+     */
+    public ConcurrentMyBag() {
+    }
+
+    /**
+     * Создает сумку, в которой будут хранится ссылки на элементы
+     * переданной коллекции.
+     * @param col коллекция, ссылки на элементы которой будут храниться в коллекции.
+     */
+    public ConcurrentMyBag(Iterable<T> col) {
+        if (col != null)
+            for (T val: col)
+                add(val);
+    }
+
+    /**
+     * Возвращает количество объектов в сумке.
+     * @param o объект, количество которого считаем.
+     * @return количество объектов в сумке.
+     */
+    public int getCount(Object o) {
+        Counter c = map.get(MyBag.mask(o));
+        return (c == null) ? 0 : c.sum();
+    }
+
+    /**
+     * Добавляет объект с кратностью 1.
+     * @param o добавляемый объект.
+     * @return всегда <code>true</code>.
+     * @see ConcurrentMyBag#add(Object, int)
+     */
+    public boolean add(T o) {
+        return add(o, 1);
+    }
+
+    /**
+     * Добавляет несколько копий объекта. Не блокирует другие потоки.
+     * @param o добавляемый объект.
+     * @param n количество копий, если <code>n < 1</code>, объект не добавляется.
+     * @return <code>true</code>, если объект был добавлен, иначе <code>false</code>.
+     */
+    public boolean add(T o, int n) {
+        if (n < 1)
+            return false;
+        Object k = MyBag.mask(o);
+        while (true) {
+            Counter c = map.get(k);
+            if (c == null) {
+                c = map.putIfAbsent(k, new Counter(n));
+                if (c == null)
+                    break;
+            }
+            if (c.add(n))
+                break;
+            if (c.retired)
+                map.remove(k, c);
+            else
+                Thread.yield();
+        }
+        total.add(n);
+        return true;
+    }
+
+    /**
+     * Удаляет все копии объекта из сумки.
+     * @param o удаляемый объект.
+     * @return <code>true</code>, если объект был ранее в сумке, иначе <code>false</code>.
+     */
+    public boolean remove(Object o) {
+        return remove(o, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Удаляет <code>n</code> копий объекта из сумки.
+     * @param o удаляемый объект.
+     * @param n количество удаляемых копий. Если <code>n < 1</code>,
+     *          удаление не происходит.
+     * @return <code>true</code>, если что-то было удалено, иначе <code>false</code>.
+     */
+    public boolean remove(Object o, int n) {
+        if (n < 1)
+            return false;
+        Object k = MyBag.mask(o);
+        Counter c = map.get(k);
+        if (c == null)
+            return false;
+        int removed;
+        synchronized (c) {
+            removed = c.drain(n);
+            if (c.sum() == 0 && c.retire())
+                map.remove(k, c);
+        }
+        total.add(-removed);
+        return removed > 0;
+    }
+
+    /**
+     * Проверяет наличие объекта в сумке.
+     * @param o проверяемый объект.
+     * @return <code>true</code>, если объект есть в сумке, иначе <code>false</code>.
+     */
+    @Override
+    public boolean contains(Object o) {
+        return getCount(o) > 0;
+    }
+
+    /**
+     * @return количество объектов в сумке, учитывая кратность.
+     */
+    public int size() {
+        return (int) Math.max(total.sum(), 0);
+    }
+
+    /**
+     * Очищает сумку. Копии, добавленные во время очистки, могут остаться.
+     */
+    @Override
+    public void clear() {
+        for (Object k : map.keySet())
+            remove(MyBag.unmask(k));
+    }
+
+    /**
+     * Слабо согласованное представление множества различных элементов.
+     * Удаление элемента из представления удаляет все его копии из сумки.
+     * @return множество различных элементов сумки.
+     */
+    public Set<T> uniqueSet() {
+        return new AbstractSet<T>() {
+            public Iterator<T> iterator() {
+                final Iterator<Map.Entry<Object, Counter>> it = map.entrySet().iterator();
+                return new Iterator<T>() {
+                    Object next = advance();
+                    Object last;
+
+                    private Object advance() {
+                        while (it.hasNext()) {
+                            Map.Entry<Object, Counter> e = it.next();
+                            if (e.getValue().sum() > 0)
+                                return e.getKey();
+                        }
+                        return null;
+                    }
+
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    public T next() {
+                        if (next == null)
+                            throw new NoSuchElementException();
+                        last = next;
+                        next = advance();
+                        return MyBag.unmask(last);
+                    }
+
+                    public void remove() {
+                        if (last == null)
+                            throw new IllegalStateException();
+                        ConcurrentMyBag.this.remove(MyBag.unmask(last));
+                        last = null;
+                    }
+                };
+            }
+
+            public int size() {
+                int res = 0;
+                for (Counter c : map.values())
+                    if (c.sum() > 0)
+                        res++;
+                return res;
+            }
+
+            public boolean contains(Object o) {
+                return ConcurrentMyBag.this.contains(o);
+            }
+
+            public boolean remove(Object o) {
+                return ConcurrentMyBag.this.remove(o);
+            }
+        };
+    }
+
+    /**
+     * Слабо согласованный итератор: кратность каждого элемента читается,
+     * когда итератор доходит до него.
+     * @return итератор по сумке.
+     */
+    public Iterator<T> iterator() {
+        final Iterator<T> unique = uniqueSet().iterator();
+        return new Iterator<T>() {
+            T current;
+            int left;
+            boolean canRemove;
+
+            public boolean hasNext() {
+                //элемент мог быть удален после того, как попал в uniqueSet
+                while (left == 0 && unique.hasNext()) {
+                    current = unique.next();
+                    left = getCount(current);
+                }
+                return left > 0;
+            }
+
+            public T next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                left--;
+                canRemove = true;
+                return current;
+            }
+
+            public void remove() {
+                if (!canRemove)
+                    throw new IllegalStateException();
+                canRemove = false;
+                ConcurrentMyBag.this.remove(current, 1);
+            }
+        };
+    }
+
+    /**
+     * Проверяет, содержатся ли в сумке все элементы коллекции,
+     * учитывая кратность.
+     * @param collection коллекция.
+     * @return <code>true</code>, если содержатся, иначе <code>false</code>.
+     */
+    public boolean containsAll(Collection<?> collection) {
+        if (collection == null)
+            return true;
+        MyBag<Object> need = new MyBag<Object>();
+        need.addAll(collection);
+        for (Object o : need.uniqueSet())
+            if (getCount(o) < need.getCount(o))
+                return false;
+        return true;
+    }
+
+    /**
+     * Удаляет из сумки все элементы коллекции, учитывая кратность.
+     * @param collection коллекция.
+     * @return <code>true</code>, если сумка была изменена, иначе <code>false</code>.
+     */
+    public boolean removeAll(Collection<?> collection) {
+        if (collection == null)
+            return false;
+        boolean changed = false;
+        for (Object o : collection)
+            changed |= remove(o, 1);
+        return changed;
+    }
+
+    /**
+     * Оставляет в сумке только элементы из коллекции, учитывая кратность.
+     * @param collection коллекция.
+     * @return <code>true</code>, если сумка была изменена, иначе <code>false</code>.
+     */
+    public boolean retainAll(Collection<?> collection) {
+        if (collection == null) {
+            clear();
+            return true;
+        }
+        MyBag<Object> keep = new MyBag<Object>();
+        keep.addAll(collection);
+        boolean changed = false;
+        for (T o : uniqueSet()) {
+            int extra = getCount(o) - keep.getCount(o);
+            if (extra > 0)
+                changed |= remove(o, extra);
+        }
+        return changed;
+    }
+
+    /**
+     * Сравнение сумок происходит так же, как в классе {@link MyBag}.
+     * @param o другая сумка.
+     * @return <code>true</code>, если сумки одинаковые.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Bag)) return false;
+        Bag<?> other = (Bag<?>) o;
+        for (Object val : other.uniqueSet())
+            if (getCount(val) != other.getCount(val))
+                return false;
+        for (Object val : uniqueSet())
+            if (getCount(val) != other.getCount(val))
+                return false;
+        return true;
+    }
+
+    /**
+     * Хэш-код вычисляется так же, как в классе {@link MyBag}.
+     * @return хэш-код сумки.
+     */
+    @Override
+    public int hashCode() {
+        int result = 0;
+        for (Map.Entry<Object, Counter> e : map.entrySet()) {
+            int c = e.getValue().sum();
+            if (c > 0)
+                result += ((e.getKey() == MyBag.NULL_KEY) ? 0 : e.getKey().hashCode()) ^ c;
+        }
+        return result;
+    }
+
+    /**
+     * @return Строковое представление сумки.
+     */
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder("[");
+        boolean first = true;
+        for (Map.Entry<Object, Counter> e : map.entrySet()) {
+            int c = e.getValue().sum();
+            if (c <= 0)
+                continue;
+            if (first) {
+                first = false;
+            }
+            else {
+                res.append(",");
+            }
+            res.append(c).append(":").append(MyBag.<Object>unmask(e.getKey()));
+        }
+        res.append(']');
+        return res.toString();
+    }
+}
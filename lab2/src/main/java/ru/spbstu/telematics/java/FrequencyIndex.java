@@ -0,0 +1,244 @@
+package ru.spbstu.telematics.java;
+
+import java.util.*;
+
+/**
+ * Индекс частот для {@link MyBag}: элементы сгруппированы в корзины по
+ * кратности, корзины образуют двусвязный список, упорядоченный по
+ * возрастанию кратности, а элементы внутри корзины -- двусвязный список.
+ * Такая структура используется в LFU-кэшах. <br>
+ * Изменение кратности на 1 перемещает элемент в соседнюю корзину за O(1);
+ * изменение на n -- не больше чем через n корзин. Самые частые элементы
+ * находятся в последней корзине, поэтому k самых частых элементов
+ * перечисляются за O(k) без обхода таблицы сумки.
+ * @see MyBag#enableFrequencyIndex()
+ */
+class FrequencyIndex {
+    /**
+     * Корзина элементов с одинаковой кратностью.
+     */
+    static final class Bucket {
+        /**
+         * Кратность элементов корзины.
+         */
+        final int count;
+
+        /**
+         * Количество элементов в корзине.
+         */
+        int size;
+
+        /**
+         * Первый элемент корзины.
+         */
+        Node first;
+
+        /**
+         * Корзина с меньшей кратностью.
+         */
+        Bucket down;
+
+        /**
+         * Корзина с большей кратностью.
+         */
+        Bucket up;
+
+        Bucket(int count) {
+            this.count = count;
+        }
+    }
+
+    /**
+     * Элемент в корзине.
+     */
+    static final class Node {
+        /**
+         * Элемент в виде {@link MyBag#mask(Object)}.
+         */
+        final Object key;
+
+        /**
+         * Корзина, в которой находится элемент.
+         */
+        Bucket bucket;
+
+        Node prev;
+        Node next;
+
+        Node(Object key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Узлы элементов.
+     */
+    private final Map<Object, Node> nodes = new HashMap<Object, Node>();
+
+    /**
+     * Корзина с наименьшей кратностью.
+     */
+    private Bucket low;
+
+    /**
+     * Корзина с наибольшей кратностью.
+     */
+    private Bucket high;
+
+    /**
+     * Отражает изменение кратности элемента.
+     * @param key элемент в виде {@link MyBag#mask(Object)}.
+     * @param before кратность до изменения, 0 -- элемента не было.
+     * @param after кратность после изменения, 0 -- элемент удален.
+     */
+    void update(Object key, int before, int after) {
+        if (before == after)
+            return;
+        Node node = (before == 0) ? new Node(key) : nodes.get(key);
+        if (after == 0) {
+            detach(node);
+            nodes.remove(key);
+            return;
+        }
+        Bucket target = locate(node.bucket, after);
+        if (before == 0)
+            nodes.put(key, node);
+        else
+            detach(node);
+        attach(node, target);
+    }
+
+    /**
+     * Удаляет все элементы.
+     */
+    void clear() {
+        nodes.clear();
+        low = null;
+        high = null;
+    }
+
+    /**
+     * Находит или создает корзину с заданной кратностью, начиная поиск с
+     * корзины <code>anchor</code>.
+     * @param anchor корзина, от которой начинать поиск, или <code>null</code>,
+     *               чтобы начать с наименьшей кратности.
+     * @param count кратность.
+     * @return корзина с этой кратностью.
+     */
+    private Bucket locate(Bucket anchor, int count) {
+        //ищем место между корзинами prev и next
+        Bucket prev;
+        Bucket next;
+        if (anchor == null) {
+            prev = null;
+            next = low;
+        }
+        else if (anchor.count < count) {
+            prev = anchor;
+            next = anchor.up;
+        }
+        else {
+            prev = anchor.down;
+            next = anchor;
+        }
+        while (next != null && next.count < count) {
+            prev = next;
+            next = next.up;
+        }
+        while (prev != null && prev.count > count) {
+            next = prev;
+            prev = prev.down;
+        }
+        if (next != null && next.count == count)
+            return next;
+        if (prev != null && prev.count == count)
+            return prev;
+        Bucket b = new Bucket(count);
+        b.down = prev;
+        b.up = next;
+        if (prev == null)
+            low = b;
+        else
+            prev.up = b;
+        if (next == null)
+            high = b;
+        else
+            next.down = b;
+        return b;
+    }
+
+    /**
+     * Добавляет элемент в корзину.
+     */
+    private void attach(Node node, Bucket b) {
+        node.bucket = b;
+        node.prev = null;
+        node.next = b.first;
+        if (b.first != null)
+            b.first.prev = node;
+        b.first = node;
+        b.size++;
+    }
+
+    /**
+     * Убирает элемент из его корзины. Опустевшая корзина удаляется из списка.
+     */
+    private void detach(Node node) {
+        Bucket b = node.bucket;
+        if (node.prev != null)
+            node.prev.next = node.next;
+        else
+            b.first = node.next;
+        if (node.next != null)
+            node.next.prev = node.prev;
+        node.bucket = null;
+        if (--b.size > 0)
+            return;
+        if (b.down != null)
+            b.down.up = b.up;
+        else
+            low = b.up;
+        if (b.up != null)
+            b.up.down = b.down;
+        else
+            high = b.down;
+    }
+
+    /**
+     * Самые частые элементы.
+     * @param k количество элементов.
+     * @param <T> тип элемента.
+     * @return до <code>k</code> записей по убыванию кратности.
+     */
+    <T> List<MyBag.Entry<T>> top(int k) {
+        List<MyBag.Entry<T>> res = new ArrayList<MyBag.Entry<T>>(Math.max(Math.min(k, nodes.size()), 0));
+        for (Bucket b = high; b != null && res.size() < k; b = b.down)
+            for (Node n = b.first; n != null && res.size() < k; n = n.next)
+                res.add(new MyBag.Entry<T>(MyBag.<T>unmask(n.key), b.count));
+        return res;
+    }
+
+    /**
+     * Один из самых редких элементов.
+     * @param <T> тип элемента.
+     * @return запись с наименьшей кратностью или <code>null</code>, если элементов нет.
+     */
+    <T> MyBag.Entry<T> bottom() {
+        if (low == null)
+            return null;
+        return new MyBag.Entry<T>(MyBag.<T>unmask(low.first.key), low.count);
+    }
+
+    /**
+     * Количество различных элементов с кратностью не меньше заданной.
+     * Проходит только корзины с такой кратностью.
+     * @param count кратность.
+     * @return количество элементов.
+     */
+    int countAtLeast(int count) {
+        int res = 0;
+        for (Bucket b = high; b != null && b.count >= count; b = b.down)
+            res += b.size;
+        return res;
+    }
+}
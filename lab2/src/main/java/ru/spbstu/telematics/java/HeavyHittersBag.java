@@ -0,0 +1,306 @@
+package ru.spbstu.telematics.java;
+
+import org.apache.commons.collections4.Bag;
+
+import java.util.*;
+
+/**
+ * Сумка ограниченного размера для поиска самых частых элементов потока
+ * алгоритмом Space-Saving. Хранится не больше <code>capacity</code>
+ * счетчиков. Если новый элемент не помещается, он вытесняет элемент с
+ * наименьшим счетчиком <code>min</code> и получает счетчик
+ * <code>min + n</code> с ошибкой <code>min</code>. <br>
+ * Счетчики хранятся в {@link MyBag} с включенным индексом частот,
+ * который служит структурой stream summary: наименьший счетчик находится
+ * за O(1), увеличение счетчика на 1 тоже стоит O(1). <br>
+ * Гарантии: кратность отслеживаемого элемента лежит в диапазоне
+ * от <code>getCount(o) - getError(o)</code> до <code>getCount(o)</code>,
+ * кратность неотслеживаемого элемента не больше {@link HeavyHittersBag#minCount()},
+ * а любой элемент с кратностью больше <code>size() / capacity</code>
+ * обязательно отслеживается. Сумма счетчиков равна количеству добавленных
+ * копий. <br>
+ * Удаление копий не поддерживается: алгоритм не сохраняет гарантии при
+ * уменьшении счетчиков.
+ * @param <T> тип элемента коллекции.
+ */
+public class HeavyHittersBag<T> extends AbstractCollection<T> implements Bag<T> {
+    /**
+     * Оценка кратности элемента с границей ошибки.
+     * @param <T> тип элемента.
+     */
+    public static final class Estimate<T> {
+        private final T element;
+        private final int count;
+        private final int error;
+
+        Estimate(T element, int count, int error) {
+            this.element = element;
+            this.count = count;
+            this.error = error;
+        }
+
+        /**
+         * @return элемент.
+         */
+        public T getElement() {
+            return element;
+        }
+
+        /**
+         * @return верхняя граница кратности.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return максимальное завышение кратности.
+         */
+        public int getError() {
+            return error;
+        }
+
+        /**
+         * @return нижняя граница кратности.
+         */
+        public int getGuaranteedCount() {
+            return count - error;
+        }
+
+        /**
+         * @return строковое представление вида <code>count(-error):element</code>.
+         */
+        @Override
+        public String toString() {
+            return count + "(-" + error + "):" + element;
+        }
+    }
+
+    /**
+     * Максимальное количество счетчиков.
+     */
+    private final int capacity;
+
+    /**
+     * Счетчики отслеживаемых элементов.
+     */
+    private final MyBag<T> counters;
+
+    /**
+     * Ошибки счетчиков; элементы с нулевой ошибкой не хранятся.
+     */
+    private final MyBag<T> errors = new MyBag<T>();
+
+    /**
+     * Количество отслеживаемых элементов.
+     */
+    private int monitored;
+
+    /**
+     * Конструктор.
+     * @param capacity максимальное количество счетчиков.
+     * @throws IllegalArgumentException если <code>capacity < 1</code>.
+     */
+    public HeavyHittersBag(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Illegal capacity: " + capacity);
+        this.capacity = capacity;
+        counters = MyBag.withExpectedSize(capacity);
+        counters.enableFrequencyIndex();
+    }
+
+    /**
+     * Добавляет объект с кратностью 1.
+     * @param o добавляемый объект.
+     * @return всегда <code>true</code>.
+     */
+    public boolean add(T o) {
+        return add(o, 1);
+    }
+
+    /**
+     * Добавляет несколько копий объекта. Если объект не отслеживается, а
+     * все счетчики заняты, вытесняет элемент с наименьшим счетчиком.
+     * @param o добавляемый объект.
+     * @param n количество копий, если <code>n < 1</code>, объект не добавляется.
+     * @return <code>true</code>, если объект был добавлен, иначе <code>false</code>.
+     */
+    public boolean add(T o, int n) {
+        if (n < 1)
+            return false;
+        boolean known = counters.contains(o);
+        if (known || monitored < capacity) {
+            if (!known)
+                monitored++;
+            counters.add(o, n);
+            return true;
+        }
+        MyBag.Entry<T> min = counters.leastCommon();
+        counters.remove(min.getElement());
+        errors.remove(min.getElement());
+        counters.add(o, min.getCount() + n);
+        errors.add(o, min.getCount());
+        return true;
+    }
+
+    /**
+     * Верхняя граница кратности объекта.
+     * @param o объект.
+     * @return счетчик объекта или 0, если объект не отслеживается; в этом
+     * случае кратность не больше {@link HeavyHittersBag#minCount()}.
+     */
+    public int getCount(Object o) {
+        return counters.getCount(o);
+    }
+
+    /**
+     * Максимальное завышение счетчика объекта.
+     * @param o объект.
+     * @return ошибка счетчика или 0, если объект не отслеживается.
+     */
+    public int getError(Object o) {
+        return errors.getCount(o);
+    }
+
+    /**
+     * Нижняя граница кратности объекта.
+     * @param o объект.
+     * @return <code>getCount(o) - getError(o)</code>.
+     */
+    public int getGuaranteedCount(Object o) {
+        return getCount(o) - getError(o);
+    }
+
+    /**
+     * @return верхняя граница кратности любого неотслеживаемого элемента:
+     * наименьший счетчик, если все счетчики заняты, иначе 0.
+     */
+    public int minCount() {
+        if (monitored < capacity)
+            return 0;
+        return counters.leastCommon().getCount();
+    }
+
+    /**
+     * Самые частые элементы с границами ошибок.
+     * @param k количество элементов.
+     * @return до <code>k</code> оценок по убыванию счетчика.
+     */
+    public List<Estimate<T>> topK(int k) {
+        List<MyBag.Entry<T>> top = counters.topK(k);
+        List<Estimate<T>> res = new ArrayList<Estimate<T>>(top.size());
+        for (MyBag.Entry<T> e : top)
+            res.add(new Estimate<T>(e.getElement(), e.getCount(), errors.getCount(e.getElement())));
+        return res;
+    }
+
+    /**
+     * Элементы, которые могут встречаться чаще заданной доли потока. Среди
+     * них обязательно есть все элементы с кратностью больше
+     * <code>phi * size()</code>, если <code>phi >= 1 / capacity</code>.
+     * Элементы, у которых {@link Estimate#getGuaranteedCount()} больше
+     * порога, действительно встречаются чаще.
+     * @param phi доля потока, от 0 до 1.
+     * @return оценки по убыванию счетчика.
+     */
+    public List<Estimate<T>> heavyHitters(double phi) {
+        long threshold = (long) (phi * size()) + 1;
+        return topK(counters.countAtLeast((int) Math.min(threshold, Integer.MAX_VALUE)));
+    }
+
+    /**
+     * @return максимальное количество счетчиков.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return множество отслеживаемых элементов, только для чтения.
+     */
+    public Set<T> uniqueSet() {
+        return Collections.unmodifiableSet(counters.uniqueSet());
+    }
+
+    /**
+     * @return количество добавленных копий, равное сумме счетчиков.
+     */
+    public int size() {
+        return counters.size();
+    }
+
+    /**
+     * @param o проверяемый объект.
+     * @return <code>true</code>, если объект отслеживается.
+     */
+    @Override
+    public boolean contains(Object o) {
+        return counters.contains(o);
+    }
+
+    /**
+     * Проверяет, что счетчики не меньше кратностей в коллекции.
+     * @param collection коллекция.
+     * @return <code>true</code>, если все элементы, возможно, содержатся.
+     */
+    public boolean containsAll(Collection<?> collection) {
+        return counters.containsAll(collection);
+    }
+
+    /**
+     * @return итератор по копиям отслеживаемых элементов, только для чтения.
+     */
+    public Iterator<T> iterator() {
+        return Collections.unmodifiableCollection(counters).iterator();
+    }
+
+    /**
+     * Очищает сумку.
+     */
+    @Override
+    public void clear() {
+        counters.clear();
+        errors.clear();
+        monitored = 0;
+    }
+
+    /**
+     * Не поддерживается: уменьшение счетчиков нарушает гарантии алгоритма.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException("HeavyHittersBag does not support removal!");
+    }
+
+    /**
+     * Не поддерживается: уменьшение счетчиков нарушает гарантии алгоритма.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean remove(Object o, int n) {
+        throw new UnsupportedOperationException("HeavyHittersBag does not support removal!");
+    }
+
+    /**
+     * Не поддерживается: уменьшение счетчиков нарушает гарантии алгоритма.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean removeAll(Collection<?> collection) {
+        throw new UnsupportedOperationException("HeavyHittersBag does not support removal!");
+    }
+
+    /**
+     * Не поддерживается: уменьшение счетчиков нарушает гарантии алгоритма.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean retainAll(Collection<?> collection) {
+        throw new UnsupportedOperationException("HeavyHittersBag does not support removal!");
+    }
+
+    /**
+     * @return строковое представление вида <code>[count:element,...]</code>.
+     */
+    @Override
+    public String toString() {
+        return counters.toString();
+    }
+}
@@ -0,0 +1,537 @@
+package ru.spbstu.telematics.java;
+
+import org.apache.commons.collections4.Bag;
+
+import java.util.*;
+
+/**
+ * Сумка для чисел типа <code>int</code> с той же семантикой, что и
+ * {@link MyBag}, но без упаковки: элементы и кратности хранятся в
+ * параллельных массивах <code>int[]</code> хэш-таблицы с открытой адресацией
+ * и линейным пробированием. <br>
+ * Состояние ячейки определяется кратностью: 0 -- пустая ячейка, -1 --
+ * удаленная, положительное число -- кратность элемента. Поэтому любое
+ * значение <code>int</code> может быть элементом. <br>
+ * Для передачи в код, работающий с интерфейсом <code>Bag</code>,
+ * используется представление {@link IntBag#asBag()}.
+ * @see LongBag
+ * @see MyBag
+ */
+public class IntBag {
+    /**
+     * Элементы хэш-таблицы. Длина массива -- степень двойки.
+     */
+    int[] keys;
+
+    /**
+     * Кратности элементов: 0 -- пустая ячейка, {@link IntBag#DELETED} --
+     * удаленная.
+     */
+    int[] counts;
+
+    /**
+     * Общее количество элементов, учитывая кратность.
+     */
+    int count;
+
+    /**
+     * Количество различных элементов.
+     */
+    int distinct;
+
+    /**
+     * Количество непустых ячеек, включая удаленные.
+     */
+    int used;
+
+    /**
+     * Количество структурных изменений, для обнаружения изменения сумки
+     * во время обхода итератором.
+     */
+    int modCount;
+
+    /**
+     * Кратность удаленной ячейки.
+     */
+    static final int DELETED = -1;
+
+    /**
+     * Коэффициент загрузки таблицы.
+     */
+    static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * Конструктор по умолчанию. Создает пустую сумку.
+     */
+    public IntBag() {
+        this(0);
+    }
+
+    /**
+     * Создает пустую сумку, в которую помещается заданное количество
+     * различных элементов без перестройки таблицы.
+     * @param expectedSize ожидаемое количество различных элементов.
+     * @throws IllegalArgumentException если размер отрицательный.
+     */
+    public IntBag(int expectedSize) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Illegal expected size: " + expectedSize);
+        int size = Math.max(MyBag.tableSizeFor(expectedSize, LOAD_FACTOR), MyBag.INIT_TABLE_SIZE);
+        keys = new int[size];
+        counts = new int[size];
+    }
+
+    /**
+     * Номер начальной ячейки для элемента.
+     * @param x элемент.
+     * @param m маска, длина таблицы минус 1.
+     * @return номер ячейки.
+     */
+    static int slot(int x, int m) {
+        return MyBag.spread(x) & m;
+    }
+
+    /**
+     * Находит ячейку, в которой находится элемент.
+     * @param x элемент.
+     * @return номер ячейки или -1, если элемента нет в сумке.
+     */
+    private int find(int x) {
+        int m = keys.length - 1;
+        for (int i = slot(x, m); ; i = (i + 1) & m) {
+            int c = counts[i];
+            if (c == 0)
+                return -1;
+            if (c > 0 && keys[i] == x)
+                return i;
+        }
+    }
+
+    /**
+     * Удаляет элемент из ячейки. Если за ячейкой нет цепочки пробирования,
+     * ячейка и предшествующие ей удаленные ячейки становятся пустыми.
+     * @param i номер ячейки.
+     */
+    private void removeAt(int i) {
+        int m = keys.length - 1;
+        distinct--;
+        if (counts[(i + 1) & m] != 0) {
+            counts[i] = DELETED;
+            return;
+        }
+        counts[i] = 0;
+        used--;
+        for (i = (i - 1) & m; counts[i] == DELETED; i = (i - 1) & m) {
+            counts[i] = 0;
+            used--;
+        }
+    }
+
+    /**
+     * Перестраивает таблицу, если заполнение превысило коэффициент загрузки.
+     */
+    private void ensureCapacity() {
+        if (used <= keys.length * LOAD_FACTOR)
+            return;
+        int size = keys.length;
+        if (distinct * 2L > size * LOAD_FACTOR)
+            size *= 2;
+        int[] oldKeys = keys;
+        int[] oldCounts = counts;
+        keys = new int[size];
+        counts = new int[size];
+        int m = size - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldCounts[j] <= 0)
+                continue;
+            int i = slot(oldKeys[j], m);
+            while (counts[i] != 0)
+                i = (i + 1) & m;
+            keys[i] = oldKeys[j];
+            counts[i] = oldCounts[j];
+        }
+        used = distinct;
+    }
+
+    /**
+     * Возвращает количество элемента в сумке.
+     * @param x элемент, количество которого считаем.
+     * @return количество элемента в сумке.
+     */
+    public int getCount(int x) {
+        int i = find(x);
+        return (i < 0) ? 0 : counts[i];
+    }
+
+    /**
+     * Проверяет наличие элемента в сумке.
+     * @param x проверяемый элемент.
+     * @return <code>true</code>, если элемент есть в сумке, иначе <code>false</code>.
+     */
+    public boolean contains(int x) {
+        return find(x) >= 0;
+    }
+
+    /**
+     * Добавляет элемент с кратностью 1.
+     * @param x добавляемый элемент.
+     * @return всегда <code>true</code>.
+     * @see IntBag#add(int, int)
+     */
+    public boolean add(int x) {
+        return add(x, 1);
+    }
+
+    /**
+     * Добавляет несколько копий элемента.
+     * @param x добавляемый элемент.
+     * @param n количество копий, если <code>n < 1</code>, элемент не добавляется.
+     * @return <code>true</code>, если элемент был добавлен, иначе <code>false</code>.
+     */
+    public boolean add(int x, int n) {
+        if (n < 1)
+            return false;
+        int m = keys.length - 1;
+        int free = -1;
+        for (int i = slot(x, m); ; i = (i + 1) & m) {
+            int c = counts[i];
+            if (c == 0) {
+                if (free < 0) {
+                    free = i;
+                    used++;
+                }
+                keys[free] = x;
+                counts[free] = n;
+                distinct++;
+                count += n;
+                modCount++;
+                ensureCapacity();
+                return true;
+            }
+            if (c == DELETED) {
+                if (free < 0)
+                    free = i;
+            }
+            else if (keys[i] == x) {
+                counts[i] += n;
+                count += n;
+                modCount++;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Удаляет все копии элемента из сумки.
+     * @param x удаляемый элемент.
+     * @return <code>true</code>, если элемент был ранее в сумке, иначе <code>false</code>.
+     */
+    public boolean remove(int x) {
+        int i = find(x);
+        if (i < 0)
+            return false;
+        count -= counts[i];
+        removeAt(i);
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Удаляет <code>n</code> копий элемента из сумки.
+     * @param x удаляемый элемент.
+     * @param n количество удаляемых копий. Если <code>n < 1</code>,
+     *          удаление не происходит.
+     * @return <code>true</code>, если что-то было удалено, иначе <code>false</code>.
+     */
+    public boolean remove(int x, int n) {
+        if (n < 1)
+            return false;
+        int i = find(x);
+        if (i < 0)
+            return false;
+        if (counts[i] <= n) {
+            count -= counts[i];
+            removeAt(i);
+        }
+        else {
+            count -= n;
+            counts[i] -= n;
+        }
+        modCount++;
+        return true;
+    }
+
+    /**
+     * @return количество элементов в сумке, учитывая кратность.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return количество различных элементов в сумке.
+     */
+    public int uniqueCount() {
+        return distinct;
+    }
+
+    /**
+     * @return <code>true</code>, если в сумке ничего не содержится, иначе <code>false</code>.
+     */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Очищает сумку.
+     */
+    public void clear() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        distinct = 0;
+        used = 0;
+        modCount++;
+    }
+
+    /**
+     * @return массив со всеми различными элементами сумки.
+     */
+    public int[] uniqueValues() {
+        int[] res = new int[distinct];
+        int j = 0;
+        for (int i = 0; i < keys.length; i++)
+            if (counts[i] > 0)
+                res[j++] = keys[i];
+        return res;
+    }
+
+    /**
+     * @return множество со всеми различными элементами сумки.
+     * Элементы упаковываются.
+     */
+    public Set<Integer> uniqueSet() {
+        Set<Integer> res = new HashSet<Integer>();
+        for (int x : uniqueValues())
+            res.add(x);
+        return res;
+    }
+
+    /**
+     * Представление сумки в виде <code>Bag&lt;Integer&gt;</code>. Изменения
+     * представления изменяют эту сумку и наоборот. Упаковка происходит только
+     * на границе представления.
+     * @return представление сумки.
+     */
+    public Bag<Integer> asBag() {
+        return new BagView();
+    }
+
+    /**
+     * Сравнение происходит так же, как в классе {@link MyBag}.
+     * @param o другая сумка.
+     * @return <code>true</code>, если сумки одинаковые.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof IntBag)) return false;
+        IntBag other = (IntBag) o;
+        if (count != other.count || distinct != other.distinct)
+            return false;
+        for (int i = 0; i < keys.length; i++)
+            if (counts[i] > 0 && other.getCount(keys[i]) != counts[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Хэш-код вычисляется так же, как в классе {@link MyBag}, поэтому
+     * совпадает с хэш-кодом сумки с теми же упакованными элементами.
+     * @return хэш-код сумки.
+     */
+    @Override
+    public int hashCode() {
+        int result = 0;
+        for (int i = 0; i < keys.length; i++)
+            if (counts[i] > 0)
+                result += Integer.valueOf(keys[i]).hashCode() ^ counts[i];
+        return result;
+    }
+
+    /**
+     * @return Строковое представление сумки.
+     */
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder("[");
+        boolean first = true;
+        for (int i = 0; i < keys.length; i++) {
+            if (counts[i] <= 0)
+                continue;
+            if (first) {
+                first = false;
+            }
+            else {
+                res.append(",");
+            }
+            res.append(counts[i]).append(":").append(keys[i]);
+        }
+        res.append(']');
+        return res.toString();
+    }
+
+    /**
+     * Представление {@link IntBag} с интерфейсом <code>Bag</code>.
+     */
+    private class BagView extends AbstractCollection<Integer> implements Bag<Integer> {
+        public int getCount(Object o) {
+            return (o instanceof Integer) ? IntBag.this.getCount((Integer) o) : 0;
+        }
+
+        public boolean add(Integer o) {
+            return IntBag.this.add(o);
+        }
+
+        public boolean add(Integer o, int n) {
+            return IntBag.this.add(o, n);
+        }
+
+        public boolean remove(Object o) {
+            return (o instanceof Integer) && IntBag.this.remove((Integer) o);
+        }
+
+        public boolean remove(Object o, int n) {
+            return (o instanceof Integer) && IntBag.this.remove((Integer) o, n);
+        }
+
+        public boolean contains(Object o) {
+            return (o instanceof Integer) && IntBag.this.contains((Integer) o);
+        }
+
+        public Set<Integer> uniqueSet() {
+            return IntBag.this.uniqueSet();
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public void clear() {
+            IntBag.this.clear();
+        }
+
+        /**
+         * Проверяет, содержатся ли в сумке все элементы коллекции, учитывая кратность.
+         */
+        public boolean containsAll(Collection<?> coll) {
+            IntBag need = new IntBag();
+            for (Object o : coll) {
+                if (!(o instanceof Integer))
+                    return false;
+                need.add((Integer) o);
+            }
+            for (int i = 0; i < need.keys.length; i++)
+                if (need.counts[i] > 0 && IntBag.this.getCount(need.keys[i]) < need.counts[i])
+                    return false;
+            return true;
+        }
+
+        /**
+         * Удаляет из сумки все элементы коллекции, учитывая кратность.
+         */
+        public boolean removeAll(Collection<?> coll) {
+            boolean changed = false;
+            for (Object o : coll)
+                changed |= remove(o, 1);
+            return changed;
+        }
+
+        /**
+         * Оставляет в сумке только элементы из коллекции, учитывая кратность.
+         */
+        public boolean retainAll(Collection<?> coll) {
+            IntBag keep = new IntBag();
+            for (Object o : coll)
+                if (o instanceof Integer)
+                    keep.add((Integer) o);
+            boolean changed = false;
+            for (int x : uniqueValues()) {
+                int extra = IntBag.this.getCount(x) - keep.getCount(x);
+                if (extra > 0) {
+                    IntBag.this.remove(x, extra);
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        public Iterator<Integer> iterator() {
+            return new Iterator<Integer>() {
+                int current = -1;
+                int next = nextSlot(-1);
+                int left = 0;
+                boolean canRemove = false;
+                int expectedModCount = modCount;
+
+                int nextSlot(int i) {
+                    for (i++; i < keys.length; i++)
+                        if (counts[i] > 0)
+                            return i;
+                    return keys.length;
+                }
+
+                public boolean hasNext() {
+                    return left > 0 || next < keys.length;
+                }
+
+                public Integer next() {
+                    if (modCount != expectedModCount)
+                        throw new ConcurrentModificationException();
+                    if (left == 0) {
+                        if (next >= keys.length)
+                            throw new NoSuchElementException();
+                        current = next;
+                        left = counts[current];
+                        next = nextSlot(current);
+                    }
+                    left--;
+                    canRemove = true;
+                    return keys[current];
+                }
+
+                public void remove() {
+                    if (!canRemove)
+                        throw new IllegalStateException();
+                    if (modCount != expectedModCount)
+                        throw new ConcurrentModificationException();
+                    canRemove = false;
+                    IntBag.this.remove(keys[current], 1);
+                    expectedModCount = modCount;
+                }
+            };
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Bag)) return false;
+            Bag<?> other = (Bag<?>) o;
+            if (other.size() != count)
+                return false;
+            for (int x : uniqueValues())
+                if (other.getCount(x) != IntBag.this.getCount(x))
+                    return false;
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return IntBag.this.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return IntBag.this.toString();
+        }
+    }
+}
@@ -1,163 +1,246 @@
 package ru.spbstu.telematics.java;
 
-import javafx.util.Pair;
 import org.apache.commons.collections4.Bag;
 import org.apache.commons.collections4.bag.AbstractMapBag;
 
-import java.lang.reflect.Array;
 import java.util.*;
-
-import static java.lang.Math.abs;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
 
 /**
  * Контейнерный класс, реализующий интерфейс <code>Bag</code> из Apache
  * Collections 4. Для каждого элемента хранится его кратность, то есть
- * то, сколько раз он встречается в коллекции. Для хранения используется
- * хэш-таблица.
+ * то, сколько раз он встречается в коллекции. <br>
+ * Для хранения используется хэш-таблица с открытой адресацией и линейным
+ * пробированием: элементы и их кратности лежат в параллельных массивах
+ * {@link MyBag#keys} и {@link MyBag#counts}, поэтому на элемент не создается
+ * отдельных объектов, а увеличение кратности уже имеющегося элемента не
+ * выделяет память. <br>
+ * Размер таблицы -- степень двойки. Когда заполнение превышает коэффициент
+ * загрузки, создается новая таблица, а элементы старой переносятся в нее
+ * постепенно, по {@link MyBag#MIGRATE_STEP} ячеек при каждом изменении
+ * сумки, чтобы одна операция не перестраивала всю таблицу. Пока перенос не
+ * закончен, поиск выполняется в обеих таблицах. <br>
+ * Хэш-коды перемешиваются со случайным для каждого запуска JVM числом
+ * {@link MyBag#HASH_SEED}, поэтому подобрать элементы, которые попадают
+ * в одну ячейку, заранее нельзя. От элементов с одинаковыми хэш-кодами
+ * это не спасает, поэтому <code>Comparable</code>-элемент, для которого
+ * цепочка пробирования длиннее {@link MyBag#TREEIFY_THRESHOLD}, кладется
+ * не в таблицу, а в дерево переполнения {@link MyBag#tree}, упорядоченное
+ * по хэшу и затем по <code>compareTo</code>, как в корзинах
+ * <code>java.util.HashMap</code>. Так время операций в худшем случае --
+ * O(log n), если у элементов <code>compareTo</code> согласован с <code>equals</code>.
  * @param <T> тип элемента коллекции.
  */
 public class MyBag<T> implements Bag<T> {
     /**
-     * Хэш-таблица, элементами массива являются первые элементы односвязного списка.
-     * @see MyNode
+     * Ключи хэш-таблицы. Пустая ячейка -- <code>null</code>, удаленная --
+     * {@link MyBag#TOMBSTONE}, элемент <code>null</code> хранится как
+     * {@link MyBag#NULL_KEY}. Длина массива -- степень двойки.
+     */
+    Object[] keys;
+
+    /**
+     * Кратности элементов, ячейка <code>i</code> соответствует <code>keys[i]</code>.
+     */
+    int[] counts;
+
+    /**
+     * Ключи старой таблицы, элементы которой еще переносятся в новую, или
+     * <code>null</code>, если перестройка не идет. Перенесенные ячейки
+     * помечаются как удаленные.
+     */
+    Object[] oldKeys;
+
+    /**
+     * Кратности элементов старой таблицы.
+     */
+    int[] oldCounts;
+
+    /**
+     * Количество уже перенесенных ячеек старой таблицы.
      */
-    MyNode<T>[] table;
+    int migrated;
+
     /**
      * Общее количество элементов в таблице.
      */
     int count;
+
     /**
-     * Изначальное количество списков в таблице.
-     * Тут используется наивная реализация -- таблица не расширяется.
+     * Количество различных элементов в обеих таблицах.
      */
-    static final int INIT_TABLE_SIZE = 20;
+    int distinct;
 
     /**
-     * Узел односвязного списка.
-     * @param <T> тип хранимых в коллекции данных.
+     * Количество непустых ячеек таблицы {@link MyBag#keys}, включая удаленные.
      */
-    static private class MyNode<T> {
+    int used;
 
-        /**
-         * Узел хранит данные и их кратность.
-         */
-        Pair<T, Integer> data;
+    /**
+     * Количество непустых ячеек, при превышении которого таблица перестраивается.
+     */
+    int threshold;
 
-        /**
-         * Указатель на следующий элемент списка.
-         */
-        MyNode<T> next;
+    /**
+     * Коэффициент загрузки таблицы.
+     */
+    final float loadFactor;
 
-        /**
-         * Конструктор.
-         * @param val данные для узла.
-         * @param count кратность данных.
-         */
-        public MyNode(T val, Integer count) {
-            data = new Pair<T, Integer>(val, count);
-            next = null;
-        }
+    /**
+     * Индекс частот или <code>null</code>, если он не включен.
+     * @see MyBag#enableFrequencyIndex()
+     */
+    FrequencyIndex index;
 
-        /**
-         * Вставляет новый узел узел после этого узла
-         * @param val данные для нового узла.
-         * @param count кратность данных.
-         */
-        public void insert(T val, int count) {
-            MyNode<T> p = next;
-            next = new MyNode<T>(val, count);
-            next.next = p;
-        }
+    /**
+     * Количество структурных изменений, для обнаружения изменения сумки
+     * во время обхода итератором.
+     */
+    int modCount;
 
-        /**
-         * Добавляет новый узел в конец списка.
-         * @param val данные для нового узла.
-         * @param count кратность данных.
-         * @return длина списка после вставки, начиная с этого узла.
-         */
+    /**
+     * Хэш-код сумки: сумма <code>hashCode() ^ кратность</code> по
+     * элементам, поддерживается при каждом изменении кратности.
+     * @see MyBag#countChanged(Object, int, int)
+     */
+    int hash;
 
-        public int pushBack(T val, int count) {
-            int c = 2;
-            MyNode<T> p = this;
-            while (p.next != null) {
-                p = p.next;
-                c++;
-            }
-            p.next = new MyNode<T>(val, count);
-            return c;
-        }
+    /**
+     * Представление {@link MyBag#uniqueSet()}, создается при первом обращении.
+     */
+    private Set<T> uniqueSet;
 
-        /**
-         * Удаляет следующий узел.
-         */
-        public void removeNext() {
-            if (next != null) {
-                next = next.next;
-            }
-        }
+    /**
+     * Дерево переполнения: ключ -- номер ячейки в {@link MyBag#treeKeys}.
+     * <code>null</code>, если переполнения нет.
+     * @see MyBag#TREE_ORDER
+     */
+    TreeMap<Object, Integer> tree;
 
-        /**
-         * Доступ на чтение для поля {@link MyNode#next}.
-         * @return значение поля {@link MyNode#next}.
-         */
-        public MyNode<T> getNext() {
-            return next;
-        }
+    /**
+     * Ключи дерева переполнения в порядке добавления; удаленные помечаются
+     * {@link MyBag#TOMBSTONE}.
+     */
+    Object[] treeKeys;
 
-        /**
-         * Доступ на чтение для поля {@link MyNode#data}.
-         * @return значение поля {@link MyNode#data}.
-         */
-        public Pair<T, Integer> getData() {
-            return data;
-        }
+    /**
+     * Кратности элементов дерева переполнения.
+     */
+    int[] treeCounts;
 
-        /**
-         * Устанавливает новую кратность для данных в узле.
-         * @param c новая кратность данных.
-         */
-        public void setCount(int c) {
-            data = new Pair<T, Integer>(data.getKey(), c);
+    /**
+     * Количество занятых ячеек {@link MyBag#treeKeys}, включая удаленные.
+     */
+    int treeUsed;
+
+    /**
+     * Изначальный размер таблицы, степень двойки.
+     */
+    static final int INIT_TABLE_SIZE = 16;
+
+    /**
+     * Коэффициент загрузки по умолчанию.
+     */
+    static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+    /**
+     * Количество ячеек старой таблицы, переносимых при каждом изменении
+     * сумки. Перенос заканчивается раньше, чем заполнится новая таблица.
+     */
+    static final int MIGRATE_STEP = 8;
+
+    /**
+     * Наименьшее количество ячеек в части таблицы, которую объединяет одна
+     * задача {@link MergeTask}. Таблицы меньше двух таких частей
+     * объединяются последовательно.
+     */
+    static final int MERGE_CHUNK = 1 << 13;
+
+    /**
+     * Длина цепочки пробирования, начиная с которой новый
+     * <code>Comparable</code>-элемент кладется в дерево переполнения. При
+     * хороших хэш-кодах и коэффициенте загрузки 0.75 такие цепочки
+     * практически не встречаются.
+     */
+    static final int TREEIFY_THRESHOLD = 64;
+
+    /**
+     * Случайная добавка к хэш-кодам, одна на запуск JVM: у сумок одного
+     * размера таблицы устроены одинаково, на это рассчитано
+     * {@link MyBag#combine(Bag, Bag, BulkOp)}.
+     */
+    static final int HASH_SEED = new Random().nextInt();
+
+    /**
+     * Порядок дерева переполнения: по перемешанному хэшу, затем по имени
+     * класса, затем по <code>compareTo</code>.
+     */
+    static final Comparator<Object> TREE_ORDER = new Comparator<Object>() {
+        @SuppressWarnings("unchecked")
+        public int compare(Object a, Object b) {
+            int ha = spread(a.hashCode());
+            int hb = spread(b.hashCode());
+            if (ha != hb)
+                return (ha < hb) ? -1 : 1;
+            if (a.getClass() != b.getClass())
+                return a.getClass().getName().compareTo(b.getClass().getName());
+            return ((Comparable<Object>) a).compareTo(b);
         }
-    } //класс MyNode кончился
+    };
 
     /**
-     * Итератор для коллекции.
-     * @param <T> тип данных в коллекции.
+     * Заменитель элемента <code>null</code> в таблице.
      */
-    static private class BagIterator<T> implements Iterator<T> {
+    static final Object NULL_KEY = new Object();
+
+    /**
+     * Метка удаленной ячейки. Не дает оборваться цепочкам пробирования,
+     * проходящим через ячейку.
+     */
+    static final Object TOMBSTONE = new Object();
+
+    /**
+     * Итератор для коллекции. Каждый элемент возвращается столько раз,
+     * какова его кратность.
+     */
+    private class BagIterator implements Iterator<T> {
         /**
-         * Ссылка на таблицу, которую хранит экземпляр коллекции.
-         * @see MyBag#table
+         * Ячейка, элемент которой сейчас возвращается.
+         * @see MyBag#keyAt(int)
          */
-        MyNode<T>[] table;
+        int current;
 
         /**
-         * Индекс текущего списка в таблице.
+         * Следующая непустая ячейка или {@link MyBag#slotCount()}, если ее нет.
          */
-        int index;
+        int next;
 
         /**
-         * Предыдущий узел в списке. Имеет значение <code>null</code>, если
-         * если итератор указывает на первые узел в списке.
+         * Сколько копий текущего элемента еще осталось вернуть.
          */
-        MyNode<T> prev;
+        int left;
 
         /**
-         * Текущая кратность в узел.
+         * Можно ли вызвать {@link BagIterator#remove()}.
          */
-        int card;
+        boolean canRemove;
 
+        /**
+         * Ожидаемое значение {@link MyBag#modCount}.
+         */
+        int expectedModCount;
 
         /**
          * Конструктор.
-         * @param tab таблица {@link MyBag#table}.
          */
-        public BagIterator(MyNode<T>[] tab) {
-            table = tab;
-            prev = null;
-            index = 0;
-            card = 0;
+        BagIterator() {
+            current = -1;
+            next = nextSlot(-1);
+            left = 0;
+            expectedModCount = modCount;
         }
 
         /**
@@ -166,155 +249,441 @@ public class MyBag<T> implements Bag<T> {
          * коллекции, <code>true</code> иначе.
          */
         public boolean hasNext() {
-            //мы в начале списка
-            if (prev == null) {
-                int i = index;
-                //пропускаем все пустые списки
-                while (i < table.length && table[i] == null)
-                    i++;
-                //есть непустой список до конца таблицы
-                return i < table.length;
-            }
-            return true;
+            return left > 0 || next < slotCount();
         }
 
         /**
          * Следующий элемент коллекции.
          * @return значение следующего элемента коллекции.
+         * @throws NoSuchElementException если элементы кончились.
+         * @throws ConcurrentModificationException если сумка была изменена
+         *         не через этот итератор.
          */
         public T next() {
-            if (!hasNext())
-                return null;
-            //мы в начале списка
-            if (prev == null) {
-                //находим непустой список
-                MyNode<T> p = table[index];
-                while (p == null) {
-                    index++;
-                    p = table[index];
-                }
-                //еще не все копии перебрали
-                if (card < p.getData().getValue()) {
-                    card++;
-                    //возвращаем копию
-                    return p.getData().getKey();
-                }
-                //перебрали все копии
-                else {
-                    //переходим к следующему узлу
-                    prev = p;
-                    card = 0;
-                    return next();
-                }
-            }
-            //мы в конце списка
-            else if (prev.next == null) {
-                //переходим к следующему списку в таблице
-                prev = null;
-                card = 0;
-                index++;
-                return next();
-            }
-            //находимся где-то в середине списка
-            else {
-                //перебрали не все копии
-                if (card < prev.next.getData().getValue()) {
-                    card++;
-                    //возвращаем очередную копию
-                    return prev.getData().getKey();
-                }
-                else {
-                    //переходим к следующему узлу
-                    card = 0;
-                    prev = prev.next;
-                    return next();
-                }
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (left == 0) {
+                if (next >= slotCount())
+                    throw new NoSuchElementException();
+                current = next;
+                left = countAt(current);
+                next = nextSlot(current);
             }
+            left--;
+            canRemove = true;
+            return unmask(keyAt(current));
         }
 
         /**
-         * Метод-заглушка. Добавлен, чтобы компилировалось. <br>
-         * Ничего не делает.
+         * Удаляет из сумки одну копию элемента, который был возвращен
+         * последним вызовом {@link BagIterator#next()}.
+         * @throws IllegalStateException если <code>next()</code> еще не
+         *         вызывался или копия уже удалена.
          */
         public void remove() {
-            //METHOD STUB
+            if (!canRemove)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            canRemove = false;
+            if (countAt(current) == 1)
+                removeAt(current);
+            else
+                addAt(current, -1);
+            count--;
+            modCount++;
+            expectedModCount = modCount;
         }
     } //класс BagIterator кончился
 
     /**
-     * Находит узел, в котором находится переданный объект.
-     * @param o объект, узел с которым нужно найти.
-     * @return узел, в котором находится объект.
+     * Перемешивание битов хэш-кода со случайной добавкой
+     * {@link MyBag#HASH_SEED} (хэширование Фибоначчи), чтобы младшие
+     * биты, по которым выбирается ячейка, зависели от всех битов.
+     * @param h хэш-код.
+     * @return перемешанный хэш-код.
+     */
+    static int spread(int h) {
+        h = (h ^ HASH_SEED) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Элемент в том виде, в котором он хранится в таблице.
+     * @param o элемент.
+     * @return {@link MyBag#NULL_KEY} для <code>null</code>, иначе сам элемент.
+     */
+    static Object mask(Object o) {
+        return (o == null) ? NULL_KEY : o;
+    }
+
+    /**
+     * Элемент в исходном виде.
+     * @param k ключ из таблицы.
+     * @return элемент, который хранится под этим ключом.
      */
-    private MyNode<T> getNode(Object o) {
-        int i = getIndex(o);
-        for (MyNode<T> p = table[i]; p != null; p = p.getNext()) {
-            if (safeEquals(p.getData().getKey(), o))
-                return p;
+    @SuppressWarnings("unchecked")
+    static <T> T unmask(Object k) {
+        return (k == NULL_KEY) ? null : (T) k;
+    }
+
+    /**
+     * @param k содержимое ячейки.
+     * @return <code>true</code>, если в ячейке хранится элемент.
+     */
+    static boolean isLive(Object k) {
+        return k != null && k != TOMBSTONE;
+    }
+
+    /**
+     * Наименьшая степень двойки, при которой таблица вмещает заданное
+     * количество элементов без перестройки.
+     * @param expectedSize ожидаемое количество различных элементов.
+     * @param loadFactor коэффициент загрузки.
+     * @return размер таблицы.
+     */
+    static int tableSizeFor(int expectedSize, float loadFactor) {
+        int size = 2;
+        while (size < (1 << 30) && (int) (size * loadFactor) < expectedSize + 1)
+            size <<= 1;
+        return size;
+    }
+
+    /**
+     * Поиск ключа в одной таблице.
+     * @param ks ключи таблицы.
+     * @param k ключ в виде {@link MyBag#mask(Object)}.
+     * @return номер ячейки или -1, если ключа нет в таблице.
+     */
+    static int probe(Object[] ks, Object k) {
+        int m = ks.length - 1;
+        for (int i = spread(k.hashCode()) & m; ; i = (i + 1) & m) {
+            Object p = ks[i];
+            if (p == null)
+                return -1;
+            if (p == k || p != TOMBSTONE && p.equals(k))
+                return i;
         }
-        return null;
     }
 
     /**
-     * Добавляем новый узел в <code>i</code>-тую строку хэш-таблицы. <br>
-     * <b>Важно:</b> предполагается, что в таблице нет узла, который
-     * хранил бы такой объект.
-     * @param i номер строки в хэш-таблице.
-     * @param val пара (данные, кратность)
+     * Находит ячейку, в которой находится переданный объект. Ячейки старой
+     * таблицы нумеруются после ячеек новой.
+     * @param o объект, ячейку с которым нужно найти.
+     * @return номер ячейки или -1, если объекта нет в сумке.
+     * @see MyBag#keyAt(int)
      */
-    private void addNew(int i, Pair<T, Integer> val) {
-        if (table[i] == null)
-            table[i] = new MyNode<T>(val.getKey(), val.getValue());
-        else
-            table[i].pushBack(val.getKey(), val.getValue());
+    private int find(Object o) {
+        Object k = mask(o);
+        int i = probe(keys, k);
+        if (i >= 0)
+            return i;
+        if (oldKeys != null) {
+            i = probe(oldKeys, k);
+            if (i >= 0)
+                return keys.length + i;
+        }
+        return findInTree(k);
+    }
+
+    /**
+     * Поиск ключа в дереве переполнения.
+     * @param k ключ в виде {@link MyBag#mask(Object)}.
+     * @return номер ячейки в нумерации {@link MyBag#find(Object)} или -1.
+     */
+    private int findInTree(Object k) {
+        if (tree == null || !(k instanceof Comparable))
+            return -1;
+        Integer j = tree.get(k);
+        return (j == null) ? -1 : treeBase() + j;
+    }
+
+    /**
+     * @return номер первой ячейки дерева переполнения: они нумеруются
+     * после ячеек обеих таблиц.
+     */
+    private int treeBase() {
+        return (oldKeys == null) ? keys.length : keys.length + oldKeys.length;
+    }
+
+    /**
+     * @return количество ячеек в обеих таблицах и дереве переполнения.
+     */
+    private int slotCount() {
+        return treeBase() + treeUsed;
+    }
+
+    /**
+     * @param s номер ячейки в нумерации {@link MyBag#find(Object)}.
+     * @return содержимое ячейки.
+     */
+    private Object keyAt(int s) {
+        if (s < keys.length)
+            return keys[s];
+        s -= keys.length;
+        if (oldKeys != null) {
+            if (s < oldKeys.length)
+                return oldKeys[s];
+            s -= oldKeys.length;
+        }
+        return treeKeys[s];
+    }
+
+    /**
+     * @param s номер ячейки в нумерации {@link MyBag#find(Object)}.
+     * @return кратность элемента в ячейке.
+     */
+    private int countAt(int s) {
+        if (s < keys.length)
+            return counts[s];
+        s -= keys.length;
+        if (oldKeys != null) {
+            if (s < oldKeys.length)
+                return oldCounts[s];
+            s -= oldKeys.length;
+        }
+        return treeCounts[s];
+    }
+
+    /**
+     * Изменяет кратность элемента в ячейке.
+     * @param s номер ячейки в нумерации {@link MyBag#find(Object)}.
+     * @param delta изменение кратности.
+     */
+    private void addAt(int s, int delta) {
+        int before;
+        if (s < keys.length) {
+            before = counts[s];
+            counts[s] += delta;
+        }
+        else if (s < treeBase()) {
+            before = oldCounts[s - keys.length];
+            oldCounts[s - keys.length] += delta;
+        }
+        else {
+            before = treeCounts[s - treeBase()];
+            treeCounts[s - treeBase()] += delta;
+        }
+        countChanged(keyAt(s), before, before + delta);
+    }
+
+    /**
+     * Отражает изменение кратности элемента в хэш-коде и индексе частот.
+     * Вызывается при каждом изменении кратности, кроме переноса элементов
+     * между таблицами.
+     * @param k ключ в виде {@link MyBag#mask(Object)}.
+     * @param before кратность до изменения, 0 -- элемента не было.
+     * @param after кратность после изменения, 0 -- элемент удален.
+     */
+    private void countChanged(Object k, int before, int after) {
+        int h = (k == NULL_KEY) ? 0 : k.hashCode();
+        if (before > 0)
+            hash -= h ^ before;
+        if (after > 0)
+            hash += h ^ after;
+        if (index != null)
+            index.update(k, before, after);
+    }
+
+    /**
+     * Следующая непустая ячейка.
+     * @param s номер ячейки, с которой начинать поиск (не включая ее).
+     * @return номер ячейки или {@link MyBag#slotCount()}, если таких ячеек нет.
+     */
+    private int nextSlot(int s) {
+        int n = slotCount();
+        for (s++; s < n; s++)
+            if (isLive(keyAt(s)))
+                return s;
+        return n;
+    }
+
+    /**
+     * Удаляет элемент из ячейки. Если за ячейкой новой таблицы нет цепочки
+     * пробирования, ячейка и предшествующие ей удаленные ячейки становятся
+     * пустыми. В старой таблице и в дереве переполнения ячейка только
+     * помечается как удаленная.
+     * @param s номер ячейки в нумерации {@link MyBag#find(Object)}.
+     */
+    private void removeAt(int s) {
+        countChanged(keyAt(s), countAt(s), 0);
+        distinct--;
+        if (s >= treeBase()) {
+            s -= treeBase();
+            tree.remove(treeKeys[s]);
+            treeKeys[s] = TOMBSTONE;
+            treeCounts[s] = 0;
+            if (tree.isEmpty()) {
+                tree = null;
+                treeKeys = null;
+                treeCounts = null;
+                treeUsed = 0;
+            }
+            return;
+        }
+        if (s >= keys.length) {
+            oldKeys[s - keys.length] = TOMBSTONE;
+            oldCounts[s - keys.length] = 0;
+            return;
+        }
+        int m = keys.length - 1;
+        counts[s] = 0;
+        if (keys[(s + 1) & m] != null) {
+            keys[s] = TOMBSTONE;
+            return;
+        }
+        keys[s] = null;
+        used--;
+        for (s = (s - 1) & m; keys[s] == TOMBSTONE; s = (s - 1) & m) {
+            keys[s] = null;
+            used--;
+        }
+    }
+
+    /**
+     * Вставляет в новую таблицу ключ, которого в ней заведомо нет.
+     * @param k ключ в виде {@link MyBag#mask(Object)}.
+     * @param c кратность.
+     */
+    private void insertAbsent(Object k, int c) {
+        int m = keys.length - 1;
+        int i = spread(k.hashCode()) & m;
+        int length = 0;
+        while (isLive(keys[i])) {
+            i = (i + 1) & m;
+            length++;
+        }
+        if (length > TREEIFY_THRESHOLD && k instanceof Comparable) {
+            insertIntoTree(k, c);
+            return;
+        }
+        if (keys[i] == null)
+            used++;
+        keys[i] = k;
+        counts[i] = c;
+    }
+
+    /**
+     * Кладет в дерево переполнения ключ, которого нет ни в таблицах, ни в
+     * дереве. Когда массивы дерева заполнены, удаленные ячейки
+     * выбрасываются, а если их мало, массивы удваиваются.
+     * @param k <code>Comparable</code>-ключ.
+     * @param c кратность.
+     */
+    private void insertIntoTree(Object k, int c) {
+        if (tree == null) {
+            tree = new TreeMap<Object, Integer>(TREE_ORDER);
+            treeKeys = new Object[INIT_TABLE_SIZE];
+            treeCounts = new int[INIT_TABLE_SIZE];
+            treeUsed = 0;
+        }
+        if (treeUsed == treeKeys.length) {
+            int live = tree.size();
+            Object[] ks = (live * 2 < treeKeys.length) ? new Object[treeKeys.length] : new Object[treeKeys.length * 2];
+            int[] cs = new int[ks.length];
+            int j = 0;
+            for (int i = 0; i < treeUsed; i++) {
+                if (treeKeys[i] == TOMBSTONE)
+                    continue;
+                ks[j] = treeKeys[i];
+                cs[j] = treeCounts[i];
+                tree.put(ks[j], j);
+                j++;
+            }
+            treeKeys = ks;
+            treeCounts = cs;
+            treeUsed = j;
+        }
+        treeKeys[treeUsed] = k;
+        treeCounts[treeUsed] = c;
+        tree.put(k, treeUsed);
+        treeUsed++;
     }
 
     /**
-     * Служебный метод, подсчитывает количество указанных объектов в указанной коллекции.
-     * @param collection коллекция, в которой надо подсчитать количество объектов.
-     * @param o объект, количество копий которого, надо подсчитать.
-     * @return количество копий объекта в коллекции.
+     * Переносит в новую таблицу очередные ячейки старой.
+     * @param step количество переносимых ячеек.
      */
-    private int countInCollection(Collection collection, Object o) {
-        if (collection == null)
-            return 0;
-        int colCount = 0;
-        for(Object o1: collection) {
-            if (safeEquals(o, o1))
-                colCount ++;
+    private void migrate(int step) {
+        if (oldKeys == null)
+            return;
+        int end = (int) Math.min((long) migrated + step, oldKeys.length);
+        for (; migrated < end; migrated++) {
+            Object k = oldKeys[migrated];
+            if (!isLive(k))
+                continue;
+            insertAbsent(k, oldCounts[migrated]);
+            oldKeys[migrated] = TOMBSTONE;
+            oldCounts[migrated] = 0;
+        }
+        if (migrated == oldKeys.length) {
+            oldKeys = null;
+            oldCounts = null;
         }
-        return colCount;
     }
 
     /**
-     * Безопасная проверка равества ссылок. Если первая из ссылок -- нулевая,
-     * то проверяется ее равенство второй по адресу, иначе -- по значению.
-     * @param o1 первая ссылка.
-     * @param o2 вторая ссылка.
-     * @return <code>true</code>, если две ссылки равны.
+     * Заканчивает начатую перестройку таблицы.
      */
-    static private boolean safeEquals(Object o1, Object o2) {
-        return o1 == null && o2 == null || o1 != null && o1.equals(o2);
+    void completeRehash() {
+        if (oldKeys != null) {
+            migrate(oldKeys.length);
+            modCount++;
+        }
     }
 
     /**
-     * Индекс списка, к которому относится (или должен относиться) объект.
-     * @param o объект.
-     * @return индекс списка.
+     * Начинает перестройку, если заполнение таблицы превысило порог.
+     * Таблица удваивается, если больше половины порога занято элементами,
+     * иначе пересоздается того же размера, чтобы избавиться от удаленных ячеек.
      */
-    private int getIndex(Object o) {
-        return (o == null) ? 0 : abs(o.hashCode() % table.length);
+    private void ensureCapacity() {
+        if (used <= threshold)
+            return;
+        completeRehash();
+        if (used <= threshold)
+            return;
+        int size = keys.length;
+        if (distinct * 2L > threshold && size < (1 << 30))
+            size *= 2;
+        oldKeys = keys;
+        oldCounts = counts;
+        migrated = 0;
+        keys = new Object[size];
+        counts = new int[size];
+        used = 0;
+        threshold = Math.min((int) (size * loadFactor), size - 1);
+    }
+
+    /**
+     * Служебный метод, кратности элементов коллекции. Если коллекция -- сумка,
+     * используется она сама, иначе элементы один раз подсчитываются в новую
+     * сумку.
+     * @param collection коллекция.
+     * @return сумка с кратностями элементов коллекции.
+     */
+    static Bag<?> countsOf(Collection<?> collection) {
+        if (collection instanceof Bag)
+            return (Bag<?>) collection;
+        MyBag<Object> res = new MyBag<Object>(collection.size(), DEFAULT_LOAD_FACTOR);
+        for (Object o: collection)
+            res.add(o);
+        return res;
     }
 
     /**
      * Инициализация полей класса. Используется в конструкторах.
+     * @param size размер таблицы, степень двойки.
      */
-    private void initFields() {
-        //ругается, гад
-        MyNode<T> p = new MyNode<T>(null, 0);
-        table = (MyNode<T>[]) Array.newInstance(p.getClass(), INIT_TABLE_SIZE);
-        //table = (MyNode<T>[]) new Object[INIT_TABLE_SIZE];
+    private void initFields(int size) {
+        keys = new Object[size];
+        counts = new int[size];
+        oldKeys = null;
+        oldCounts = null;
         count = 0;
+        distinct = 0;
+        used = 0;
+        threshold = Math.min((int) (size * loadFactor), size - 1);
     }
 
     /**
@@ -323,7 +692,39 @@ public class MyBag<T> implements Bag<T> {
      * @see MyBag#MyBag(Iterable)
      */
     public MyBag() {
-        initFields();
+        loadFactor = DEFAULT_LOAD_FACTOR;
+        initFields(INIT_TABLE_SIZE);
+    }
+
+    /**
+     * Создает пустую сумку с таблицей, в которую помещается заданное
+     * количество различных элементов без перестройки. <br>
+     * Конструктора с одним числовым параметром нет, так как он совпал бы
+     * с {@link MyBag#MyBag(Object)} для <code>MyBag&lt;Integer&gt;</code>;
+     * вместо него используется {@link MyBag#withExpectedSize(int)}.
+     * @param expectedSize ожидаемое количество различных элементов.
+     * @param loadFactor коэффициент загрузки таблицы, от 0 до 1.
+     * @throws IllegalArgumentException если параметры некорректны.
+     */
+    public MyBag(int expectedSize, float loadFactor) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Illegal expected size: " + expectedSize);
+        if (!(loadFactor > 0 && loadFactor < 1))
+            throw new IllegalArgumentException("Illegal load factor: " + loadFactor);
+        this.loadFactor = loadFactor;
+        initFields(tableSizeFor(expectedSize, loadFactor));
+    }
+
+    /**
+     * Создает пустую сумку с коэффициентом загрузки по умолчанию, в которую
+     * помещается заданное количество различных элементов без перестройки таблицы.
+     * @param expectedSize ожидаемое количество различных элементов.
+     * @param <T> тип элемента коллекции.
+     * @return пустая сумка.
+     * @see MyBag#MyBag(int, float)
+     */
+    public static <T> MyBag<T> withExpectedSize(int expectedSize) {
+        return new MyBag<T>(expectedSize, DEFAULT_LOAD_FACTOR);
     }
 
     /**
@@ -333,7 +734,7 @@ public class MyBag<T> implements Bag<T> {
      * @see MyBag#MyBag(Object, int)
      */
     public MyBag(T val) {
-        initFields();
+        this();
         add(val);
     }
 
@@ -345,7 +746,7 @@ public class MyBag<T> implements Bag<T> {
      * @see MyBag#MyBag(Iterable)
      */
     public MyBag(T val, int count) {
-        initFields();
+        this();
         add(val, count);
     }
 
@@ -356,7 +757,7 @@ public class MyBag<T> implements Bag<T> {
      * @see MyBag#MyBag(Object, int)
      */
     public MyBag(Iterable<T> col) {
-        initFields();
+        this();
         if (col != null)
             for (T val: col) {
                 add(val);
@@ -370,11 +771,8 @@ public class MyBag<T> implements Bag<T> {
      * @return количество объектов в сумке.
      */
     public int getCount(Object o) {
-        MyNode<T> p = getNode(o);
-        if (p == null)
-            return 0;
-        else
-            return p.getData().getValue();
+        int i = find(o);
+        return (i < 0) ? 0 : countAt(i);
     }
 
     /**
@@ -398,15 +796,57 @@ public class MyBag<T> implements Bag<T> {
     public boolean add(Object o, int i) {
         if (i < 1)
             return false;
-        MyNode<T> p = getNode(o);
-        if (p == null) {
-            int k = getIndex(o);
-            addNew(k, new Pair<T, Integer>((T) o, i));
+        Object k = mask(o);
+        int m = keys.length - 1;
+        int free = -1;
+        int length = 0;
+        for (int j = spread(k.hashCode()) & m; ; j = (j + 1) & m, length++) {
+            Object p = keys[j];
+            if (p == null) {
+                //элемент может быть еще не перенесен из старой таблицы или лежать в дереве
+                int s = (oldKeys == null) ? -1 : probe(oldKeys, k);
+                if (s >= 0)
+                    s += keys.length;
+                else
+                    s = findInTree(k);
+                if (s >= 0) {
+                    addAt(s, i);
+                    count += i;
+                    modCount++;
+                    migrate(MIGRATE_STEP);
+                    return true;
+                }
+                //элемента нет, занимаем первую удаленную ячейку на пути или эту
+                if (free < 0 && length > TREEIFY_THRESHOLD && k instanceof Comparable)
+                    insertIntoTree(k, i);
+                else {
+                    if (free < 0) {
+                        free = j;
+                        used++;
+                    }
+                    keys[free] = k;
+                    counts[free] = i;
+                }
+                distinct++;
+                count += i;
+                modCount++;
+                countChanged(k, 0, i);
+                ensureCapacity();
+                migrate(MIGRATE_STEP);
+                return true;
+            }
+            if (p == TOMBSTONE) {
+                if (free < 0)
+                    free = j;
+            }
+            else if (p == k || p.equals(k)) {
+                addAt(j, i);
+                count += i;
+                modCount++;
+                migrate(MIGRATE_STEP);
+                return true;
+            }
         }
-        else
-            p.setCount(p.getData().getValue() + i);
-        count++;
-        return true;
     }
 
     /**
@@ -416,32 +856,41 @@ public class MyBag<T> implements Bag<T> {
      * @see MyBag#remove(Object, int)
      */
     public boolean remove(Object o) {
-        int i = getIndex(o);
-        MyNode<T> p = table[i];
-        if (p != null && safeEquals(p.getData().getKey(), o)) {
-            count -= p.getData().getValue();
-            table[i] = p.next;
-            return true;
-        }
-        while (p != null && p.next != null) {
-            if (safeEquals(p.next.getData().getKey(), o)) {
-                count -= p.next.getData().getValue();
-                p.removeNext();
-                return true;
-            }
-            p = p.next;
-        }
-        return false;
+        int i = find(o);
+        if (i < 0)
+            return false;
+        count -= countAt(i);
+        removeAt(i);
+        modCount++;
+        migrate(MIGRATE_STEP);
+        return true;
     }
 
     /**
-     * Добавляет все элементы коллекции, учитывая кратность.
+     * Добавляет все элементы коллекции, учитывая кратность. Из сумки
+     * элементы добавляются по записям, а не по одной копии.
      * @param c коллекция.
      * @return всегда <code>true</code>.
      */
     public boolean addAll(Collection c) {
-        for (Object o: c)
-            add(o);
+        if (c == this) {
+            //кратности удваиваются, структура таблицы не меняется
+            for (int i = nextSlot(-1); i < slotCount(); i = nextSlot(i))
+                addAt(i, countAt(i));
+            count *= 2;
+            modCount++;
+        }
+        else if (c instanceof Bag) {
+            forEach((Bag<?>) c, new ObjIntConsumer<Object>() {
+                public void accept(Object o, int n) {
+                    add(o, n);
+                }
+            });
+        }
+        else {
+            for (Object o: c)
+                add(o);
+        }
         return true;
     }
 
@@ -449,8 +898,21 @@ public class MyBag<T> implements Bag<T> {
      * Очищает сумку.
      */
     public void clear() {
-        Arrays.fill(table, null);
+        Arrays.fill(keys, null);
+        Arrays.fill(counts, 0);
+        oldKeys = null;
+        oldCounts = null;
+        tree = null;
+        treeKeys = null;
+        treeCounts = null;
+        treeUsed = 0;
         count = 0;
+        distinct = 0;
+        used = 0;
+        hash = 0;
+        modCount++;
+        if (index != null)
+            index.clear();
     }
 
     /**
@@ -463,54 +925,145 @@ public class MyBag<T> implements Bag<T> {
     public boolean remove(Object o, int i) {
         if (i < 1)
             return false;
-        int k = getIndex(o);
-        MyNode<T> p = table[k];
-        if (p != null && safeEquals(p.getData().getKey(), o)) {
-            if (p.getData().getValue() <= i) {
-                count -= p.getData().getValue();
-                table[k] = p.next;
-            }
-            else {
-                count -= i;
-                p.setCount(p.getData().getValue() - i);
-            }
-            return true;
+        int k = find(o);
+        if (k < 0)
+            return false;
+        if (countAt(k) <= i) {
+            count -= countAt(k);
+            removeAt(k);
         }
-        while (p != null && p.next != null) {
-            if (safeEquals(p.next.getData().getKey(), o)) {
-                if (p.next.getData().getValue() <= i) {
-                    count -= p.getData().getValue();
-                    p.removeNext();
-                }
-                else {
-                    count -= i;
-                    p.setCount(p.getData().getValue() - i);
-                }
-                return true;
-            }
-            p = p.next;
+        else {
+            count -= i;
+            addAt(k, -i);
         }
-        return false;
+        modCount++;
+        migrate(MIGRATE_STEP);
+        return true;
     }
 
     /**
-     * @return множество со всеми различными объектами сумки.
+     * Включает индекс частот {@link FrequencyIndex}, который поддерживается
+     * при каждом изменении кратностей. С индексом методы
+     * {@link MyBag#topK(int)}, {@link MyBag#mostCommon()} и
+     * {@link MyBag#countAtLeast(int)} работают за O(k) без обхода таблицы,
+     * а добавление и удаление копий становятся немного дороже. Построение
+     * индекса для заполненной сумки стоит O(n log n).
      */
-    public Set uniqueSet() {
-        Set<T> res = new HashSet<T>();
-        for (MyNode<T> n: table) {
-            if (n == null)
-                continue;
-            res.add(n.data.getKey());
-            MyNode<T> p = n;
-            while (p.next != null) {
-                res.add(p.next.data.getKey());
-                p = p.next;
+    public void enableFrequencyIndex() {
+        if (index != null)
+            return;
+        //по убыванию кратности: каждая вставка добавляет корзину снизу за O(1)
+        long[] order = new long[distinct];
+        int j = 0;
+        for (int i = nextSlot(-1); i < slotCount(); i = nextSlot(i))
+            order[j++] = ((long) countAt(i) << 32) | i;
+        Arrays.sort(order);
+        FrequencyIndex res = new FrequencyIndex();
+        for (j = order.length - 1; j >= 0; j--)
+            res.update(keyAt((int) order[j]), 0, (int) (order[j] >>> 32));
+        index = res;
+    }
+
+    /**
+     * Выключает индекс частот.
+     */
+    public void disableFrequencyIndex() {
+        index = null;
+    }
+
+    /**
+     * @return <code>true</code>, если индекс частот включен.
+     */
+    public boolean hasFrequencyIndex() {
+        return index != null;
+    }
+
+    /**
+     * Самые частые элементы сумки. С индексом частот работает за O(k),
+     * без него -- за O(n log k) обходом таблицы.
+     * @param k количество элементов.
+     * @return до <code>k</code> записей по убыванию кратности; порядок
+     * элементов с одинаковой кратностью не определен.
+     * @see MyBag#enableFrequencyIndex()
+     */
+    public List<Entry<T>> topK(int k) {
+        if (index != null)
+            return index.top(k);
+        if (k <= 0)
+            return new ArrayList<Entry<T>>();
+        PriorityQueue<Entry<T>> heap = new PriorityQueue<Entry<T>>(k, new Comparator<Entry<T>>() {
+            public int compare(Entry<T> a, Entry<T> b) {
+                return Integer.compare(a.getCount(), b.getCount());
+            }
+        });
+        for (int i = nextSlot(-1); i < slotCount(); i = nextSlot(i)) {
+            int c = countAt(i);
+            if (heap.size() < k)
+                heap.add(new Entry<T>(MyBag.<T>unmask(keyAt(i)), c));
+            else if (heap.peek().getCount() < c) {
+                heap.poll();
+                heap.add(new Entry<T>(MyBag.<T>unmask(keyAt(i)), c));
             }
         }
+        List<Entry<T>> res = new ArrayList<Entry<T>>(heap);
+        Collections.sort(res, Collections.reverseOrder(heap.comparator()));
+        return res;
+    }
+
+    /**
+     * Самый частый элемент сумки.
+     * @return запись с наибольшей кратностью или <code>null</code>, если сумка пуста.
+     * @see MyBag#topK(int)
+     */
+    public Entry<T> mostCommon() {
+        List<Entry<T>> top = topK(1);
+        return top.isEmpty() ? null : top.get(0);
+    }
+
+    /**
+     * Самый редкий элемент сумки. С индексом частот работает за O(1), без
+     * него -- обходом таблицы.
+     * @return запись с наименьшей кратностью или <code>null</code>, если сумка пуста.
+     */
+    public Entry<T> leastCommon() {
+        if (index != null)
+            return index.bottom();
+        int best = -1;
+        for (int i = nextSlot(-1); i < slotCount(); i = nextSlot(i))
+            if (best < 0 || countAt(i) < countAt(best))
+                best = i;
+        return (best < 0) ? null : new Entry<T>(MyBag.<T>unmask(keyAt(best)), countAt(best));
+    }
+
+    /**
+     * Количество различных элементов, кратность которых не меньше заданной.
+     * С индексом частот проходит только корзины с такой кратностью.
+     * @param c кратность.
+     * @return количество элементов.
+     */
+    public int countAtLeast(int c) {
+        if (index != null)
+            return index.countAtLeast(c);
+        int res = 0;
+        for (int i = nextSlot(-1); i < slotCount(); i = nextSlot(i))
+            if (countAt(i) >= c)
+                res++;
         return res;
     }
 
+    /**
+     * Множество различных элементов сумки. Это представление, а не копия:
+     * создается один раз за O(1), отражает последующие изменения сумки, а
+     * удаление элемента из него удаляет все копии элемента из сумки.
+     * Добавление в множество не поддерживается.
+     * @return множество со всеми различными объектами сумки.
+     */
+    public Set<T> uniqueSet() {
+        if (uniqueSet == null)
+            uniqueSet = new UniqueSet();
+        return uniqueSet;
+    }
+
     /**
      * @return количество объектов в сумке, учитывая кратность.
      */
@@ -539,7 +1092,291 @@ public class MyBag<T> implements Bag<T> {
      * @see BagIterator
      */
     public Iterator<T> iterator() {
-        return new BagIterator<T>(table);
+        return new BagIterator();
+    }
+
+    /**
+     * Выполняет действие для каждого различного элемента сумки и его
+     * кратности. В отличие от итератора, элемент с кратностью k
+     * обрабатывается один раз, а не k раз.
+     * @param action действие над элементом и его кратностью.
+     * @throws ConcurrentModificationException если действие изменило сумку.
+     */
+    public void forEachEntry(ObjIntConsumer<? super T> action) {
+        int expectedModCount = modCount;
+        int n = slotCount();
+        for (int i = nextSlot(-1); i < n; i = nextSlot(i)) {
+            action.accept(MyBag.<T>unmask(keyAt(i)), countAt(i));
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+        }
+    }
+
+    /**
+     * Итератор по различным элементам сумки вместе с их кратностями.
+     * Удаление через итератор удаляет все копии элемента.
+     * @return итератор по записям сумки.
+     * @see MyBag#forEachEntry(ObjIntConsumer)
+     */
+    public Iterator<Entry<T>> entryIterator() {
+        return new SlotIterator<Entry<T>>() {
+            public Entry<T> next() {
+                int s = nextSlotIndex();
+                return new Entry<T>(MyBag.<T>unmask(keyAt(s)), countAt(s));
+            }
+        };
+    }
+
+    /**
+     * Итератор по занятым ячейкам таблицы. Удаление через итератор
+     * удаляет все копии элемента текущей ячейки.
+     * @param <E> тип возвращаемых значений.
+     */
+    private abstract class SlotIterator<E> implements Iterator<E> {
+        int current = -1;
+        int next = nextSlot(-1);
+        int expectedModCount = modCount;
+
+        public boolean hasNext() {
+            return next < slotCount();
+        }
+
+        /**
+         * Переходит к следующей ячейке.
+         * @return номер ячейки.
+         */
+        int nextSlotIndex() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (next >= slotCount())
+                throw new NoSuchElementException();
+            current = next;
+            next = nextSlot(current);
+            return current;
+        }
+
+        public void remove() {
+            if (current < 0)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            count -= countAt(current);
+            removeAt(current);
+            current = -1;
+            modCount++;
+            expectedModCount = modCount;
+        }
+    }
+
+    /**
+     * Множество различных элементов, связанное с сумкой. Не хранит своих
+     * данных: размер -- количество различных элементов сумки, проверка
+     * наличия -- поиск в таблице, обход -- по занятым ячейкам. Удаление
+     * элемента из множества удаляет все его копии из сумки.
+     */
+    private final class UniqueSet extends AbstractSet<T> {
+        @Override
+        public Iterator<T> iterator() {
+            return new SlotIterator<T>() {
+                public T next() {
+                    return MyBag.<T>unmask(keyAt(nextSlotIndex()));
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return distinct;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return find(o) >= 0;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return MyBag.this.remove(o);
+        }
+
+        @Override
+        public void clear() {
+            MyBag.this.clear();
+        }
+    }
+
+    /**
+     * Разделяемый итератор по сумке с характеристиками <code>SIZED</code> и
+     * <code>SUBSIZED</code>. Делится по диапазонам ячеек таблицы, поэтому
+     * <code>parallelStream()</code> обрабатывает части таблицы в разных
+     * потоках.
+     * @return разделяемый итератор по сумке.
+     */
+    @Override
+    public Spliterator<T> spliterator() {
+        return new BagSpliterator(0, slotCount(), count, modCount);
+    }
+
+    /**
+     * Запись сумки: элемент и его кратность на момент получения записи.
+     * @param <T> тип элемента.
+     */
+    public static final class Entry<T> {
+        /**
+         * Элемент.
+         */
+        private final T element;
+
+        /**
+         * Кратность элемента.
+         */
+        private final int count;
+
+        /**
+         * Конструктор.
+         * @param element элемент.
+         * @param count кратность элемента.
+         */
+        Entry(T element, int count) {
+            this.element = element;
+            this.count = count;
+        }
+
+        /**
+         * @return элемент.
+         */
+        public T getElement() {
+            return element;
+        }
+
+        /**
+         * @return кратность элемента.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Entry)) return false;
+            Entry<?> other = (Entry<?>) o;
+            return count == other.count && (element == null ? other.element == null : element.equals(other.element));
+        }
+
+        @Override
+        public int hashCode() {
+            return ((element == null) ? 0 : element.hashCode()) ^ count;
+        }
+
+        /**
+         * @return строковое представление в том же виде, что и в {@link MyBag#toString()}.
+         */
+        @Override
+        public String toString() {
+            return count + ":" + element;
+        }
+    }
+
+    /**
+     * Разделяемый итератор по диапазону ячеек <code>[from, to)</code>.
+     * Количество копий в диапазоне известно точно: при делении оно
+     * подсчитывается по массиву кратностей первой половины, что в сумме
+     * по всем делениям стоит O(n log p) для p частей.
+     */
+    private class BagSpliterator implements Spliterator<T> {
+        /**
+         * Текущая ячейка.
+         */
+        int from;
+
+        /**
+         * Конец диапазона ячеек (не включая).
+         */
+        final int to;
+
+        /**
+         * Сколько копий осталось в диапазоне.
+         */
+        long size;
+
+        /**
+         * Сколько копий элемента из ячейки <code>from</code> уже возвращено.
+         */
+        int taken;
+
+        /**
+         * Ожидаемое значение {@link MyBag#modCount}.
+         */
+        final int expectedModCount;
+
+        /**
+         * Конструктор.
+         * @param from первая ячейка.
+         * @param to конец диапазона ячеек.
+         * @param size количество копий в диапазоне.
+         * @param expectedModCount ожидаемое значение {@link MyBag#modCount}.
+         */
+        BagSpliterator(int from, int to, long size, int expectedModCount) {
+            this.from = from;
+            this.to = to;
+            this.size = size;
+            this.expectedModCount = expectedModCount;
+        }
+
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            while (from < to && taken >= countAt(from)) {
+                from++;
+                taken = 0;
+            }
+            if (from >= to)
+                return false;
+            taken++;
+            size--;
+            action.accept(MyBag.<T>unmask(keyAt(from)));
+            return true;
+        }
+
+        public void forEachRemaining(Consumer<? super T> action) {
+            for (; from < to; from++) {
+                Object k = keyAt(from);
+                if (!isLive(k))
+                    continue;
+                T val = unmask(k);
+                for (int c = countAt(from); taken < c; taken++)
+                    action.accept(val);
+                taken = 0;
+            }
+            size = 0;
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+        }
+
+        public Spliterator<T> trySplit() {
+            int mid = (from + to) >>> 1;
+            if (mid <= from)
+                return null;
+            //первая половина забирает и остаток текущей ячейки
+            long prefix = Math.max(countAt(from) - taken, 0);
+            for (int i = from + 1; i < mid; i++)
+                prefix += countAt(i);
+            BagSpliterator res = new BagSpliterator(from, mid, prefix, expectedModCount);
+            res.taken = taken;
+            from = mid;
+            taken = 0;
+            size -= prefix;
+            return res;
+        }
+
+        public long estimateSize() {
+            return size;
+        }
+
+        public int characteristics() {
+            return Spliterator.SIZED | Spliterator.SUBSIZED;
+        }
     }
 
     /**
@@ -573,8 +1410,293 @@ public class MyBag<T> implements Bag<T> {
         return res;
     }
 
+    /**
+     * Обход записей любой сумки: для {@link MyBag} -- по таблице, для
+     * остальных -- по <code>uniqueSet()</code> с <code>getCount</code>.
+     * @param bag сумка.
+     * @param action действие для элемента и его кратности.
+     * @param <E> тип элемента.
+     */
+    static <E> void forEach(Bag<? extends E> bag, ObjIntConsumer<? super E> action) {
+        if (bag instanceof MyBag) {
+            ((MyBag<? extends E>) bag).forEachEntry(action);
+            return;
+        }
+        for (E o : bag.uniqueSet())
+            action.accept(o, bag.getCount(o));
+    }
+
+    /**
+     * Операция над кратностями элемента в двух сумках.
+     */
+    private enum BulkOp {
+        SUM {
+            int apply(int a, int b) {
+                return a + b;
+            }
+        },
+        UNION {
+            int apply(int a, int b) {
+                return Math.max(a, b);
+            }
+        },
+        INTERSECTION {
+            int apply(int a, int b) {
+                return Math.min(a, b);
+            }
+        },
+        DIFFERENCE {
+            int apply(int a, int b) {
+                return Math.max(a - b, 0);
+            }
+        };
+
+        /**
+         * @param a кратность в первой сумке.
+         * @param b кратность во второй сумке.
+         * @return кратность в результате, 0 -- элемента нет.
+         */
+        abstract int apply(int a, int b);
+
+        /**
+         * @return <code>true</code>, если в результат могут попасть
+         * элементы, которых нет в первой сумке.
+         */
+        boolean usesRight() {
+            return this == SUM || this == UNION;
+        }
+    }
+
+    /**
+     * Сумма сумок: кратности складываются.
+     * @param a первая сумка.
+     * @param b вторая сумка.
+     * @param <T> тип элемента.
+     * @return новая сумка.
+     * @see MyBag#combine(Bag, Bag, BulkOp)
+     */
+    public static <T> MyBag<T> sum(Bag<? extends T> a, Bag<? extends T> b) {
+        return combine(a, b, BulkOp.SUM);
+    }
+
+    /**
+     * Сумма многих сумок. Результат создается сразу нужного размера, а
+     * каждая сумка добавляется по записям.
+     * @param bags сумки.
+     * @param <T> тип элемента.
+     * @return новая сумка.
+     */
+    public static <T> MyBag<T> sumAll(Collection<? extends Bag<? extends T>> bags) {
+        int expected = 0;
+        for (Bag<? extends T> bag : bags)
+            expected = Math.max(expected, distinctOf(bag));
+        final MyBag<T> res = new MyBag<T>(expected, DEFAULT_LOAD_FACTOR);
+        for (Bag<? extends T> bag : bags)
+            res.addAll(bag);
+        return res;
+    }
+
+    /**
+     * Объединение сумок: кратность элемента -- наибольшая из двух.
+     * @param a первая сумка.
+     * @param b вторая сумка.
+     * @param <T> тип элемента.
+     * @return новая сумка.
+     * @see MyBag#combine(Bag, Bag, BulkOp)
+     */
+    public static <T> MyBag<T> union(Bag<? extends T> a, Bag<? extends T> b) {
+        return combine(a, b, BulkOp.UNION);
+    }
+
+    /**
+     * Пересечение сумок: кратность элемента -- наименьшая из двух.
+     * @param a первая сумка.
+     * @param b вторая сумка.
+     * @param <T> тип элемента.
+     * @return новая сумка.
+     * @see MyBag#combine(Bag, Bag, BulkOp)
+     */
+    public static <T> MyBag<T> intersection(Bag<? extends T> a, Bag<? extends T> b) {
+        return combine(a, b, BulkOp.INTERSECTION);
+    }
+
+    /**
+     * Разность сумок: из кратности в первой сумке вычитается кратность во
+     * второй.
+     * @param a уменьшаемое.
+     * @param b вычитаемое.
+     * @param <T> тип элемента.
+     * @return новая сумка.
+     * @see MyBag#combine(Bag, Bag, BulkOp)
+     */
+    public static <T> MyBag<T> difference(Bag<? extends T> a, Bag<? extends T> b) {
+        return combine(a, b, BulkOp.DIFFERENCE);
+    }
+
+    /**
+     * @param bag сумка.
+     * @return количество различных элементов сумки.
+     */
+    private static int distinctOf(Bag<?> bag) {
+        return (bag instanceof MyBag) ? ((MyBag<?>) bag).distinct : bag.uniqueSet().size();
+    }
+
+    /**
+     * Поэлементная операция над двумя сумками. Обходятся записи, а не
+     * копии, и каждый элемент результата вставляется один раз в таблицу,
+     * сразу созданную нужного размера. <br>
+     * Если обе сумки -- {@link MyBag} с таблицами одного размера без
+     * незаконченной перестройки и дерева переполнения, у общего элемента одна и та же начальная
+     * ячейка в обеих таблицах. Тогда таблицы делятся на части по
+     * {@link MyBag#MERGE_CHUNK} и больше ячеек, и части объединяются
+     * независимо задачами {@link MergeTask} в общем пуле fork/join: поиск
+     * элемента во второй таблице попадает в ту же ее часть. Сумки не должны
+     * изменяться во время операции.
+     * @param a первая сумка.
+     * @param b вторая сумка.
+     * @param op операция над кратностями.
+     * @param <T> тип элемента.
+     * @return новая сумка.
+     */
+    private static <T> MyBag<T> combine(Bag<? extends T> a, final Bag<? extends T> b, final BulkOp op) {
+        int da = distinctOf(a);
+        int db = distinctOf(b);
+        int expected = (op == BulkOp.INTERSECTION) ? Math.min(da, db) : op.usesRight() ? da + db : da;
+        final MyBag<T> res = new MyBag<T>(expected, DEFAULT_LOAD_FACTOR);
+        if (a instanceof MyBag && b instanceof MyBag) {
+            MyBag<?> ma = (MyBag<?>) a;
+            MyBag<?> mb = (MyBag<?>) b;
+            if (ma.keys.length == mb.keys.length && ma.oldKeys == null && mb.oldKeys == null
+                    && ma.tree == null && mb.tree == null && ma.keys.length >= 2 * MERGE_CHUNK) {
+                MergeTask task = new MergeTask(ma, mb, op, 0, ma.keys.length);
+                ForkJoinPool.commonPool().invoke(task);
+                task.drainTo(res);
+                return res;
+            }
+        }
+        final Bag<? extends T> left = a;
+        forEach(a, new ObjIntConsumer<T>() {
+            public void accept(T o, int n) {
+                int c = op.apply(n, b.getCount(o));
+                if (c > 0)
+                    res.insertNew(mask(o), c);
+            }
+        });
+        if (op.usesRight()) {
+            forEach(b, new ObjIntConsumer<T>() {
+                public void accept(T o, int n) {
+                    if (left.getCount(o) == 0)
+                        res.insertNew(mask(o), op.apply(0, n));
+                }
+            });
+        }
+        return res;
+    }
+
+    /**
+     * Вставляет элемент, которого заведомо нет в сумке, в таблицу, в
+     * которой заведомо есть для него место.
+     * @param k ключ в виде {@link MyBag#mask(Object)}.
+     * @param c кратность.
+     */
+    private void insertNew(Object k, int c) {
+        insertAbsent(k, c);
+        count += c;
+        distinct++;
+        countChanged(k, 0, c);
+    }
+
+    /**
+     * Объединение части таблиц двух сумок одного размера: ячеек
+     * <code>[from, to)</code>. Большие части делятся пополам. Результат
+     * каждой неделимой части собирается в собственные массивы, которые
+     * затем последовательно вставляются в сумку-результат без сравнения
+     * ключей.
+     */
+    private static final class MergeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final MyBag<?> a;
+        private final MyBag<?> b;
+        private final BulkOp op;
+        private final int from;
+        private final int to;
+
+        /**
+         * Половины части, если она была разделена.
+         */
+        private MergeTask low;
+        private MergeTask high;
+
+        /**
+         * Ключи и кратности результата неделимой части.
+         */
+        private Object[] outKeys;
+        private int[] outCounts;
+        private int size;
+
+        MergeTask(MyBag<?> a, MyBag<?> b, BulkOp op, int from, int to) {
+            this.a = a;
+            this.b = b;
+            this.op = op;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from >= 2 * MERGE_CHUNK) {
+                int mid = (from + to) >>> 1;
+                low = new MergeTask(a, b, op, from, mid);
+                high = new MergeTask(a, b, op, mid, to);
+                invokeAll(low, high);
+                return;
+            }
+            outKeys = new Object[op.usesRight() ? 2 * (to - from) : to - from];
+            outCounts = new int[outKeys.length];
+            for (int i = from; i < to; i++) {
+                Object k = a.keys[i];
+                if (!isLive(k))
+                    continue;
+                int j = probe(b.keys, k);
+                int c = op.apply(a.counts[i], (j < 0) ? 0 : b.counts[j]);
+                if (c > 0)
+                    append(k, c);
+            }
+            if (!op.usesRight())
+                return;
+            for (int i = from; i < to; i++) {
+                Object k = b.keys[i];
+                if (isLive(k) && probe(a.keys, k) < 0)
+                    append(k, op.apply(0, b.counts[i]));
+            }
+        }
+
+        private void append(Object k, int c) {
+            outKeys[size] = k;
+            outCounts[size] = c;
+            size++;
+        }
+
+        /**
+         * Вставляет результат всех частей в сумку.
+         * @param res сумка-результат.
+         */
+        void drainTo(MyBag<?> res) {
+            if (low != null) {
+                low.drainTo(res);
+                high.drainTo(res);
+                return;
+            }
+            for (int i = 0; i < size; i++)
+                res.insertNew(outKeys[i], outCounts[i]);
+        }
+    }
+
     /**
      * Оставляет в сумке только элементы из коллекции, учитывая кратность.
+     * Кратности элементов коллекции подсчитываются один раз (для сумки берутся
+     * готовые), поэтому метод работает за O(n + m).
      * @param collection коллекция.
      * @return <code>true</code>, если сумка была изменена, иначе <code>false</code>.
      */
@@ -583,20 +1705,31 @@ public class MyBag<T> implements Bag<T> {
             clear();
             return true;
         }
+        if (collection == this)
+            return false;
+        Bag<?> other = countsOf(collection);
         boolean changed = false;
-        for (Object o: uniqueSet()) {
-            int colCount = countInCollection(collection, o);
-            int bagCount = getCount(o);
-            if (bagCount > colCount) {
-                remove(o, bagCount - colCount);
+        //удаление не перестраивает таблицу, поэтому обходим ячейки напрямую
+        for (int i = nextSlot(-1); i < slotCount(); i = nextSlot(i)) {
+            int keep = other.getCount(unmask(keyAt(i)));
+            int bagCount = countAt(i);
+            if (bagCount > keep) {
+                count -= bagCount - keep;
+                if (keep == 0)
+                    removeAt(i);
+                else
+                    addAt(i, keep - bagCount);
                 changed = true;
             }
         }
+        if (changed)
+            modCount++;
         return changed;
     }
 
     /**
      * Удаляет из сумки все элементы коллекции, учитывая кратность.
+     * Работает за O(m), для сумки -- за количество ее различных элементов.
      * @param collection коллекция.
      * @return <code>true</code>, если сумка была изменена, иначе <code>false</code>.
      */
@@ -604,41 +1737,49 @@ public class MyBag<T> implements Bag<T> {
         if (collection == null) {
             return false;
         }
+        if (collection == this) {
+            boolean changed = !isEmpty();
+            clear();
+            return changed;
+        }
         boolean changed = false;
-        Set<Object> removed = new HashSet<Object>();
-        for (Object o: collection) {
-            if (removed.contains(o)  || !contains(o))
-                continue;
-            int colCount = countInCollection(collection, o);
-            remove(o, colCount);
-            removed.add(o);
-            changed = true;
+        if (collection instanceof Bag) {
+            Bag<?> other = (Bag<?>) collection;
+            for (Object o: other.uniqueSet())
+                changed |= remove(o, other.getCount(o));
+        }
+        else {
+            for (Object o: collection)
+                changed |= remove(o, 1);
         }
         return changed;
     }
 
     /**
      * Проверяет, содержатся ли в сумке все элементы коллекции,
-     * учитывая кратность.
+     * учитывая кратность. Работает за O(m), как и
+     * {@link MyBag#retainAll(Collection)}.
      * @param collection коллекция.
      * @return <code>true</code>, если содержатся, иначе <code>false</code>.
      */
     public boolean containsAll(Collection collection) {
-        if (collection == null)
+        if (collection == null || collection == this)
             return true;
-        Set<Object> removed = new HashSet<Object>();
-        for(Object o: collection) {
-            if (removed.contains(o))
-                continue;
-            if (getCount(o) < countInCollection(collection, o))
+        Bag<?> other = countsOf(collection);
+        for (Object o: other.uniqueSet()) {
+            if (getCount(o) < other.getCount(o))
                 return false;
-            removed.add(o);
         }
         return true;
     }
 
     /**
      * Сравнение сумок происходит так же, как в классе {@link AbstractMapBag}.
+     * Сначала сравниваются размеры и количества различных элементов (для
+     * двух {@link MyBag} -- еще и хэш-коды), затем за один проход без
+     * выделения памяти кратности элементов этой сумки: при равном
+     * количестве различных элементов лишних элементов в другой сумке быть
+     * не может.
      * @param o другая сумка.
      * @return <code>true</code>, если сумки одинаковые.
      */
@@ -646,35 +1787,30 @@ public class MyBag<T> implements Bag<T> {
     public boolean equals(Object o) {
         if (this == o) return true;
         if (!(o instanceof Bag)) return false;
-        Bag<?> other = (Bag<?>) o;
-        for(Object val: other.uniqueSet()) {
-            if (getCount(val) != other.getCount(val))
+        if (o instanceof MyBag) {
+            MyBag<?> other = (MyBag<?>) o;
+            if (other.count != count || other.distinct != distinct || other.hash != hash)
                 return false;
         }
-        for(Object val: uniqueSet()) {
-            if (getCount(val) != other.getCount(val))
+        Bag<?> other = (Bag<?>) o;
+        if (other.size() != count || other.uniqueSet().size() != distinct)
+            return false;
+        for (int i = nextSlot(-1); i < slotCount(); i = nextSlot(i)) {
+            if (other.getCount(unmask(keyAt(i))) != countAt(i))
                 return false;
         }
         return true;
     }
 
     /**
-     * Хэш-код вычисляется так же, как в классе {@link org.apache.commons.collections4.bag.AbstractMapBag}.
+     * Хэш-код вычисляется так же, как в классе {@link org.apache.commons.collections4.bag.AbstractMapBag},
+     * но не обходом таблицы, а поддерживается при каждом изменении, поэтому
+     * возвращается за O(1).
      * @return хэш-код сумки.
      */
     @Override
     public int hashCode() {
-        int result = 0;
-        int i = 0;
-        while (i < table.length) {
-            MyNode<T> p = table[i];
-            while (p != null) {
-                result += ((p.data.getKey() == null) ? 0 : p.data.getKey().hashCode()) ^ p.data.getValue();
-                p = p.next;
-            }
-            i++;
-        }
-        return result;
+        return hash;
     }
 
     /**
@@ -683,21 +1819,15 @@ public class MyBag<T> implements Bag<T> {
     @Override
     public String toString() {
         StringBuilder res = new StringBuilder("[");
-        int i = 0;
         boolean first = true;
-        while (i < table.length) {
-            MyNode<T> p = table[i];
-            while(p != null) {
-                if (first) {
-                    first = false;
-                }
-                else {
-                    res.append(",");
-                }
-                res.append(p.data.getValue()).append(":").append(p.data.getKey());
-                p = p.next;
+        for (int i = nextSlot(-1); i < slotCount(); i = nextSlot(i)) {
+            if (first) {
+                first = false;
+            }
+            else {
+                res.append(",");
             }
-            i++;
+            res.append(countAt(i)).append(":").append(MyBag.<T>unmask(keyAt(i)));
         }
         res.append(']');
         return res.toString();
@@ -0,0 +1,748 @@
+package ru.spbstu.telematics.java;
+
+import org.apache.commons.collections4.Bag;
+
+import java.util.*;
+
+/**
+ * Неизменяемая сумка с общими частями версий. Методы
+ * {@link PersistentBag#plus(Object, int)} и {@link PersistentBag#minus(Object, int)}
+ * не меняют сумку, а возвращают новую версию, в которой скопирован только
+ * путь от корня до измененного элемента, а остальные узлы общие со старой
+ * версией. Поэтому снимок сумки ничего не стоит: достаточно сохранить
+ * ссылку на текущую версию. <br>
+ * Элементы хранятся в префиксном дереве по хэшу (hash array mapped trie):
+ * каждый уровень использует очередные 5 бит хэша, узел хранит битовую
+ * маску занятых из 32 позиций и плотный массив только для них. Листья
+ * содержат элемент и его кратность. Глубина дерева -- O(log32 n), то есть
+ * не больше 7 уровней. <br>
+ * Для пакетного построения используется {@link PersistentBag.Builder}:
+ * он меняет узлы, созданные им самим, на месте, вместо копирования пути
+ * при каждом добавлении. <br>
+ * Методы интерфейса <code>Bag</code>, изменяющие сумку, выбрасывают
+ * <code>UnsupportedOperationException</code>.
+ * @param <T> тип элемента коллекции.
+ */
+public final class PersistentBag<T> extends AbstractCollection<T> implements Bag<T> {
+    /**
+     * Количество бит хэша на один уровень дерева.
+     */
+    private static final int BITS = 5;
+
+    /**
+     * Наибольшая глубина дерева вместе с узлом коллизий.
+     */
+    private static final int MAX_DEPTH = 8;
+
+    /**
+     * Пустая сумка.
+     */
+    private static final PersistentBag<Object> EMPTY = new PersistentBag<Object>(null, 0, 0, 0);
+
+    /**
+     * Лист: элемент и его кратность. Не изменяется.
+     */
+    private static final class Leaf {
+        final Object key;
+        final int hash;
+        final int count;
+
+        Leaf(Object key, int hash, int count) {
+            this.key = key;
+            this.hash = hash;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Изменения размера и хэш-кода после одной операции.
+     */
+    private static final class Delta {
+        int copies;
+        int distinct;
+        int hash;
+    }
+
+    /**
+     * Внутренний узел. Элементы массива -- листья или дочерние узлы.
+     * При исчерпании бит хэша используется узел коллизий, в котором все
+     * листья имеют одинаковый хэш и маска не используется.
+     */
+    private static final class Node {
+        /**
+         * Занятые позиции, для узла коллизий -- 0.
+         */
+        int bitmap;
+
+        /**
+         * Листья и дочерние узлы занятых позиций.
+         */
+        Object[] array;
+
+        /**
+         * Построитель, который может менять узел на месте, или <code>null</code>.
+         */
+        Object owner;
+
+        Node(Object owner, int bitmap, Object[] array) {
+            this.owner = owner;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        /**
+         * Ищет лист элемента.
+         */
+        Leaf find(Object k, int h, int shift) {
+            if (shift >= 32) {
+                for (Object o : array)
+                    if (Objects.equals(((Leaf) o).key, k))
+                        return (Leaf) o;
+                return null;
+            }
+            int bit = 1 << ((h >>> shift) & 31);
+            if ((bitmap & bit) == 0)
+                return null;
+            Object o = array[Integer.bitCount(bitmap & (bit - 1))];
+            if (o instanceof Leaf)
+                return Objects.equals(((Leaf) o).key, k) ? (Leaf) o : null;
+            return ((Node) o).find(k, h, shift + BITS);
+        }
+
+        /**
+         * Изменяет кратность элемента.
+         * @param owner построитель или <code>null</code>.
+         * @param shift сдвиг хэша для этого уровня.
+         * @param h хэш элемента.
+         * @param k элемент.
+         * @param n на сколько увеличить кратность, отрицательное значение -- уменьшить.
+         * @param d изменения размера и хэш-кода.
+         * @return новый узел, этот же узел, если ничего не изменилось или
+         * узел изменен на месте, или <code>null</code>, если узел опустел.
+         */
+        Node update(Object owner, int shift, int h, Object k, int n, Delta d) {
+            int bit;
+            int idx;
+            if (shift >= 32) {
+                bit = 0;
+                idx = 0;
+                while (idx < array.length && !Objects.equals(((Leaf) array[idx]).key, k))
+                    idx++;
+                if (idx == array.length) {
+                    if (n <= 0)
+                        return this;
+                    return insert(owner, bit, idx, added(k, h, n, d));
+                }
+            }
+            else {
+                bit = 1 << ((h >>> shift) & 31);
+                idx = Integer.bitCount(bitmap & (bit - 1));
+                if ((bitmap & bit) == 0) {
+                    if (n <= 0)
+                        return this;
+                    return insert(owner, bit, idx, added(k, h, n, d));
+                }
+            }
+            Object o = array[idx];
+            if (o instanceof Node) {
+                Node child = ((Node) o).update(owner, shift + BITS, h, k, n, d);
+                if (child == o)
+                    return this;
+                if (child == null)
+                    return delete(owner, bit, idx);
+                return replace(owner, idx, child);
+            }
+            Leaf leaf = (Leaf) o;
+            if (!Objects.equals(leaf.key, k)) {
+                if (n <= 0)
+                    return this;
+                return replace(owner, idx, split(owner, shift + BITS, leaf, added(k, h, n, d)));
+            }
+            int after = (n > 0) ? leaf.count + n : Math.max(leaf.count + n, 0);
+            if (after == leaf.count)
+                return this;
+            int kh = (k == null) ? 0 : k.hashCode();
+            d.copies += after - leaf.count;
+            d.hash -= kh ^ leaf.count;
+            if (after == 0) {
+                d.distinct--;
+                return delete(owner, bit, idx);
+            }
+            d.hash += kh ^ after;
+            return replace(owner, idx, new Leaf(k, h, after));
+        }
+
+        /**
+         * Новый лист с учетом изменений размера и хэш-кода.
+         */
+        private static Leaf added(Object k, int h, int n, Delta d) {
+            d.copies += n;
+            d.distinct++;
+            d.hash += ((k == null) ? 0 : k.hashCode()) ^ n;
+            return new Leaf(k, h, n);
+        }
+
+        /**
+         * Узел из двух листьев с разными элементами.
+         */
+        private static Node split(Object owner, int shift, Leaf a, Leaf b) {
+            if (shift >= 32)
+                return new Node(owner, 0, new Object[] {a, b});
+            int ia = (a.hash >>> shift) & 31;
+            int ib = (b.hash >>> shift) & 31;
+            if (ia == ib)
+                return new Node(owner, 1 << ia, new Object[] {split(owner, shift + BITS, a, b)});
+            return new Node(owner, (1 << ia) | (1 << ib), (ia < ib) ? new Object[] {a, b} : new Object[] {b, a});
+        }
+
+        /**
+         * Узел, который можно изменить: этот, если он принадлежит
+         * построителю, иначе копия.
+         */
+        private Node editable(Object owner) {
+            if (owner != null && this.owner == owner)
+                return this;
+            return new Node(owner, bitmap, array.clone());
+        }
+
+        private Node replace(Object owner, int idx, Object o) {
+            Node res = editable(owner);
+            res.array[idx] = o;
+            return res;
+        }
+
+        private Node insert(Object owner, int bit, int idx, Object o) {
+            Object[] a = new Object[array.length + 1];
+            System.arraycopy(array, 0, a, 0, idx);
+            a[idx] = o;
+            System.arraycopy(array, idx, a, idx + 1, array.length - idx);
+            if (owner != null && this.owner == owner) {
+                bitmap |= bit;
+                array = a;
+                return this;
+            }
+            return new Node(owner, bitmap | bit, a);
+        }
+
+        private Node delete(Object owner, int bit, int idx) {
+            if (array.length == 1)
+                return null;
+            Object[] a = new Object[array.length - 1];
+            System.arraycopy(array, 0, a, 0, idx);
+            System.arraycopy(array, idx + 1, a, idx, a.length - idx);
+            if (owner != null && this.owner == owner) {
+                bitmap &= ~bit;
+                array = a;
+                return this;
+            }
+            return new Node(owner, bitmap & ~bit, a);
+        }
+    }
+
+    /**
+     * Корень дерева или <code>null</code> для пустой сумки.
+     */
+    private final Node root;
+
+    /**
+     * Количество копий.
+     */
+    private final int size;
+
+    /**
+     * Количество различных элементов.
+     */
+    private final int distinct;
+
+    /**
+     * Хэш-код, поддерживаемый при каждом изменении.
+     */
+    private final int hash;
+
+    private PersistentBag(Node root, int size, int distinct, int hash) {
+        this.root = root;
+        this.size = size;
+        this.distinct = distinct;
+        this.hash = hash;
+    }
+
+    /**
+     * @param <T> тип элемента.
+     * @return пустая сумка.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> PersistentBag<T> empty() {
+        return (PersistentBag<T>) EMPTY;
+    }
+
+    /**
+     * Сумка с элементами коллекции.
+     * @param c коллекция.
+     * @param <T> тип элемента.
+     * @return сумка.
+     */
+    public static <T> PersistentBag<T> of(Iterable<? extends T> c) {
+        Builder<T> b = builder();
+        for (T o : c)
+            b.add(o);
+        return b.build();
+    }
+
+    /**
+     * @param <T> тип элемента.
+     * @return построитель пустой сумки.
+     */
+    public static <T> Builder<T> builder() {
+        return PersistentBag.<T>empty().toBuilder();
+    }
+
+    /**
+     * @return построитель, начинающий с этой версии; сама версия не меняется.
+     */
+    public Builder<T> toBuilder() {
+        return new Builder<T>(root, size, distinct, hash);
+    }
+
+    private static int hashOf(Object o) {
+        return MyBag.spread((o == null) ? 0 : o.hashCode());
+    }
+
+    /**
+     * Изменяет кратность и возвращает новую версию.
+     */
+    private PersistentBag<T> update(Object o, int n) {
+        int h = hashOf(o);
+        Node r = (root == null) ? new Node(null, 0, new Object[0]) : root;
+        Delta d = new Delta();
+        Node res = r.update(null, 0, h, o, n, d);
+        if (d.copies == 0)
+            return this;
+        if (res == null)
+            return empty();
+        return new PersistentBag<T>(res, size + d.copies, distinct + d.distinct, hash + d.hash);
+    }
+
+    /**
+     * Версия с еще одной копией объекта.
+     * @param o объект.
+     * @return новая версия.
+     */
+    public PersistentBag<T> plus(T o) {
+        return plus(o, 1);
+    }
+
+    /**
+     * Версия с добавленными копиями объекта.
+     * @param o объект.
+     * @param n количество копий; если <code>n < 1</code>, возвращается эта же версия.
+     * @return новая версия.
+     */
+    public PersistentBag<T> plus(T o, int n) {
+        if (n < 1)
+            return this;
+        return update(o, n);
+    }
+
+    /**
+     * Версия без одной копии объекта.
+     * @param o объект.
+     * @return новая версия или эта же, если объекта нет.
+     */
+    public PersistentBag<T> minus(Object o) {
+        return minus(o, 1);
+    }
+
+    /**
+     * Версия без нескольких копий объекта.
+     * @param o объект.
+     * @param n количество удаляемых копий; если <code>n < 1</code>,
+     *          возвращается эта же версия.
+     * @return новая версия или эта же, если объекта нет.
+     */
+    public PersistentBag<T> minus(Object o, int n) {
+        if (n < 1 || root == null)
+            return this;
+        return update(o, -n);
+    }
+
+    /**
+     * Версия без всех копий объекта.
+     * @param o объект.
+     * @return новая версия или эта же, если объекта нет.
+     */
+    public PersistentBag<T> without(Object o) {
+        return minus(o, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Кратность объекта.
+     * @param o объект.
+     * @return кратность или 0, если объекта нет в сумке.
+     */
+    public int getCount(Object o) {
+        if (root == null)
+            return 0;
+        Leaf leaf = root.find(o, hashOf(o), 0);
+        return (leaf == null) ? 0 : leaf.count;
+    }
+
+    /**
+     * @param o проверяемый объект.
+     * @return <code>true</code>, если объект есть в сумке.
+     */
+    @Override
+    public boolean contains(Object o) {
+        return getCount(o) > 0;
+    }
+
+    /**
+     * @return количество копий.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Проверяет, содержатся ли в сумке все элементы коллекции, учитывая кратность.
+     * @param collection коллекция.
+     * @return <code>true</code>, если содержатся, иначе <code>false</code>.
+     */
+    public boolean containsAll(Collection<?> collection) {
+        if (collection == null || collection == this)
+            return true;
+        Bag<?> other = MyBag.countsOf(collection);
+        for (Object o : other.uniqueSet())
+            if (getCount(o) < other.getCount(o))
+                return false;
+        return true;
+    }
+
+    /**
+     * Обход листьев в глубину с явным стеком.
+     * @param <E> тип возвращаемых значений.
+     */
+    private abstract class LeafIterator<E> implements Iterator<E> {
+        private final Object[][] arrays = new Object[MAX_DEPTH][];
+        private final int[] positions = new int[MAX_DEPTH];
+        private int depth = -1;
+        private Leaf next;
+
+        LeafIterator() {
+            if (root != null) {
+                depth = 0;
+                arrays[0] = root.array;
+            }
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                if (positions[depth] == arrays[depth].length) {
+                    positions[depth] = 0;
+                    depth--;
+                    continue;
+                }
+                Object o = arrays[depth][positions[depth]++];
+                if (o instanceof Leaf) {
+                    next = (Leaf) o;
+                    return;
+                }
+                arrays[++depth] = ((Node) o).array;
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        Leaf nextLeaf() {
+            if (next == null)
+                throw new NoSuchElementException();
+            Leaf res = next;
+            advance();
+            return res;
+        }
+    }
+
+    /**
+     * Итератор по различным элементам вместе с кратностями.
+     * @return итератор по записям, только для чтения.
+     */
+    public Iterator<MyBag.Entry<T>> entryIterator() {
+        return new LeafIterator<MyBag.Entry<T>>() {
+            @SuppressWarnings("unchecked")
+            public MyBag.Entry<T> next() {
+                Leaf leaf = nextLeaf();
+                return new MyBag.Entry<T>((T) leaf.key, leaf.count);
+            }
+        };
+    }
+
+    /**
+     * @return итератор по копиям, только для чтения.
+     */
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private final Iterator<MyBag.Entry<T>> entries = entryIterator();
+            private T current;
+            private int left;
+
+            public boolean hasNext() {
+                return left > 0 || entries.hasNext();
+            }
+
+            public T next() {
+                if (left == 0) {
+                    MyBag.Entry<T> e = entries.next();
+                    current = e.getElement();
+                    left = e.getCount();
+                }
+                left--;
+                return current;
+            }
+        };
+    }
+
+    /**
+     * @return множество различных элементов, только для чтения.
+     */
+    public Set<T> uniqueSet() {
+        return new AbstractSet<T>() {
+            public Iterator<T> iterator() {
+                return new LeafIterator<T>() {
+                    @SuppressWarnings("unchecked")
+                    public T next() {
+                        return (T) nextLeaf().key;
+                    }
+                };
+            }
+
+            public int size() {
+                return distinct;
+            }
+
+            public boolean contains(Object o) {
+                return PersistentBag.this.contains(o);
+            }
+        };
+    }
+
+    /**
+     * Сравнение сумок происходит так же, как в классе
+     * {@link org.apache.commons.collections4.bag.AbstractMapBag}. Версии
+     * с общим корнем равны без обхода.
+     * @param o другая сумка.
+     * @return <code>true</code>, если сумки одинаковые.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Bag)) return false;
+        if (o instanceof PersistentBag) {
+            PersistentBag<?> other = (PersistentBag<?>) o;
+            if (other.root == root)
+                return true;
+            if (other.hash != hash || other.distinct != distinct)
+                return false;
+        }
+        Bag<?> other = (Bag<?>) o;
+        if (other.size() != size || other.uniqueSet().size() != distinct)
+            return false;
+        Iterator<MyBag.Entry<T>> it = entryIterator();
+        while (it.hasNext()) {
+            MyBag.Entry<T> e = it.next();
+            if (other.getCount(e.getElement()) != e.getCount())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Хэш-код вычисляется так же, как в классе
+     * {@link org.apache.commons.collections4.bag.AbstractMapBag}, и
+     * поддерживается при каждом изменении, поэтому возвращается за O(1).
+     * @return хэш-код сумки.
+     */
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * @return строковое представление вида <code>[count:element,...]</code>.
+     */
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder("[");
+        Iterator<MyBag.Entry<T>> it = entryIterator();
+        while (it.hasNext()) {
+            res.append(it.next());
+            if (it.hasNext())
+                res.append(",");
+        }
+        res.append(']');
+        return res.toString();
+    }
+
+    /**
+     * Не поддерживается: сумка неизменяемая, используйте {@link PersistentBag#plus(Object)}.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean add(T o) {
+        throw new UnsupportedOperationException("PersistentBag is immutable!");
+    }
+
+    /**
+     * Не поддерживается: сумка неизменяемая, используйте {@link PersistentBag#plus(Object, int)}.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean add(T o, int n) {
+        throw new UnsupportedOperationException("PersistentBag is immutable!");
+    }
+
+    /**
+     * Не поддерживается: сумка неизменяемая, используйте {@link PersistentBag#without(Object)}.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException("PersistentBag is immutable!");
+    }
+
+    /**
+     * Не поддерживается: сумка неизменяемая, используйте {@link PersistentBag#minus(Object, int)}.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean remove(Object o, int n) {
+        throw new UnsupportedOperationException("PersistentBag is immutable!");
+    }
+
+    /**
+     * Не поддерживается: сумка неизменяемая.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean removeAll(Collection<?> collection) {
+        throw new UnsupportedOperationException("PersistentBag is immutable!");
+    }
+
+    /**
+     * Не поддерживается: сумка неизменяемая.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean retainAll(Collection<?> collection) {
+        throw new UnsupportedOperationException("PersistentBag is immutable!");
+    }
+
+    /**
+     * Не поддерживается: сумка неизменяемая, используйте {@link PersistentBag#empty()}.
+     * @throws UnsupportedOperationException всегда.
+     */
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("PersistentBag is immutable!");
+    }
+
+    /**
+     * Изменяемый построитель версии. Узлы, созданные построителем, меняются
+     * на месте, а узлы исходной версии копируются при первом изменении,
+     * так что исходная версия не затрагивается. После {@link Builder#build()}
+     * построитель можно использовать дальше: следующие изменения снова
+     * копируют узлы, общие с построенной версией. Не потокобезопасен.
+     * @param <T> тип элемента.
+     */
+    public static final class Builder<T> {
+        private Node root;
+        private int size;
+        private int distinct;
+        private int hash;
+
+        /**
+         * Метка узлов, которые построитель может менять на месте.
+         */
+        private Object owner = new Object();
+
+        private Builder(Node root, int size, int distinct, int hash) {
+            this.root = root;
+            this.size = size;
+            this.distinct = distinct;
+            this.hash = hash;
+        }
+
+        private void update(Object o, int n) {
+            if (root == null) {
+                if (n <= 0)
+                    return;
+                root = new Node(owner, 0, new Object[0]);
+            }
+            Delta d = new Delta();
+            root = root.update(owner, 0, hashOf(o), o, n, d);
+            size += d.copies;
+            distinct += d.distinct;
+            hash += d.hash;
+        }
+
+        /**
+         * Добавляет копию объекта.
+         * @param o объект.
+         * @return этот построитель.
+         */
+        public Builder<T> add(T o) {
+            return add(o, 1);
+        }
+
+        /**
+         * Добавляет копии объекта.
+         * @param o объект.
+         * @param n количество копий, если <code>n < 1</code>, ничего не добавляется.
+         * @return этот построитель.
+         */
+        public Builder<T> add(T o, int n) {
+            if (n > 0)
+                update(o, n);
+            return this;
+        }
+
+        /**
+         * Удаляет копии объекта.
+         * @param o объект.
+         * @param n количество копий, если <code>n < 1</code>, ничего не удаляется.
+         * @return этот построитель.
+         */
+        public Builder<T> remove(Object o, int n) {
+            if (n > 0)
+                update(o, -n);
+            return this;
+        }
+
+        /**
+         * Кратность объекта.
+         * @param o объект.
+         * @return кратность или 0.
+         */
+        public int getCount(Object o) {
+            if (root == null)
+                return 0;
+            Leaf leaf = root.find(o, hashOf(o), 0);
+            return (leaf == null) ? 0 : leaf.count;
+        }
+
+        /**
+         * @return количество копий.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Неизменяемая версия с текущим содержимым, за O(1).
+         * @return версия.
+         */
+        public PersistentBag<T> build() {
+            //узлы переходят в неизменяемую версию, дальше их нужно копировать
+            owner = new Object();
+            if (root == null || size == 0)
+                return empty();
+            return new PersistentBag<T>(root, size, distinct, hash);
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package ru.spbstu.telematics.java;
+
+import org.apache.commons.collections4.Bag;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * Приближенная сумка фиксированного размера для потоков с неограниченным
+ * количеством различных элементов. Реализует только читающую часть
+ * интерфейса <code>Bag</code>: добавлять элементы можно, а перечислять и
+ * удалять -- нет, так как сами элементы не хранятся. <br>
+ * Кратности оцениваются скетчем Count-Min: <code>depth</code> строк по
+ * <code>width</code> счетчиков, элемент увеличивает по одному счетчику в
+ * каждой строке, а оценкой служит минимум по строкам. Оценка никогда не
+ * меньше настоящей кратности и с вероятностью не меньше
+ * <code>1 - delta</code> превышает ее не больше чем на
+ * <code>epsilon * size()</code>. При консервативном обновлении
+ * увеличиваются только счетчики, равные минимуму, что уменьшает
+ * завышение. <br>
+ * Количество различных элементов оценивается алгоритмом HyperLogLog с
+ * относительной ошибкой около <code>1.04 / sqrt(2^precision)</code>. <br>
+ * Скетчи с одинаковыми параметрами и функцией хэширования можно
+ * объединять методом {@link SketchBag#merge(SketchBag)}. <br>
+ * По умолчанию 64-битный хэш получается перемешиванием
+ * <code>hashCode()</code>, поэтому различных хэшей не больше 2^32: на
+ * миллиардах различных элементов HyperLogLog занижает оценку, а совпадения
+ * хэш-кодов завышают кратности сверх <code>epsilon</code>. Для таких потоков
+ * нужно передать полноценную 64-битную функцию {@link Hasher}, например
+ * {@link SketchBag#hasherOf(SpillingBag.Codec)}, хэширующую двоичное
+ * представление элемента.
+ * @param <T> тип элемента коллекции.
+ */
+public class SketchBag<T> extends AbstractCollection<T> implements Bag<T> {
+    /**
+     * Точность HyperLogLog по умолчанию: 2^14 регистров, ошибка около 0.8%.
+     */
+    static final int DEFAULT_PRECISION = 14;
+
+    /**
+     * 64-битная функция хэширования элементов.
+     * @param <T> тип элемента.
+     */
+    public interface Hasher<T> {
+        long hash(T value);
+    }
+
+    /**
+     * Хэширование по <code>hashCode()</code>: не больше 2^32 различных хэшей.
+     */
+    public static final Hasher<Object> HASH_CODE = new Hasher<Object>() {
+        public long hash(Object value) {
+            return hash64(value);
+        }
+    };
+
+    /**
+     * Допустимая относительная ошибка кратности.
+     */
+    private final double epsilon;
+
+    /**
+     * Вероятность превышения ошибки.
+     */
+    private final double delta;
+
+    /**
+     * Количество счетчиков в строке скетча.
+     */
+    private final int width;
+
+    /**
+     * Количество строк скетча.
+     */
+    private final int depth;
+
+    /**
+     * Консервативное обновление.
+     */
+    private final boolean conservative;
+
+    /**
+     * Счетчики Count-Min, строки подряд.
+     */
+    private final long[] table;
+
+    /**
+     * Точность HyperLogLog: количество регистров -- 2^precision.
+     */
+    private final int precision;
+
+    /**
+     * Регистры HyperLogLog: наибольшая позиция первой единицы в хэшах,
+     * попавших в регистр.
+     */
+    private final byte[] registers;
+
+    /**
+     * Общее количество добавленных копий.
+     */
+    private long total;
+
+    /**
+     * Функция хэширования ненулевых элементов.
+     */
+    private final Hasher<? super T> hasher;
+
+    /**
+     * Конструктор с точностью HyperLogLog по умолчанию.
+     * @param epsilon допустимая относительная ошибка кратности, от 0 до 1.
+     * @param delta вероятность превышения ошибки, от 0 до 1.
+     * @param conservative использовать консервативное обновление.
+     * @throws IllegalArgumentException если параметры некорректны.
+     */
+    public SketchBag(double epsilon, double delta, boolean conservative) {
+        this(epsilon, delta, conservative, DEFAULT_PRECISION);
+    }
+
+    /**
+     * Конструктор.
+     * @param epsilon допустимая относительная ошибка кратности, от 0 до 1.
+     * @param delta вероятность превышения ошибки, от 0 до 1.
+     * @param conservative использовать консервативное обновление.
+     * @param precision точность HyperLogLog, от 4 до 18.
+     * @throws IllegalArgumentException если параметры некорректны.
+     */
+    public SketchBag(double epsilon, double delta, boolean conservative, int precision) {
+        this(epsilon, delta, conservative, precision, HASH_CODE);
+    }
+
+    /**
+     * Конструктор с заданной функцией хэширования.
+     * @param epsilon допустимая относительная ошибка кратности, от 0 до 1.
+     * @param delta вероятность превышения ошибки, от 0 до 1.
+     * @param conservative использовать консервативное обновление.
+     * @param precision точность HyperLogLog, от 4 до 18.
+     * @param hasher 64-битная функция хэширования ненулевых элементов.
+     * @throws IllegalArgumentException если параметры некорректны.
+     */
+    public SketchBag(double epsilon, double delta, boolean conservative, int precision, Hasher<? super T> hasher) {
+        if (!(epsilon > 0 && epsilon < 1))
+            throw new IllegalArgumentException("Illegal epsilon: " + epsilon);
+        if (!(delta > 0 && delta < 1))
+            throw new IllegalArgumentException("Illegal delta: " + delta);
+        if (precision < 4 || precision > 18)
+            throw new IllegalArgumentException("Illegal precision: " + precision);
+        this.epsilon = epsilon;
+        this.delta = delta;
+        this.conservative = conservative;
+        this.precision = precision;
+        this.hasher = hasher;
+        width = (int) Math.ceil(Math.E / epsilon);
+        depth = (int) Math.ceil(Math.log(1 / delta));
+        table = new long[width * depth];
+        registers = new byte[1 << precision];
+    }
+
+    /**
+     * 64-битный хэш элемента: хэш-код, перемешанный функцией из SplitMix64.
+     * @param o элемент.
+     * @return хэш.
+     */
+    static long hash64(Object o) {
+        long z = (o == null) ? 0 : o.hashCode();
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * 64-битный хэш двоичного представления элемента: MurmurHash64A от
+     * байтов, записанных форматом <code>codec</code>.
+     * @param codec формат элементов.
+     * @param <T> тип элемента.
+     * @return функция хэширования.
+     */
+    public static <T> Hasher<T> hasherOf(final SpillingBag.Codec<T> codec) {
+        return new Hasher<T>() {
+            public long hash(T value) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+                try {
+                    codec.write(new DataOutputStream(bytes), value);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return murmur64(bytes.toByteArray());
+            }
+        };
+    }
+
+    /**
+     * MurmurHash64A.
+     * @param data байты.
+     * @return хэш.
+     */
+    static long murmur64(byte[] data) {
+        final long m = 0xC6A4A7935BD1E995L;
+        final int r = 47;
+        long h = 0x9E3779B97F4A7C15L ^ (data.length * m);
+        int blocks = data.length & ~7;
+        for (int i = 0; i < blocks; i += 8) {
+            long k = 0;
+            for (int b = 7; b >= 0; b--)
+                k = (k << 8) | (data[i + b] & 0xFFL);
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h ^= k;
+            h *= m;
+        }
+        if (blocks < data.length) {
+            for (int i = data.length - 1; i >= blocks; i--)
+                h ^= (data[i] & 0xFFL) << (8 * (i - blocks));
+            h *= m;
+        }
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+        return h;
+    }
+
+    /**
+     * Хэш элемента функцией этого скетча.
+     * @param o элемент.
+     * @return хэш.
+     * @throws ClassCastException если функция не принимает элементы такого типа.
+     */
+    @SuppressWarnings("unchecked")
+    private long hashOf(Object o) {
+        if (o == null)
+            return hash64(null);
+        return ((Hasher<Object>) hasher).hash(o);
+    }
+
+    /**
+     * Номер счетчика элемента в строке скетча (двойное хэширование).
+     * @param h хэш элемента.
+     * @param row номер строки.
+     * @return индекс счетчика в {@link SketchBag#table}.
+     */
+    private int cell(long h, int row) {
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        return row * width + ((h1 + row * h2) & Integer.MAX_VALUE) % width;
+    }
+
+    /**
+     * Оценка кратности элемента. Не меньше настоящей кратности.
+     * @param o элемент.
+     * @return оценка кратности.
+     */
+    public long estimateCount(Object o) {
+        long h = hashOf(o);
+        long res = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++)
+            res = Math.min(res, table[cell(h, row)]);
+        return res;
+    }
+
+    /**
+     * Оценка кратности элемента, ограниченная сверху <code>Integer.MAX_VALUE</code>.
+     * @param o элемент.
+     * @return оценка кратности.
+     * @see SketchBag#estimateCount(Object)
+     */
+    public int getCount(Object o) {
+        return (int) Math.min(estimateCount(o), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Добавляет объект с кратностью 1.
+     * @param o добавляемый объект.
+     * @return всегда <code>true</code>.
+     */
+    public boolean add(T o) {
+        return add(o, 1);
+    }
+
+    /**
+     * Добавляет несколько копий объекта.
+     * @param o добавляемый объект.
+     * @param n количество копий, если <code>n < 1</code>, объект не добавляется.
+     * @return <code>true</code>, если объект был добавлен, иначе <code>false</code>.
+     */
+    public boolean add(T o, int n) {
+        if (n < 1)
+            return false;
+        long h = hashOf(o);
+        if (conservative) {
+            long target = estimateCount(o) + n;
+            for (int row = 0; row < depth; row++) {
+                int i = cell(h, row);
+                if (table[i] < target)
+                    table[i] = target;
+            }
+        }
+        else {
+            for (int row = 0; row < depth; row++)
+                table[cell(h, row)] += n;
+        }
+        int r = (int) (h >>> (64 - precision));
+        int rank = Long.numberOfLeadingZeros((h << precision) | (1L << (precision - 1))) + 1;
+        if (rank > registers[r])
+            registers[r] = (byte) rank;
+        total += n;
+        return true;
+    }
+
+    /**
+     * Проверяет наличие объекта в сумке. Может ошибочно вернуть
+     * <code>true</code>, но не <code>false</code>.
+     * @param o проверяемый объект.
+     * @return <code>true</code>, если объект, возможно, есть в сумке.
+     */
+    @Override
+    public boolean contains(Object o) {
+        return estimateCount(o) > 0;
+    }
+
+    /**
+     * @return количество добавленных копий, ограниченное <code>Integer.MAX_VALUE</code>.
+     * @see SketchBag#totalCount()
+     */
+    public int size() {
+        return (int) Math.min(total, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return точное количество добавленных копий.
+     */
+    public long totalCount() {
+        return total;
+    }
+
+    /**
+     * Оценка количества различных элементов алгоритмом HyperLogLog; для
+     * малых значений используется линейный подсчет по пустым регистрам.
+     * @return оценка количества различных элементов.
+     */
+    public long distinctEstimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0)
+                zeros++;
+        }
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0)
+            estimate = m * Math.log((double) m / zeros);
+        return Math.round(estimate);
+    }
+
+    /**
+     * Верхняя граница ошибки кратности, которая выполняется с вероятностью
+     * не меньше <code>1 - delta</code>.
+     * @return <code>epsilon * totalCount()</code>.
+     */
+    public double errorBound() {
+        return epsilon * total;
+    }
+
+    /**
+     * Добавляет в этот скетч содержимое другого. Скетчи должны
+     * использовать одну функцию хэширования. Оценки объединенного
+     * скетча совпадают с оценками скетча, в который добавлялись оба потока
+     * (при консервативном обновлении -- не меньше их).
+     * @param other скетч с такими же параметрами.
+     * @throws IllegalArgumentException если параметры скетчей различаются.
+     */
+    public void merge(SketchBag<?> other) {
+        if (other.width != width || other.depth != depth || other.precision != precision
+                || other.conservative != conservative)
+            throw new IllegalArgumentException("Sketch parameters do not match!");
+        for (int i = 0; i < table.length; i++)
+            table[i] += other.table[i];
+        for (int i = 0; i < registers.length; i++)
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+        total += other.total;
+    }
+
+    /**
+     * @return объем памяти под счетчики и регистры в байтах, не зависит от
+     * количества добавленных элементов.
+     */
+    public long getMemoryBytes() {
+        return table.length * 8L + registers.length;
+    }
+
+    /**
+     * @return допустимая относительная ошибка кратности.
+     */
+    public double getEpsilon() {
+        return epsilon;
+    }
+
+    /**
+     * @return вероятность превышения ошибки.
+     */
+    public double getDelta() {
+        return delta;
+    }
+
+    /**
+     * Очищает скетч.
+     */
+    @Override
+    public void clear() {
+        Arrays.fill(table, 0);
+        Arrays.fill(registers, (byte) 0);
+        total = 0;
+    }
+
+    /**
+     * Проверяет, что оценки кратностей не меньше кратностей в коллекции.
+     * Может ошибочно вернуть <code>true</code>, но не <code>false</code>.
+     * @param collection коллекция.
+     * @return <code>true</code>, если все элементы, возможно, содержатся.
+     */
+    public boolean containsAll(Collection<?> collection) {
+        if (collection == null)
+            return true;
+        Bag<?> need = MyBag.countsOf(collection);
+        for (Object o : need.uniqueSet())
+            if (estimateCount(o) < need.getCount(o))
+                return false;
+        return true;
+    }
+
+    /**
+     * Не поддерживается: элементы не хранятся.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public Set<T> uniqueSet() {
+        throw new UnsupportedOperationException("SketchBag does not store elements!");
+    }
+
+    /**
+     * Не поддерживается: элементы не хранятся.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public Iterator<T> iterator() {
+        throw new UnsupportedOperationException("SketchBag does not store elements!");
+    }
+
+    /**
+     * Не поддерживается: скетч не умеет уменьшать счетчики.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException("SketchBag does not support removal!");
+    }
+
+    /**
+     * Не поддерживается: скетч не умеет уменьшать счетчики.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean remove(Object o, int n) {
+        throw new UnsupportedOperationException("SketchBag does not support removal!");
+    }
+
+    /**
+     * Не поддерживается: скетч не умеет уменьшать счетчики.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean removeAll(Collection<?> collection) {
+        throw new UnsupportedOperationException("SketchBag does not support removal!");
+    }
+
+    /**
+     * Не поддерживается: скетч не умеет уменьшать счетчики.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean retainAll(Collection<?> collection) {
+        throw new UnsupportedOperationException("SketchBag does not support removal!");
+    }
+
+    /**
+     * @return параметры и оценки скетча.
+     */
+    @Override
+    public String toString() {
+        return "SketchBag[size=" + total + ", distinct~" + distinctEstimate() + ", epsilon=" + epsilon
+                + ", delta=" + delta + ", " + depth + "x" + width + (conservative ? ", conservative" : "") + "]";
+    }
+}
@@ -0,0 +1,665 @@
+package ru.spbstu.telematics.java;
+
+import org.apache.commons.collections4.Bag;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Сумка с упорядоченными элементами. Порядок задается компаратором или,
+ * если он не указан, естественным порядком <code>Comparable</code>
+ * элементов; <code>null</code> допускается, только если его поддерживает
+ * компаратор. <br>
+ * Элементы хранятся в индексируемом списке с пропусками (skip list): у
+ * каждой ссылки узла хранится ширина -- количество копий в узлах, которые
+ * она перепрыгивает. Поэтому поиск, добавление, удаление, ранг
+ * ({@link SortedMyBag#rank(Object)}), выбор копии по номеру
+ * ({@link SortedMyBag#select(int)}) и количество копий в диапазоне
+ * ({@link SortedMyBag#countInRange(Object, Object)}) работают в среднем за
+ * O(log n), а перечисление в порядке возрастания -- за O(1) на элемент.
+ * Вероятность подъема узла на следующий уровень равна 1/4, так что в
+ * среднем у узла 1.33 ссылки, и нижний уровень обходится почти подряд.
+ * @param <T> тип элемента коллекции.
+ */
+public class SortedMyBag<T> extends AbstractCollection<T> implements Bag<T> {
+    /**
+     * Максимальное количество уровней.
+     */
+    private static final int MAX_LEVEL = 24;
+
+    /**
+     * Узел списка: элемент, его кратность и ссылки на следующие узлы по
+     * уровням вместе с их ширинами.
+     */
+    private static final class Node {
+        final Object key;
+        int count;
+        final Node[] next;
+
+        /**
+         * <code>width[l]</code> -- количество копий в узлах после этого до
+         * <code>next[l]</code> включительно, или до конца списка, если
+         * <code>next[l] == null</code>.
+         */
+        final int[] width;
+
+        Node(Object key, int count, int level) {
+            this.key = key;
+            this.count = count;
+            next = new Node[level];
+            width = new int[level];
+        }
+    }
+
+    /**
+     * Компаратор или <code>null</code> для естественного порядка.
+     */
+    private final Comparator<? super T> comparator;
+
+    /**
+     * Заголовок списка без элемента, со всеми уровнями.
+     */
+    private final Node head = new Node(null, 0, MAX_LEVEL);
+
+    /**
+     * Количество используемых уровней.
+     */
+    private int levels = 1;
+
+    /**
+     * Общее количество копий.
+     */
+    private int count;
+
+    /**
+     * Количество различных элементов.
+     */
+    private int distinct;
+
+    /**
+     * Счетчик изменений для итераторов.
+     */
+    private int modCount;
+
+    /**
+     * Узлы, после которых на каждом уровне находится искомое место;
+     * заполняется методом {@link SortedMyBag#seek(Object)}.
+     */
+    private final Node[] update = new Node[MAX_LEVEL];
+
+    /**
+     * Количество копий до узла <code>update[l]</code> включительно.
+     */
+    private final int[] updateRank = new int[MAX_LEVEL];
+
+    /**
+     * Конструктор для элементов с естественным порядком.
+     */
+    public SortedMyBag() {
+        this((Comparator<? super T>) null);
+    }
+
+    /**
+     * Конструктор.
+     * @param comparator компаратор или <code>null</code> для естественного порядка.
+     */
+    public SortedMyBag(Comparator<? super T> comparator) {
+        this.comparator = comparator;
+    }
+
+    /**
+     * Конструктор, добавляющий все элементы коллекции.
+     * @param c коллекция.
+     */
+    public SortedMyBag(Collection<? extends T> c) {
+        this((Comparator<? super T>) null);
+        addAll(c);
+    }
+
+    /**
+     * @return компаратор или <code>null</code> для естественного порядка.
+     */
+    public Comparator<? super T> comparator() {
+        return comparator;
+    }
+
+    /**
+     * Сравнивает элементы.
+     */
+    @SuppressWarnings("unchecked")
+    private int compare(Object a, Object b) {
+        if (comparator != null)
+            return comparator.compare((T) a, (T) b);
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    /**
+     * Ищет место элемента: заполняет {@link SortedMyBag#update} и
+     * {@link SortedMyBag#updateRank}.
+     * @param o элемент.
+     * @return узел элемента или <code>null</code>, если его нет.
+     */
+    private Node seek(Object o) {
+        if (o == null && comparator == null)
+            throw new NullPointerException();
+        Node x = head;
+        int rank = 0;
+        for (int l = levels - 1; l >= 0; l--) {
+            while (x.next[l] != null && compare(x.next[l].key, o) < 0) {
+                rank += x.width[l];
+                x = x.next[l];
+            }
+            update[l] = x;
+            updateRank[l] = rank;
+        }
+        Node res = x.next[0];
+        return (res != null && compare(res.key, o) == 0) ? res : null;
+    }
+
+    /**
+     * Количество копий элементов, меньших заданного. Поиск без заполнения
+     * {@link SortedMyBag#update}, только для чтения.
+     * @param o элемент.
+     * @param inclusive учитывать и копии самого элемента.
+     * @return количество копий.
+     */
+    private int countBelow(Object o, boolean inclusive) {
+        if (o == null && comparator == null)
+            throw new NullPointerException();
+        Node x = head;
+        int rank = 0;
+        for (int l = levels - 1; l >= 0; l--) {
+            while (x.next[l] != null) {
+                int c = compare(x.next[l].key, o);
+                if (c > 0 || (c == 0 && !inclusive))
+                    break;
+                rank += x.width[l];
+                x = x.next[l];
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Находит узел элемента без изменения состояния.
+     */
+    private Node lookup(Object o) {
+        if (o == null && comparator == null)
+            return null;
+        Node x = head;
+        for (int l = levels - 1; l >= 0; l--)
+            while (x.next[l] != null && compare(x.next[l].key, o) < 0)
+                x = x.next[l];
+        Node res = x.next[0];
+        return (res != null && compare(res.key, o) == 0) ? res : null;
+    }
+
+    /**
+     * @return случайное количество уровней нового узла.
+     */
+    private static int randomLevel() {
+        int level = 1;
+        //два младших бита равны нулю с вероятностью 1/4
+        for (int r = ThreadLocalRandom.current().nextInt(); (r & 3) == 0 && level < MAX_LEVEL; r >>>= 2)
+            level++;
+        return level;
+    }
+
+    /**
+     * Кратность объекта.
+     * @param o объект.
+     * @return кратность или 0, если объекта нет в сумке.
+     */
+    public int getCount(Object o) {
+        Node x = lookup(o);
+        return (x == null) ? 0 : x.count;
+    }
+
+    /**
+     * Добавляет объект с кратностью 1.
+     * @param o добавляемый объект.
+     * @return всегда <code>true</code>.
+     */
+    public boolean add(T o) {
+        return add(o, 1);
+    }
+
+    /**
+     * Добавляет несколько копий объекта.
+     * @param o добавляемый объект.
+     * @param n количество копий, если <code>n < 1</code>, объект не добавляется.
+     * @return <code>true</code>, если объект был добавлен, иначе <code>false</code>.
+     * @throws NullPointerException если объект -- <code>null</code>, а компаратора нет.
+     */
+    public boolean add(T o, int n) {
+        if (n < 1)
+            return false;
+        Node x = seek(o);
+        if (x != null) {
+            x.count += n;
+            for (int l = 0; l < levels; l++)
+                update[l].width[l] += n;
+        }
+        else {
+            int level = randomLevel();
+            if (level > levels) {
+                for (int l = levels; l < level; l++) {
+                    update[l] = head;
+                    updateRank[l] = 0;
+                    head.width[l] = count;
+                }
+                levels = level;
+            }
+            x = new Node(o, n, level);
+            int rank = updateRank[0];
+            for (int l = 0; l < level; l++) {
+                int before = rank - updateRank[l];
+                x.next[l] = update[l].next[l];
+                x.width[l] = update[l].width[l] - before;
+                update[l].next[l] = x;
+                update[l].width[l] = before + n;
+            }
+            for (int l = level; l < levels; l++)
+                update[l].width[l] += n;
+            distinct++;
+        }
+        count += n;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Удаляет все копии объекта из сумки.
+     * @param o удаляемый объект.
+     * @return <code>true</code>, если объект был ранее в сумке, иначе <code>false</code>.
+     */
+    public boolean remove(Object o) {
+        return remove(o, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Удаляет <code>n</code> копий объекта из сумки.
+     * @param o удаляемый объект.
+     * @param n количество удаляемых копий. Если <code>n < 1</code>,
+     *          удаление не происходит.
+     * @return <code>true</code>, если что-то было удалено, иначе <code>false</code>.
+     */
+    public boolean remove(Object o, int n) {
+        if (n < 1 || (o == null && comparator == null))
+            return false;
+        Node x = seek(o);
+        if (x == null)
+            return false;
+        if (x.count > n) {
+            x.count -= n;
+            for (int l = 0; l < levels; l++)
+                update[l].width[l] -= n;
+            count -= n;
+        }
+        else {
+            int c = x.count;
+            for (int l = 0; l < x.next.length; l++) {
+                update[l].width[l] += x.width[l] - c;
+                update[l].next[l] = x.next[l];
+            }
+            for (int l = x.next.length; l < levels; l++)
+                update[l].width[l] -= c;
+            while (levels > 1 && head.next[levels - 1] == null)
+                levels--;
+            count -= c;
+            distinct--;
+        }
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Количество копий элементов, меньших заданного.
+     * @param o элемент, не обязательно содержащийся в сумке.
+     * @return ранг элемента.
+     */
+    public int rank(T o) {
+        return countBelow(o, false);
+    }
+
+    /**
+     * Копия с заданным номером в порядке возрастания.
+     * @param index номер копии, от 0 до <code>size() - 1</code>.
+     * @return элемент.
+     * @throws IndexOutOfBoundsException если номер вне диапазона.
+     */
+    @SuppressWarnings("unchecked")
+    public T select(int index) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + count);
+        Node x = head;
+        int pos = 0;
+        for (int l = levels - 1; l >= 0; l--) {
+            while (x.next[l] != null && pos + x.width[l] <= index) {
+                pos += x.width[l];
+                x = x.next[l];
+            }
+        }
+        return (T) x.next[0].key;
+    }
+
+    /**
+     * Количество копий элементов из полуинтервала <code>[lo, hi)</code>.
+     * @param lo нижняя граница, включается.
+     * @param hi верхняя граница, не включается.
+     * @return количество копий.
+     */
+    public int countInRange(T lo, T hi) {
+        return countInRange(lo, true, hi, false);
+    }
+
+    /**
+     * Количество копий элементов из диапазона.
+     * @param lo нижняя граница.
+     * @param loInclusive включать нижнюю границу.
+     * @param hi верхняя граница.
+     * @param hiInclusive включать верхнюю границу.
+     * @return количество копий, 0 для пустого диапазона.
+     */
+    public int countInRange(T lo, boolean loInclusive, T hi, boolean hiInclusive) {
+        int res = countBelow(hi, hiInclusive) - countBelow(lo, !loInclusive);
+        return Math.max(res, 0);
+    }
+
+    /**
+     * @return наименьший элемент.
+     * @throws NoSuchElementException если сумка пуста.
+     */
+    @SuppressWarnings("unchecked")
+    public T first() {
+        if (head.next[0] == null)
+            throw new NoSuchElementException();
+        return (T) head.next[0].key;
+    }
+
+    /**
+     * @return наибольший элемент.
+     * @throws NoSuchElementException если сумка пуста.
+     */
+    @SuppressWarnings("unchecked")
+    public T last() {
+        if (head.next[0] == null)
+            throw new NoSuchElementException();
+        Node x = head;
+        for (int l = levels - 1; l >= 0; l--)
+            while (x.next[l] != null)
+                x = x.next[l];
+        return (T) x.key;
+    }
+
+    /**
+     * Итератор по различным элементам в порядке возрастания вместе с
+     * кратностями. Удаление через итератор удаляет все копии элемента.
+     * @return итератор по записям.
+     */
+    public Iterator<MyBag.Entry<T>> entryIterator() {
+        return new NodeIterator<MyBag.Entry<T>>() {
+            @SuppressWarnings("unchecked")
+            public MyBag.Entry<T> next() {
+                Node x = nextNode();
+                return new MyBag.Entry<T>((T) x.key, x.count);
+            }
+        };
+    }
+
+    /**
+     * Итератор по копиям в порядке возрастания.
+     * @return итератор.
+     */
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            /**
+             * Текущий узел.
+             */
+            private Node node = head;
+
+            /**
+             * Сколько копий текущего узла осталось вернуть.
+             */
+            private int left;
+
+            private boolean canRemove;
+            private int expectedModCount = modCount;
+
+            public boolean hasNext() {
+                return left > 0 || node.next[0] != null;
+            }
+
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (expectedModCount != modCount)
+                    throw new ConcurrentModificationException();
+                if (left == 0) {
+                    if (node.next[0] == null)
+                        throw new NoSuchElementException();
+                    node = node.next[0];
+                    left = node.count;
+                }
+                left--;
+                canRemove = true;
+                return (T) node.key;
+            }
+
+            public void remove() {
+                if (!canRemove)
+                    throw new IllegalStateException();
+                if (expectedModCount != modCount)
+                    throw new ConcurrentModificationException();
+                //удаленный узел сохраняет ссылку на следующий
+                SortedMyBag.this.remove(node.key, 1);
+                expectedModCount = modCount;
+                canRemove = false;
+            }
+        };
+    }
+
+    /**
+     * Итератор по узлам нижнего уровня; удаление убирает все копии элемента.
+     * @param <E> тип возвращаемых значений.
+     */
+    private abstract class NodeIterator<E> implements Iterator<E> {
+        private Node node = head;
+        private boolean canRemove;
+        private int expectedModCount = modCount;
+
+        public boolean hasNext() {
+            return node.next[0] != null;
+        }
+
+        Node nextNode() {
+            if (expectedModCount != modCount)
+                throw new ConcurrentModificationException();
+            if (node.next[0] == null)
+                throw new NoSuchElementException();
+            node = node.next[0];
+            canRemove = true;
+            return node;
+        }
+
+        public void remove() {
+            if (!canRemove)
+                throw new IllegalStateException();
+            if (expectedModCount != modCount)
+                throw new ConcurrentModificationException();
+            SortedMyBag.this.remove(node.key);
+            expectedModCount = modCount;
+            canRemove = false;
+        }
+    }
+
+    /**
+     * @return множество различных элементов в порядке возрастания,
+     * связанное с сумкой: удаление из него удаляет все копии элемента.
+     */
+    public Set<T> uniqueSet() {
+        return new AbstractSet<T>() {
+            public Iterator<T> iterator() {
+                return new NodeIterator<T>() {
+                    @SuppressWarnings("unchecked")
+                    public T next() {
+                        return (T) nextNode().key;
+                    }
+                };
+            }
+
+            public int size() {
+                return distinct;
+            }
+
+            public boolean contains(Object o) {
+                return lookup(o) != null;
+            }
+
+            public boolean remove(Object o) {
+                return SortedMyBag.this.remove(o);
+            }
+
+            public void clear() {
+                SortedMyBag.this.clear();
+            }
+        };
+    }
+
+    /**
+     * @return количество копий в сумке.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param o проверяемый объект.
+     * @return <code>true</code>, если объект есть в сумке.
+     */
+    @Override
+    public boolean contains(Object o) {
+        return lookup(o) != null;
+    }
+
+    /**
+     * Очищает сумку.
+     */
+    @Override
+    public void clear() {
+        Arrays.fill(head.next, null);
+        Arrays.fill(head.width, 0);
+        Arrays.fill(update, null);
+        levels = 1;
+        count = 0;
+        distinct = 0;
+        modCount++;
+    }
+
+    /**
+     * Проверяет, содержатся ли в сумке все элементы коллекции, учитывая кратность.
+     * @param collection коллекция.
+     * @return <code>true</code>, если содержатся, иначе <code>false</code>.
+     */
+    public boolean containsAll(Collection<?> collection) {
+        if (collection == null || collection == this)
+            return true;
+        Bag<?> other = MyBag.countsOf(collection);
+        for (Object o : other.uniqueSet())
+            if (getCount(o) < other.getCount(o))
+                return false;
+        return true;
+    }
+
+    /**
+     * Удаляет из сумки все элементы коллекции, учитывая кратность.
+     * @param collection коллекция.
+     * @return <code>true</code>, если сумка была изменена, иначе <code>false</code>.
+     */
+    public boolean removeAll(Collection<?> collection) {
+        if (collection == null)
+            return false;
+        if (collection == this) {
+            boolean changed = !isEmpty();
+            clear();
+            return changed;
+        }
+        Bag<?> other = MyBag.countsOf(collection);
+        boolean changed = false;
+        for (Object o : other.uniqueSet())
+            changed |= remove(o, other.getCount(o));
+        return changed;
+    }
+
+    /**
+     * Оставляет в сумке только элементы из коллекции, учитывая кратность.
+     * @param collection коллекция.
+     * @return <code>true</code>, если сумка была изменена, иначе <code>false</code>.
+     */
+    public boolean retainAll(Collection<?> collection) {
+        if (collection == null) {
+            clear();
+            return true;
+        }
+        if (collection == this)
+            return false;
+        Bag<?> other = MyBag.countsOf(collection);
+        boolean changed = false;
+        //удаленный узел сохраняет ссылку на следующий, поэтому обходим узлы напрямую
+        for (Node x = head.next[0]; x != null; x = x.next[0]) {
+            int keep = other.getCount(x.key);
+            if (x.count > keep) {
+                remove(x.key, x.count - keep);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Сравнение сумок происходит так же, как в классе
+     * {@link org.apache.commons.collections4.bag.AbstractMapBag}.
+     * @param o другая сумка.
+     * @return <code>true</code>, если сумки одинаковые.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Bag)) return false;
+        Bag<?> other = (Bag<?>) o;
+        if (other.size() != size() || other.uniqueSet().size() != distinct)
+            return false;
+        for (Node x = head.next[0]; x != null; x = x.next[0])
+            if (other.getCount(x.key) != x.count)
+                return false;
+        return true;
+    }
+
+    /**
+     * Хэш-код вычисляется так же, как в классе
+     * {@link org.apache.commons.collections4.bag.AbstractMapBag}.
+     * @return хэш-код сумки.
+     */
+    @Override
+    public int hashCode() {
+        int result = 0;
+        for (Node x = head.next[0]; x != null; x = x.next[0])
+            result += ((x.key == null) ? 0 : x.key.hashCode()) ^ x.count;
+        return result;
+    }
+
+    /**
+     * @return строковое представление вида <code>[count:element,...]</code>
+     * в порядке возрастания.
+     */
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder("[");
+        for (Node x = head.next[0]; x != null; x = x.next[0]) {
+            if (x != head.next[0])
+                res.append(",");
+            res.append(x.count).append(":").append(x.key);
+        }
+        res.append(']');
+        return res.toString();
+    }
+}
@@ -0,0 +1,1295 @@
+package ru.spbstu.telematics.java;
+
+import org.apache.commons.collections4.Bag;
+
+import java.io.*;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Сумка для подсчета большего количества различных элементов, чем
+ * помещается в памяти. Элементы накапливаются в {@link MyBag}; когда в
+ * нем набирается <code>maxEntries</code> различных элементов, он
+ * отдается фоновому потоку, который сбрасывает его на диск, а добавление
+ * продолжается в новый {@link MyBag}. <br>
+ * Сброшенные записи (элемент и кратность) упорядочиваются по
+ * перемешанному хэшу {@link MyBag#spread(int)} и делятся на
+ * {@link SpillingBag#PARTITIONS} частей по старшим битам хэша; каждая
+ * часть пишется в свой файл-прогон. Формат записи: разность хэша с
+ * предыдущей записью и кратность в виде varint, затем элемент в формате
+ * {@link Codec}. Для каждого блока из {@link SpillingBag#INDEX_INTERVAL}
+ * записей в памяти хранятся хэш первой записи и смещение, поэтому
+ * {@link SpillingBag#getCount(Object)} читает только один блок каждого
+ * прогона своей части. Когда у части набирается
+ * {@link SpillingBag#MERGE_FAN_IN} прогонов, тот же фоновый поток сливает
+ * их в один. <br>
+ * Обход -- ленивое слияние k прогонов и данных в памяти по хэшу;
+ * слияние выполняет отдельный поток, передающий записи итератору
+ * пачками через ограниченную очередь. <br>
+ * Удаление копий не поддерживается. После использования сумку нужно
+ * закрыть методом {@link SpillingBag#close()}, который удаляет файлы.
+ * @param <T> тип элемента коллекции.
+ */
+public class SpillingBag<T> extends AbstractCollection<T> implements Bag<T>, Closeable {
+    /**
+     * Двоичный формат элементов в файлах прогонов. Прочитанный элемент
+     * должен быть равен записанному и иметь тот же хэш-код.
+     * @param <T> тип элемента.
+     */
+    public interface Codec<T> {
+        void write(DataOutput out, T value) throws IOException;
+
+        T read(DataInput in) throws IOException;
+    }
+
+    /**
+     * Строки в модифицированной UTF-8, не длиннее 65535 байт.
+     */
+    public static final Codec<String> STRINGS = new Codec<String>() {
+        public void write(DataOutput out, String value) throws IOException {
+            out.writeUTF(value);
+        }
+
+        public String read(DataInput in) throws IOException {
+            return in.readUTF();
+        }
+    };
+
+    /**
+     * Целые числа, 4 байта.
+     */
+    public static final Codec<Integer> INTEGERS = new Codec<Integer>() {
+        public void write(DataOutput out, Integer value) throws IOException {
+            out.writeInt(value);
+        }
+
+        public Integer read(DataInput in) throws IOException {
+            return in.readInt();
+        }
+    };
+
+    /**
+     * Длинные целые числа, 8 байт.
+     */
+    public static final Codec<Long> LONGS = new Codec<Long>() {
+        public void write(DataOutput out, Long value) throws IOException {
+            out.writeLong(value);
+        }
+
+        public Long read(DataInput in) throws IOException {
+            return in.readLong();
+        }
+    };
+
+    /**
+     * Количество бит хэша, по которым выбирается часть.
+     */
+    static final int PARTITION_BITS = 4;
+
+    /**
+     * Количество частей.
+     */
+    static final int PARTITIONS = 1 << PARTITION_BITS;
+
+    /**
+     * Количество записей в блоке прогона, для которого хранится смещение.
+     */
+    static final int INDEX_INTERVAL = 128;
+
+    /**
+     * Количество прогонов части, при котором они сливаются в один.
+     */
+    static final int MERGE_FAN_IN = 8;
+
+    /**
+     * Количество записей в пачке, которую поток слияния передает итератору.
+     */
+    static final int BATCH_SIZE = 1024;
+
+    /**
+     * Количество пачек в очереди между потоком слияния и итератором.
+     */
+    static final int QUEUE_BATCHES = 4;
+
+    /**
+     * Период, с которым поток слияния, ждущий места в очереди, проверяет,
+     * не брошен ли итератор, в миллисекундах.
+     */
+    static final int ABANDON_CHECK_MILLIS = 100;
+
+    /**
+     * Признак конца в очереди итератора.
+     */
+    private static final Object END = new Object();
+
+    /**
+     * Файл-прогон одной части: записи, упорядоченные по хэшу без знака,
+     * каждый элемент встречается один раз.
+     */
+    private static final class Run {
+        final File file;
+        final int records;
+
+        /**
+         * Хэш первой записи каждого блока.
+         */
+        final int[] blockHashes;
+
+        /**
+         * Смещение каждого блока в файле.
+         */
+        final long[] blockOffsets;
+
+        /**
+         * Количество читателей, открывших или собирающихся открыть файл.
+         * Меняется под монитором {@link SpillingBag#lock}.
+         */
+        int readers;
+
+        /**
+         * Прогон слит с другими или сумка очищена: файл удаляется, как
+         * только читателей не останется.
+         */
+        boolean retired;
+
+        Run(File file, int records, int[] blockHashes, long[] blockOffsets) {
+            this.file = file;
+            this.records = records;
+            this.blockHashes = blockHashes;
+            this.blockOffsets = blockOffsets;
+        }
+
+        /**
+         * Блок, с которого нужно начинать поиск хэша: последний блок,
+         * первый хэш которого меньше искомого, или первый блок.
+         * @param h хэш.
+         * @return номер блока.
+         */
+        int blockFor(int h) {
+            int lo = 0;
+            int hi = blockHashes.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (Integer.compareUnsigned(blockHashes[mid], h) < 0)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * Источник записей для слияния: текущая запись и переход к следующей.
+     */
+    private abstract static class Source {
+        int hash;
+        Object key;
+        int count;
+
+        /**
+         * Переходит к следующей записи.
+         * @return <code>false</code>, если записи кончились.
+         * @throws IOException ошибка чтения.
+         */
+        abstract boolean advance() throws IOException;
+
+        void close() {
+        }
+    }
+
+    /**
+     * Получатель результата слияния.
+     */
+    private interface Sink {
+        void accept(int hash, Object key, int count) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Записи сумки в памяти, упорядоченные по хэшу без знака.
+     */
+    private static final class SortedSource extends Source {
+        private final Object[] keys;
+        private final int[] counts;
+        private final int[] hashes;
+        private final int end;
+        private int pos;
+
+        private SortedSource(SortedSource all, int from, int to) {
+            keys = all.keys;
+            counts = all.counts;
+            hashes = all.hashes;
+            pos = from - 1;
+            end = to;
+        }
+
+        SortedSource(MyBag<?> bag) {
+            final int n = bag.uniqueSet().size();
+            final Object[] ks = new Object[n];
+            final int[] cs = new int[n];
+            final long[] order = new long[n];
+            bag.forEachEntry(new ObjIntConsumer<Object>() {
+                int i;
+
+                public void accept(Object o, int c) {
+                    ks[i] = o;
+                    cs[i] = c;
+                    //хэш без знака в старших битах, номер в младших
+                    order[i] = ((hashOf(o) & 0xFFFFFFFFL) << 31) | i;
+                    i++;
+                }
+            });
+            Arrays.sort(order);
+            keys = new Object[n];
+            counts = new int[n];
+            hashes = new int[n];
+            for (int j = 0; j < n; j++) {
+                int i = (int) (order[j] & Integer.MAX_VALUE);
+                keys[j] = ks[i];
+                counts[j] = cs[i];
+                hashes[j] = (int) (order[j] >>> 31);
+            }
+            pos = -1;
+            end = n;
+        }
+
+        /**
+         * Записи одной части, для еще не начатого источника.
+         * @param partition номер части.
+         * @return источник, разделяющий массивы с этим.
+         */
+        SortedSource partition(int partition) {
+            return new SortedSource(this, lowerBound(partition), lowerBound(partition + 1));
+        }
+
+        /**
+         * Первая запись, часть которой не меньше заданной.
+         */
+        private int lowerBound(int partition) {
+            int lo = 0;
+            int hi = end;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if ((hashes[mid] >>> (32 - PARTITION_BITS)) < partition)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+
+        boolean advance() {
+            if (++pos >= end)
+                return false;
+            hash = hashes[pos];
+            key = keys[pos];
+            count = counts[pos];
+            return true;
+        }
+    }
+
+    /**
+     * Последовательное чтение прогона, начиная с заданного блока.
+     */
+    private final class RunReader extends Source {
+        private final Run run;
+        private final DataInputStream in;
+        private int index;
+        private int prev;
+
+        RunReader(Run run, int block, int bufferSize) throws IOException {
+            this.run = run;
+            FileInputStream file = new FileInputStream(run.file);
+            try {
+                file.getChannel().position(run.blockOffsets[block]);
+            }
+            catch (IOException e) {
+                file.close();
+                throw e;
+            }
+            in = new DataInputStream(new BufferedInputStream(file, bufferSize));
+            index = block * INDEX_INTERVAL;
+        }
+
+        boolean advance() throws IOException {
+            if (index == run.records)
+                return false;
+            //в начале блока хэш записан целиком
+            if (index % INDEX_INTERVAL == 0)
+                prev = 0;
+            hash = prev + readVarInt(in);
+            count = readVarInt(in);
+            key = codec.read(in);
+            prev = hash;
+            index++;
+            return true;
+        }
+
+        @Override
+        void close() {
+            try {
+                in.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Запись прогона одной части.
+     */
+    private final class RunWriter {
+        private final File file;
+        private final CountingStream counter;
+        private final DataOutputStream out;
+        private int records;
+        private int prev;
+        private int[] blockHashes = new int[16];
+        private long[] blockOffsets = new long[16];
+
+        RunWriter(int partition) throws IOException {
+            file = File.createTempFile("run-p" + partition + "-", ".bin", directory);
+            counter = new CountingStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            out = new DataOutputStream(counter);
+        }
+
+        @SuppressWarnings("unchecked")
+        void write(int hash, Object key, int count) throws IOException {
+            if (records % INDEX_INTERVAL == 0) {
+                int block = records / INDEX_INTERVAL;
+                if (block == blockHashes.length) {
+                    blockHashes = Arrays.copyOf(blockHashes, block * 2);
+                    blockOffsets = Arrays.copyOf(blockOffsets, block * 2);
+                }
+                blockHashes[block] = hash;
+                blockOffsets[block] = counter.written;
+                prev = 0;
+            }
+            writeVarInt(out, hash - prev);
+            writeVarInt(out, count);
+            codec.write(out, (T) key);
+            prev = hash;
+            records++;
+        }
+
+        Run finish() throws IOException {
+            out.close();
+            int blocks = (records + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            return new Run(file, records, Arrays.copyOf(blockHashes, blocks), Arrays.copyOf(blockOffsets, blocks));
+        }
+
+        void abort() {
+            try {
+                out.close();
+            }
+            catch (IOException ignored) {
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * Поток, считающий записанные байты, для смещений блоков.
+     */
+    private static final class CountingStream extends FilterOutputStream {
+        long written;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written += len;
+        }
+    }
+
+    /**
+     * Формат элементов.
+     */
+    private final Codec<T> codec;
+
+    /**
+     * Количество различных элементов в памяти, при котором они сбрасываются на диск.
+     */
+    private final int maxEntries;
+
+    /**
+     * Каталог файлов этой сумки.
+     */
+    private final File directory;
+
+    /**
+     * Поток сброса и слияния прогонов.
+     */
+    private final ExecutorService spiller;
+
+    /**
+     * Потоки слияния для итераторов.
+     */
+    private final ExecutorService readers;
+
+    /**
+     * Элементы, накапливаемые в памяти.
+     */
+    private MyBag<T> memory;
+
+    /**
+     * Кратность <code>null</code>, он не сбрасывается на диск.
+     */
+    private int nullCount;
+
+    /**
+     * Общее количество копий.
+     */
+    private long total;
+
+    /**
+     * Счетчик изменений для итераторов.
+     */
+    private int modCount;
+
+    /**
+     * Незаконченный сброс или <code>null</code>.
+     */
+    private Future<?> pending;
+
+    /**
+     * Монитор для {@link SpillingBag#runs}, {@link SpillingBag#spilling}
+     * и счетчиков читателей прогонов, общих с фоновыми потоками.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Прогоны каждой части, от старых к новым.
+     */
+    private final List<List<Run>> runs = new ArrayList<List<Run>>();
+
+    /**
+     * Сумка, которую сейчас сбрасывает фоновый поток, или <code>null</code>.
+     * Оба потока только читают ее.
+     */
+    private MyBag<T> spilling;
+
+    /**
+     * Потоки слияния итераторов, которые могут быть еще не закончены.
+     */
+    private final List<Future<?>> producers = new ArrayList<Future<?>>();
+
+    private boolean closed;
+
+    /**
+     * Конструктор, файлы создаются во временном каталоге системы.
+     * @param codec формат элементов.
+     * @param maxEntries количество различных элементов в памяти.
+     * @throws IOException не удалось создать каталог.
+     */
+    public SpillingBag(Codec<T> codec, int maxEntries) throws IOException {
+        this(codec, maxEntries, new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * Конструктор.
+     * @param codec формат элементов.
+     * @param maxEntries количество различных элементов в памяти, при
+     *                   превышении которого они сбрасываются на диск.
+     * @param parent каталог, в котором создается каталог файлов сумки.
+     * @throws IOException не удалось создать каталог.
+     * @throws IllegalArgumentException если <code>maxEntries < 1</code>.
+     */
+    public SpillingBag(Codec<T> codec, int maxEntries, File parent) throws IOException {
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("Illegal max entries: " + maxEntries);
+        this.codec = codec;
+        this.maxEntries = maxEntries;
+        directory = Files.createTempDirectory(parent.toPath(), "spillingbag").toFile();
+        memory = MyBag.withExpectedSize(maxEntries);
+        for (int p = 0; p < PARTITIONS; p++)
+            runs.add(new ArrayList<Run>());
+        spiller = Executors.newSingleThreadExecutor(daemonThreads("SpillingBag-spill"));
+        readers = Executors.newCachedThreadPool(daemonThreads("SpillingBag-read"));
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Перемешанный хэш элемента, по которому упорядочены прогоны.
+     */
+    private static int hashOf(Object o) {
+        return MyBag.spread(o.hashCode());
+    }
+
+    /**
+     * Записывает число без знака по 7 бит в байте.
+     */
+    static void writeVarInt(DataOutput out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    /**
+     * Читает число, записанное {@link SpillingBag#writeVarInt(DataOutput, int)}.
+     */
+    static int readVarInt(DataInput in) throws IOException {
+        int res = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            res |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return res;
+        }
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("SpillingBag is closed!");
+    }
+
+    /**
+     * Добавляет объект с кратностью 1.
+     * @param o добавляемый объект.
+     * @return всегда <code>true</code>.
+     */
+    public boolean add(T o) {
+        return add(o, 1);
+    }
+
+    /**
+     * Добавляет несколько копий объекта. Если в памяти набралось
+     * <code>maxEntries</code> различных элементов, они передаются на сброс
+     * фоновому потоку; если предыдущий сброс еще не закончен, метод ждет его.
+     * @param o добавляемый объект.
+     * @param n количество копий, если <code>n < 1</code>, объект не добавляется.
+     * @return <code>true</code>, если объект был добавлен, иначе <code>false</code>.
+     * @throws UncheckedIOException ошибка записи прогона.
+     */
+    public boolean add(T o, int n) {
+        checkOpen();
+        if (n < 1)
+            return false;
+        if (o == null)
+            nullCount += n;
+        else
+            memory.add(o, n);
+        total += n;
+        modCount++;
+        if (memory.uniqueSet().size() >= maxEntries)
+            spill();
+        return true;
+    }
+
+    /**
+     * Передает элементы из памяти фоновому потоку для сброса на диск.
+     */
+    private void spill() {
+        awaitSpill();
+        if (memory.isEmpty())
+            return;
+        final MyBag<T> full = memory;
+        synchronized (lock) {
+            spilling = full;
+        }
+        memory = MyBag.withExpectedSize(maxEntries);
+        pending = spiller.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                List<Run> written = writeRuns(full);
+                //прогоны появляются вместе с исчезновением сумки, чтобы
+                //читатели не посчитали ее дважды
+                synchronized (lock) {
+                    for (Run run : written)
+                        runs.get(partitionOf(run)).add(run);
+                    spilling = null;
+                }
+                for (int p = 0; p < PARTITIONS; p++)
+                    mergeIfNeeded(p);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Ждет окончания сброса. Если сброс не удался, несброшенные элементы
+     * возвращаются в память.
+     * @throws UncheckedIOException если сброс завершился ошибкой.
+     */
+    private void awaitSpill() {
+        if (pending == null)
+            return;
+        Future<?> f = pending;
+        pending = null;
+        try {
+            f.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while spilling!", e);
+        }
+        catch (ExecutionException e) {
+            MyBag<T> failed;
+            synchronized (lock) {
+                failed = spilling;
+                spilling = null;
+            }
+            if (failed != null)
+                memory.addAll(failed);
+            if (e.getCause() instanceof IOException)
+                throw new UncheckedIOException((IOException) e.getCause());
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Сбрасывает на диск все элементы из памяти и ждет окончания сброса и
+     * слияния прогонов.
+     * @throws UncheckedIOException ошибка записи прогона.
+     */
+    public void flush() {
+        checkOpen();
+        spill();
+        awaitSpill();
+    }
+
+    /**
+     * Пишет сумку в прогоны по частям. Вызывается в фоновом потоке.
+     * @return прогоны, по одному на непустую часть.
+     */
+    private List<Run> writeRuns(MyBag<T> bag) throws IOException {
+        SortedSource source = new SortedSource(bag);
+        List<Run> written = new ArrayList<Run>();
+        RunWriter writer = null;
+        int partition = -1;
+        boolean ok = false;
+        try {
+            while (source.advance()) {
+                int p = source.hash >>> (32 - PARTITION_BITS);
+                if (p != partition) {
+                    if (writer != null)
+                        written.add(writer.finish());
+                    partition = p;
+                    writer = new RunWriter(p);
+                }
+                writer.write(source.hash, source.key, source.count);
+            }
+            if (writer != null)
+                written.add(writer.finish());
+            ok = true;
+            return written;
+        }
+        finally {
+            if (!ok) {
+                if (writer != null)
+                    writer.abort();
+                for (Run run : written)
+                    run.file.delete();
+            }
+        }
+    }
+
+    /**
+     * Сливает прогоны части в один, если их набралось
+     * {@link SpillingBag#MERGE_FAN_IN}. Вызывается в фоновом потоке, который
+     * единственный меняет списки прогонов, поэтому снимок списка остается
+     * актуальным до замены.
+     */
+    private void mergeIfNeeded(int partition) throws IOException {
+        List<Run> merged;
+        synchronized (lock) {
+            if (runs.get(partition).size() < MERGE_FAN_IN)
+                return;
+            merged = new ArrayList<Run>(runs.get(partition));
+        }
+        List<Source> sources = new ArrayList<Source>();
+        final RunWriter writer = new RunWriter(partition);
+        Run result;
+        try {
+            for (Run run : merged)
+                sources.add(new RunReader(run, 0, 1 << 16));
+            merge(sources, new Sink() {
+                public void accept(int hash, Object key, int count) throws IOException {
+                    writer.write(hash, key, count);
+                }
+            });
+            result = writer.finish();
+        }
+        catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+        catch (InterruptedException e) {
+            writer.abort();
+            return;
+        }
+        finally {
+            for (Source s : sources)
+                s.close();
+        }
+        synchronized (lock) {
+            List<Run> list = runs.get(partition);
+            list.subList(0, merged.size()).clear();
+            list.add(0, result);
+            for (Run run : merged)
+                retire(run);
+        }
+    }
+
+    /**
+     * Отмечает прогоны как читаемые. Вызывается под монитором
+     * {@link SpillingBag#lock}.
+     */
+    private static void acquire(List<Run> list) {
+        for (Run run : list)
+            run.readers++;
+    }
+
+    /**
+     * Снимает отметку чтения и удаляет файлы выведенных прогонов, которые
+     * больше никто не читает.
+     */
+    private void release(List<Run> list) {
+        synchronized (lock) {
+            for (Run run : list)
+                if (--run.readers == 0 && run.retired)
+                    run.file.delete();
+        }
+    }
+
+    /**
+     * Выводит прогон из сумки: файл удаляется сразу или после последнего
+     * читателя. Вызывается под монитором {@link SpillingBag#lock}.
+     */
+    private static void retire(Run run) {
+        run.retired = true;
+        if (run.readers == 0)
+            run.file.delete();
+    }
+
+    /**
+     * Слияние источников, упорядоченных по хэшу без знака. Записи с одним
+     * хэшем собираются в группу, в которой кратности равных элементов
+     * складываются.
+     * @param sources источники, еще не начатые.
+     * @param sink получатель записей в порядке хэшей.
+     */
+    private static void merge(List<Source> sources, Sink sink) throws IOException, InterruptedException {
+        PriorityQueue<Source> heap = new PriorityQueue<Source>(Math.max(sources.size(), 1), new Comparator<Source>() {
+            public int compare(Source a, Source b) {
+                return Integer.compareUnsigned(a.hash, b.hash);
+            }
+        });
+        for (Source s : sources)
+            if (s.advance())
+                heap.add(s);
+        List<Object> groupKeys = new ArrayList<Object>();
+        int[] groupCounts = new int[4];
+        while (!heap.isEmpty()) {
+            int h = heap.peek().hash;
+            groupKeys.clear();
+            while (!heap.isEmpty() && heap.peek().hash == h) {
+                Source s = heap.poll();
+                boolean more;
+                do {
+                    int i = groupKeys.indexOf(s.key);
+                    if (i < 0) {
+                        i = groupKeys.size();
+                        groupKeys.add(s.key);
+                        if (i == groupCounts.length)
+                            groupCounts = Arrays.copyOf(groupCounts, i * 2);
+                        groupCounts[i] = 0;
+                    }
+                    groupCounts[i] += s.count;
+                    more = s.advance();
+                } while (more && s.hash == h);
+                if (more)
+                    heap.add(s);
+            }
+            for (int i = 0; i < groupKeys.size(); i++)
+                sink.accept(h, groupKeys.get(i), groupCounts[i]);
+        }
+    }
+
+    /**
+     * Кратность объекта: сумма по памяти, сумке, которая сейчас
+     * сбрасывается, и по одному блоку каждого прогона части объекта.
+     * @param o объект.
+     * @return кратность или 0, если объекта нет в сумке.
+     * @throws UncheckedIOException ошибка чтения прогона.
+     */
+    public int getCount(Object o) {
+        checkOpen();
+        if (o == null)
+            return nullCount;
+        int h = hashOf(o);
+        MyBag<T> flushing;
+        List<Run> snapshot;
+        synchronized (lock) {
+            flushing = spilling;
+            snapshot = new ArrayList<Run>(runs.get(h >>> (32 - PARTITION_BITS)));
+            acquire(snapshot);
+        }
+        try {
+            long res = memory.getCount(o);
+            if (flushing != null)
+                res += flushing.getCount(o);
+            for (Run run : snapshot)
+                res += lookup(run, h, o);
+            return (int) Math.min(res, Integer.MAX_VALUE);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            release(snapshot);
+        }
+    }
+
+    /**
+     * Кратность объекта в прогоне.
+     */
+    private int lookup(Run run, int h, Object o) throws IOException {
+        RunReader reader = new RunReader(run, run.blockFor(h), 1 << 12);
+        try {
+            while (reader.advance()) {
+                int c = Integer.compareUnsigned(reader.hash, h);
+                if (c > 0)
+                    break;
+                if (c == 0 && o.equals(reader.key))
+                    return reader.count;
+            }
+            return 0;
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Итератор по записям: пачки из очереди потока слияния.
+     */
+    private final class EntryIterator implements Iterator<MyBag.Entry<T>> {
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_BATCHES);
+        private final int expectedModCount = modCount;
+        private final int nulls = nullCount;
+        private boolean nullsPending = nulls > 0;
+        private MyBag.Entry<T>[] batch;
+        private int pos;
+        private boolean done;
+        private Future<?> producer;
+
+        @SuppressWarnings("unchecked")
+        public boolean hasNext() {
+            //после изменения поток слияния отменен и не положит признак конца
+            if (!done)
+                checkForComodification();
+            if (nullsPending)
+                return true;
+            while (!done && (batch == null || pos == batch.length)) {
+                Object next;
+                try {
+                    next = queue.poll(ABANDON_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        if (!producer.isDone())
+                            continue;
+                        next = queue.poll();
+                        if (next == null)
+                            throw new IllegalStateException("Iteration is cancelled!");
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while reading!", e);
+                }
+                if (next == END)
+                    done = true;
+                else if (next instanceof IOException)
+                    throw new UncheckedIOException((IOException) next);
+                else {
+                    batch = (MyBag.Entry<T>[]) next;
+                    pos = 0;
+                }
+            }
+            return !done;
+        }
+
+        public MyBag.Entry<T> next() {
+            checkForComodification();
+            if (!hasNext())
+                throw new NoSuchElementException();
+            if (nullsPending) {
+                nullsPending = false;
+                return new MyBag.Entry<T>(null, nulls);
+            }
+            return batch[pos++];
+        }
+
+        /**
+         * Останавливает поток слияния, если сумка изменилась.
+         * @throws ConcurrentModificationException сумка изменилась.
+         */
+        void checkForComodification() {
+            if (modCount != expectedModCount) {
+                producer.cancel(true);
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    /**
+     * Итератор по различным элементам вместе с кратностями. Берет снимок
+     * сумки: данные в памяти упорядочиваются сразу, а слияние с прогонами
+     * выполняет фоновый поток, передающий записи пачками. Поток слияния
+     * останавливается, когда итератор обнаружит изменение сумки, сумка
+     * будет очищена или итератор станет недостижим; до этого он держит
+     * файлы еще не прочитанных частей.
+     * @return итератор по записям, только для чтения.
+     */
+    public Iterator<MyBag.Entry<T>> entryIterator() {
+        return openEntries();
+    }
+
+    private EntryIterator openEntries() {
+        checkOpen();
+        final List<SortedSource> sources = new ArrayList<SortedSource>();
+        sources.add(new SortedSource(memory));
+        final List<Run> files = new ArrayList<Run>();
+        synchronized (lock) {
+            if (spilling != null)
+                sources.add(new SortedSource(spilling));
+            for (List<Run> list : runs)
+                files.addAll(list);
+            acquire(files);
+        }
+        EntryIterator it = new EntryIterator();
+        final BlockingQueue<Object> queue = it.queue;
+        //поток слияния не должен удерживать итератор от сборки мусора
+        final Reference<Object> owner = new WeakReference<Object>(it);
+        final AtomicBoolean started = new AtomicBoolean();
+        FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            public void run() {
+                if (started.compareAndSet(false, true))
+                    produce(sources, files, queue, owner);
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                //задача, отмененная до запуска, не освободит прогоны сама
+                if (started.compareAndSet(false, true))
+                    release(files);
+            }
+        };
+        try {
+            readers.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            task.cancel(false);
+            throw e;
+        }
+        it.producer = task;
+        Iterator<Future<?>> active = producers.iterator();
+        while (active.hasNext())
+            if (active.next().isDone())
+                active.remove();
+        producers.add(it.producer);
+        return it;
+    }
+
+    /**
+     * Кладет пачку в очередь итератора, пока итератор достижим.
+     * @throws InterruptedException поток прерван или итератор брошен.
+     */
+    private static void put(BlockingQueue<Object> queue, Object batch, Reference<?> owner)
+            throws InterruptedException {
+        while (!queue.offer(batch, ABANDON_CHECK_MILLIS, TimeUnit.MILLISECONDS))
+            if (owner.get() == null)
+                throw new InterruptedException("Iterator is abandoned!");
+    }
+
+    /**
+     * Слияние для итератора, выполняется в фоновом потоке. Прогоны каждой
+     * части освобождаются сразу после ее обхода.
+     */
+    private void produce(List<SortedSource> sources, List<Run> files, final BlockingQueue<Object> queue,
+                         final Reference<?> owner) {
+        //прогоны открываются по частям: у разных частей хэши не пересекаются
+        int from = 0;
+        try {
+            for (int p = 0; p < PARTITIONS; p++) {
+                List<Source> part = new ArrayList<Source>();
+                int to = from;
+                while (to < files.size() && partitionOf(files.get(to)) == p)
+                    to++;
+                try {
+                    for (Run run : files.subList(from, to))
+                        part.add(new RunReader(run, 0, 1 << 16));
+                    for (SortedSource s : sources)
+                        part.add(s.partition(p));
+                    final Object[][] buffer = {new MyBag.Entry<?>[BATCH_SIZE]};
+                    final int[] size = {0};
+                    merge(part, new Sink() {
+                        public void accept(int hash, Object key, int count) throws InterruptedException {
+                            buffer[0][size[0]++] = new MyBag.Entry<Object>(key, count);
+                            if (size[0] == BATCH_SIZE) {
+                                put(queue, buffer[0], owner);
+                                buffer[0] = new MyBag.Entry<?>[BATCH_SIZE];
+                                size[0] = 0;
+                            }
+                        }
+                    });
+                    if (size[0] > 0)
+                        put(queue, Arrays.copyOf(buffer[0], size[0]), owner);
+                }
+                finally {
+                    for (Source s : part)
+                        s.close();
+                    release(files.subList(from, to));
+                    from = to;
+                }
+            }
+            put(queue, END, owner);
+        }
+        catch (IOException e) {
+            try {
+                put(queue, e, owner);
+            }
+            catch (InterruptedException ignored) {
+            }
+        }
+        catch (InterruptedException ignored) {
+            //итератор брошен, сумка очищена или закрыта
+        }
+        finally {
+            release(files.subList(from, files.size()));
+        }
+    }
+
+    /**
+     * Часть прогона по хэшу первой записи.
+     */
+    private static int partitionOf(Run run) {
+        return run.blockHashes[0] >>> (32 - PARTITION_BITS);
+    }
+
+    /**
+     * Итератор по копиям.
+     * @return итератор, только для чтения.
+     * @see SpillingBag#entryIterator()
+     */
+    public Iterator<T> iterator() {
+        final EntryIterator entries = openEntries();
+        return new Iterator<T>() {
+            private T current;
+            private int left;
+
+            public boolean hasNext() {
+                return left > 0 || entries.hasNext();
+            }
+
+            public T next() {
+                entries.checkForComodification();
+                if (left == 0) {
+                    MyBag.Entry<T> e = entries.next();
+                    current = e.getElement();
+                    left = e.getCount();
+                }
+                left--;
+                return current;
+            }
+        };
+    }
+
+    /**
+     * Множество различных элементов. Проверка наличия -- через
+     * {@link SpillingBag#getCount(Object)}, размер и обход -- через слияние
+     * прогонов, за O(n).
+     * @return множество, только для чтения.
+     */
+    public Set<T> uniqueSet() {
+        return new AbstractSet<T>() {
+            public Iterator<T> iterator() {
+                final Iterator<MyBag.Entry<T>> entries = entryIterator();
+                return new Iterator<T>() {
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    public T next() {
+                        return entries.next().getElement();
+                    }
+                };
+            }
+
+            public int size() {
+                int res = 0;
+                Iterator<MyBag.Entry<T>> it = entryIterator();
+                while (it.hasNext()) {
+                    it.next();
+                    res++;
+                }
+                return res;
+            }
+
+            public boolean contains(Object o) {
+                return SpillingBag.this.contains(o);
+            }
+        };
+    }
+
+    /**
+     * @param o проверяемый объект.
+     * @return <code>true</code>, если объект есть в сумке.
+     */
+    @Override
+    public boolean contains(Object o) {
+        return getCount(o) > 0;
+    }
+
+    /**
+     * @return количество копий, ограниченное <code>Integer.MAX_VALUE</code>.
+     */
+    public int size() {
+        return (int) Math.min(total, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return точное количество копий.
+     */
+    public long totalCount() {
+        return total;
+    }
+
+    /**
+     * @return количество прогонов на диске.
+     */
+    public int getRunCount() {
+        synchronized (lock) {
+            int res = 0;
+            for (List<Run> list : runs)
+                res += list.size();
+            return res;
+        }
+    }
+
+    /**
+     * Проверяет, содержатся ли в сумке все элементы коллекции, учитывая кратность.
+     * @param collection коллекция.
+     * @return <code>true</code>, если содержатся, иначе <code>false</code>.
+     */
+    public boolean containsAll(Collection<?> collection) {
+        if (collection == null || collection == this)
+            return true;
+        Bag<?> need = MyBag.countsOf(collection);
+        for (Object o : need.uniqueSet())
+            if (getCount(o) < need.getCount(o))
+                return false;
+        return true;
+    }
+
+    /**
+     * Очищает сумку и удаляет прогоны.
+     */
+    @Override
+    public void clear() {
+        checkOpen();
+        awaitSpill();
+        //итераторы все равно недействительны, их потоки больше не нужны
+        for (Future<?> f : producers)
+            f.cancel(true);
+        producers.clear();
+        synchronized (lock) {
+            for (List<Run> list : runs) {
+                for (Run run : list)
+                    retire(run);
+                list.clear();
+            }
+        }
+        memory.clear();
+        nullCount = 0;
+        total = 0;
+        modCount++;
+    }
+
+    /**
+     * Останавливает фоновые потоки и удаляет файлы сумки.
+     */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        spiller.shutdownNow();
+        readers.shutdownNow();
+        try {
+            spiller.awaitTermination(10, TimeUnit.SECONDS);
+            readers.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        directory.delete();
+    }
+
+    /**
+     * Не поддерживается: копии в прогонах не удаляются.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException("SpillingBag does not support removal!");
+    }
+
+    /**
+     * Не поддерживается: копии в прогонах не удаляются.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean remove(Object o, int n) {
+        throw new UnsupportedOperationException("SpillingBag does not support removal!");
+    }
+
+    /**
+     * Не поддерживается: копии в прогонах не удаляются.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean removeAll(Collection<?> collection) {
+        throw new UnsupportedOperationException("SpillingBag does not support removal!");
+    }
+
+    /**
+     * Не поддерживается: копии в прогонах не удаляются.
+     * @throws UnsupportedOperationException всегда.
+     */
+    public boolean retainAll(Collection<?> collection) {
+        throw new UnsupportedOperationException("SpillingBag does not support removal!");
+    }
+
+    /**
+     * @return размер сумки и количество прогонов, без обхода.
+     */
+    @Override
+    public String toString() {
+        return "SpillingBag[size=" + total + ", inMemory=" + memory.uniqueSet().size() + ", runs=" + getRunCount() + "]";
+    }
+}
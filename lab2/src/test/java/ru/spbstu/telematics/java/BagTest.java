@@ -6,8 +6,23 @@ import junit.framework.TestSuite;
 import org.apache.commons.collections4.Bag;
 import org.apache.commons.collections4.bag.HashBag;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Predicate;
 
 /**
  * Тесты для установления соответсвия поведения класса {@link MyBag} и
@@ -39,7 +54,7 @@ public class BagTest
         return new TestSuite( BagTest.class );
     }
 
-    public void runTest() {
+    public void runTest() throws IOException {
         System.out.println("Starting tests.");
         testAdd();
         System.out.println("Add tests are passed correctly.");
@@ -47,6 +62,38 @@ public class BagTest
         System.out.println("Remove tests are passed correctly.");
         testCollections();
         System.out.println("Collections tests are passed correctly.");
+        testStorage();
+        System.out.println("Storage tests are passed correctly.");
+        testResize();
+        System.out.println("Resize tests are passed correctly.");
+        testPrimitiveBags();
+        System.out.println("Primitive bags tests are passed correctly.");
+        testConcurrentBag();
+        System.out.println("Concurrent bag tests are passed correctly.");
+        testBulkOperations();
+        System.out.println("Bulk operations tests are passed correctly.");
+        testEntries();
+        System.out.println("Entries tests are passed correctly.");
+        testFrequencyIndex();
+        System.out.println("Frequency index tests are passed correctly.");
+        testSketchBag();
+        System.out.println("Sketch bag tests are passed correctly.");
+        testHeavyHittersBag();
+        System.out.println("Heavy hitters bag tests are passed correctly.");
+        testSortedBag();
+        System.out.println("Sorted bag tests are passed correctly.");
+        testPersistentBag();
+        System.out.println("Persistent bag tests are passed correctly.");
+        testSetOperations();
+        System.out.println("Set operations tests are passed correctly.");
+        testUniqueSetView();
+        System.out.println("Unique set view tests are passed correctly.");
+        testCollisions();
+        System.out.println("Collisions tests are passed correctly.");
+        testHashCode();
+        System.out.println("Hash code tests are passed correctly.");
+        testSpillingBag();
+        System.out.println("Spilling bag tests are passed correctly.");
         System.out.println("All tests are passed!");
     }
 
@@ -199,4 +246,1156 @@ public class BagTest
                          bag2.containsAll(Arrays.asList(ar)));
         }
     }
+
+    /**
+     * Тесты для хранения большого количества элементов: рост таблицы,
+     * удаление с повторным использованием ячеек и удаление через итератор.
+     * Проверяет методы:
+     * <ol>
+     *     <li>{@link MyBag#add(Object, int)}</li>
+     *     <li>{@link MyBag#remove(Object, int)}</li>
+     *     <li>{@link MyBag#size()}</li>
+     *     <li>{@link MyBag#iterator()}</li>
+     * </ol>
+     */
+    public void testStorage() {
+        HashBag<Integer> bag1 = new HashBag<Integer>();
+        MyBag<Integer> bag2 = new MyBag<Integer>();
+        Random r = new Random(35);
+        for (int i = 0; i < 20000; i++) {
+            Integer val = (i % 1000 == 0) ? null : r.nextInt(5000) * 64;
+            int n = r.nextInt(4) - 1;
+            if (r.nextInt(3) == 0) {
+                bag1.remove(val, n);
+                bag2.remove(val, n);
+            }
+            else {
+                bag1.add(val, n);
+                bag2.add(val, n);
+            }
+        }
+        assertTrue(bagsAreEqual(bag1, bag2));
+        assertEquals(bag1.size(), bag2.size());
+        int hash = 0;
+        for (Integer val: bag1.uniqueSet())
+            hash += ((val == null) ? 0 : val.hashCode()) ^ bag1.getCount(val);
+        assertEquals(hash, bag2.hashCode());
+        int copies = 0;
+        for (Integer val: bag2)
+            copies++;
+        assertEquals(bag2.size(), copies);
+
+        Iterator<Integer> it = bag2.iterator();
+        while (it.hasNext()) {
+            Integer val = it.next();
+            if (val == null || val % 3 == 0) {
+                it.remove();
+                bag1.remove(val, 1);
+            }
+        }
+        assertTrue(bagsAreEqual(bag1, bag2));
+        assertEquals(bag1.size(), bag2.size());
+    }
+
+    /**
+     * Тесты для роста таблицы: постепенный перенос элементов в новую
+     * таблицу и начальный размер таблицы. Проверяет методы:
+     * <ol>
+     *     <li>{@link MyBag#MyBag(int, float)}</li>
+     *     <li>{@link MyBag#withExpectedSize(int)}</li>
+     *     <li>{@link MyBag#getCount(Object)}</li>
+     *     <li>{@link MyBag#iterator()}</li>
+     * </ol>
+     */
+    public void testResize() {
+        MyBag<Integer> presized = MyBag.withExpectedSize(1000);
+        int size = presized.keys.length;
+        for (int i = 0; i < 1000; i++)
+            presized.add(i, i + 1);
+        assertEquals(size, presized.keys.length);
+        assertNull(presized.oldKeys);
+
+        HashBag<Integer> bag1 = new HashBag<Integer>();
+        MyBag<Integer> bag2 = new MyBag<Integer>(0, 0.5f);
+        boolean sawMigration = false;
+        for (int i = 0; i < 5000; i++) {
+            bag1.add(i, i % 7 + 1);
+            bag2.add(i, i % 7 + 1);
+            if (i % 3 == 0) {
+                bag1.remove(i / 2);
+                bag2.remove(i / 2);
+            }
+            if (bag2.oldKeys != null) {
+                sawMigration = true;
+                //во время переноса элементы есть в обеих таблицах
+                assertEquals(bag1.getCount(i / 3), bag2.getCount(i / 3));
+                int copies = 0;
+                for (Integer val: bag2)
+                    copies++;
+                assertEquals(bag1.size(), copies);
+            }
+        }
+        assertTrue(sawMigration);
+        assertTrue(bagsAreEqual(bag1, bag2));
+        assertEquals(bag1.size(), bag2.size());
+        assertTrue(bag2.used <= bag2.keys.length / 2);
+    }
+
+    /**
+     * Тесты для сумок примитивных чисел и их представлений в виде
+     * <code>Bag</code>. Проверяет методы:
+     * <ol>
+     *     <li>{@link IntBag#add(int, int)}</li>
+     *     <li>{@link IntBag#remove(int, int)}</li>
+     *     <li>{@link IntBag#asBag()}</li>
+     *     <li>{@link LongBag#add(long, int)}</li>
+     *     <li>{@link LongBag#asBag()}</li>
+     * </ol>
+     */
+    public void testPrimitiveBags() {
+        HashBag<Integer> bag1 = new HashBag<Integer>();
+        IntBag bag2 = new IntBag();
+        Bag<Integer> view = bag2.asBag();
+        HashBag<Long> bag3 = new HashBag<Long>();
+        LongBag bag4 = new LongBag(10);
+        Random r = new Random(37);
+        for (int i = 0; i < 20000; i++) {
+            int val = r.nextInt(3000) - 1500;
+            long big = ((long) val << 40) + 7;
+            int n = r.nextInt(4) - 1;
+            if (r.nextInt(3) == 0) {
+                bag1.remove(val, n);
+                bag2.remove(val, n);
+                bag3.remove(big, n);
+                bag4.remove(big, n);
+            }
+            else {
+                bag1.add(val, n);
+                bag2.add(val, n);
+                bag3.add(big, n);
+                bag4.add(big, n);
+            }
+        }
+        assertTrue(bagsAreEqual(bag1, view));
+        assertTrue(bagsAreEqual(bag3, bag4.asBag()));
+        assertEquals(bag1.size(), bag2.size());
+        assertEquals(bag3.size(), bag4.size());
+        assertEquals(bag1.uniqueSet().size(), bag2.uniqueValues().length);
+        assertEquals(new MyBag<Integer>(view).hashCode(), view.hashCode());
+        assertEquals(new MyBag<Integer>(view), view);
+
+        int before = view.size();
+        int copies = 0;
+        Iterator<Integer> it = view.iterator();
+        while (it.hasNext()) {
+            Integer val = it.next();
+            copies++;
+            if (val % 2 == 0) {
+                it.remove();
+                bag1.remove(val, 1);
+            }
+        }
+        assertEquals(before, copies);
+        assertTrue(bagsAreEqual(bag1, view));
+        view.retainAll(Arrays.asList(1, 1, 3, 5, -1));
+        bag1.retainAll(Arrays.asList(1, 1, 3, 5, -1));
+        assertTrue(bagsAreEqual(bag1, view));
+        assertFalse(view.contains("1"));
+        assertEquals(0, view.getCount(1L));
+    }
+
+    /**
+     * Тесты для потокобезопасной сумки: совпадение с {@link HashBag} в одном
+     * потоке и точные кратности после одновременных добавлений и удалений
+     * из нескольких потоков. Проверяет методы:
+     * <ol>
+     *     <li>{@link ConcurrentMyBag#add(Object, int)}</li>
+     *     <li>{@link ConcurrentMyBag#remove(Object, int)}</li>
+     *     <li>{@link ConcurrentMyBag#uniqueSet()}</li>
+     * </ol>
+     */
+    public void testConcurrentBag() {
+        Integer[] toAdd = {1, 3, 3, 1, 3, 4, 6, 3, null, 1, -1, 4, 5, 2, 1};
+        HashBag<Integer> bag1 = new HashBag<Integer>();
+        ConcurrentMyBag<Integer> bag2 = new ConcurrentMyBag<Integer>();
+        initBags(bag1, bag2, toAdd);
+        Integer[] toRemove = {3, 1, 4, 7, null, null, -1, -1, -1, 5, 5};
+        int[] cards = {3, 0, 4, -4, 14341, 1, 4, 5};
+        for (int i = 0; i < toRemove.length; i++) {
+            bag1.remove(toRemove[i], cards[i % cards.length]);
+            bag2.remove(toRemove[i], cards[i % cards.length]);
+            assertTrue(bagsAreEqual(bag1, bag2));
+        }
+        assertEquals(bag1.size(), bag2.size());
+        int copies = 0;
+        for (Integer val: bag2)
+            copies++;
+        assertEquals(bag2.size(), copies);
+
+        final ConcurrentMyBag<Integer> shared = new ConcurrentMyBag<Integer>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    Random r = new Random(seed);
+                    for (int i = 0; i < 20000; i++) {
+                        int val = r.nextInt(8);
+                        //каждая копия, которую поток удаляет, была им добавлена
+                        shared.add(val, 3);
+                        shared.remove(val, 1);
+                        if (val == 0)
+                            shared.remove(val, 2);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        try {
+            for (Thread t: threads)
+                t.join();
+        }
+        catch (InterruptedException e) {
+            fail();
+        }
+        int expected = 0;
+        for (int t = 0; t < threads.length; t++) {
+            Random r = new Random(t);
+            for (int i = 0; i < 20000; i++)
+                if (r.nextInt(8) != 0)
+                    expected += 2;
+        }
+        int sum = 0;
+        for (Integer val: shared.uniqueSet())
+            sum += shared.getCount(val);
+        assertEquals(expected, sum);
+        assertEquals(expected, shared.size());
+        assertEquals(0, shared.getCount(0));
+        assertFalse(shared.uniqueSet().contains(0));
+    }
+
+    /**
+     * Тесты для операций с коллекциями большого размера и с сумками в
+     * качестве аргумента. Проверяет методы:
+     * <ol>
+     *     <li>{@link MyBag#removeAll(Collection)}</li>
+     *     <li>{@link MyBag#retainAll(Collection)}</li>
+     *     <li>{@link MyBag#containsAll(Collection)}</li>
+     * </ol>
+     */
+    public void testBulkOperations() {
+        List<Integer> list = new ArrayList<Integer>();
+        Random r = new Random(39);
+        for (int i = 0; i < 100000; i++)
+            list.add(r.nextInt(50000));
+        HashBag<Integer> bag1 = new HashBag<Integer>();
+        MyBag<Integer> bag2 = new MyBag<Integer>();
+        for (int i = 0; i < 100000; i++) {
+            bag1.add(i % 70000);
+            bag2.add(i % 70000);
+        }
+        //HashBag при retainAll удаляет все копии, если в аргументе их больше,
+        //чем в сумке, поэтому ожидаемый результат -- минимум кратностей
+        HashBag<Integer> inList = new HashBag<Integer>(list);
+        HashBag<Integer> expected = new HashBag<Integer>();
+        for (Integer val: bag1.uniqueSet())
+            expected.add(val, Math.min(bag1.getCount(val), inList.getCount(val)));
+        long m = System.currentTimeMillis();
+        assertTrue(bag2.retainAll(list));
+        assertTrue(bagsAreEqual(expected, bag2));
+        assertFalse(bag2.containsAll(list));
+        assertTrue(bag2.removeAll(list.subList(0, 50000)));
+        expected.removeAll(list.subList(0, 50000));
+        //квадратичная реализация работала минуты
+        assertTrue(System.currentTimeMillis() - m < 10000);
+        assertTrue(bagsAreEqual(expected, bag2));
+        assertEquals(expected.size(), bag2.size());
+
+        Integer[] initList = {1, 1, 1, 2, 2, 3, 4, null};
+        Bag<Integer> arg = new MyBag<Integer>(Arrays.asList(1, 1, 2, 4, null, null));
+        initBags(bag1, bag2, initList);
+        assertFalse(bag2.containsAll(arg));
+        arg.remove(null, 1);
+        assertTrue(bag2.containsAll(arg));
+        bag2.retainAll(arg);
+        assertTrue(bagsAreEqual(new HashBag<Integer>(Arrays.asList(1, 1, 2, 4, null)), bag2));
+        initBags(bag1, bag2, initList);
+        bag1.removeAll(arg);
+        bag2.removeAll(arg);
+        assertTrue(bagsAreEqual(bag1, bag2));
+        assertFalse(bag2.retainAll(bag2));
+        assertTrue(bag2.containsAll(bag2));
+        assertTrue(bag2.removeAll(bag2));
+        assertTrue(bag2.isEmpty());
+    }
+
+    /**
+     * Тесты для обхода записей сумки и разделяемого итератора. Проверяет методы:
+     * <ol>
+     *     <li>{@link MyBag#forEachEntry(ObjIntConsumer)}</li>
+     *     <li>{@link MyBag#entryIterator()}</li>
+     *     <li>{@link MyBag#spliterator()}</li>
+     * </ol>
+     */
+    public void testEntries() {
+        final HashBag<Integer> bag1 = new HashBag<Integer>();
+        MyBag<Integer> bag2 = new MyBag<Integer>();
+        for (int i = 0; i < 3000; i++) {
+            bag1.add(i % 1000, i % 7 + 1);
+            bag2.add(i % 1000, i % 7 + 1);
+        }
+        bag2.add(null, 1000000);
+        bag1.add(null, 1000000);
+        final int[] seen = new int[2];
+        bag2.forEachEntry(new ObjIntConsumer<Integer>() {
+            public void accept(Integer val, int count) {
+                assertEquals(bag1.getCount(val), count);
+                seen[0]++;
+                seen[1] += count;
+            }
+        });
+        assertEquals(bag1.uniqueSet().size(), seen[0]);
+        assertEquals(bag1.size(), seen[1]);
+
+        Spliterator<Integer> s = bag2.spliterator();
+        assertEquals(bag2.size(), s.estimateSize());
+        assertTrue(s.hasCharacteristics(Spliterator.SUBSIZED));
+        s.tryAdvance(new Consumer<Integer>() {
+            public void accept(Integer val) {
+            }
+        });
+        Spliterator<Integer> half = s.trySplit();
+        assertEquals(bag2.size() - 1, s.estimateSize() + half.estimateSize());
+        long total = 0;
+        for (Spliterator<Integer> part : Arrays.asList(s, half)) {
+            final long[] n = new long[1];
+            long expected = part.estimateSize();
+            part.forEachRemaining(new Consumer<Integer>() {
+                public void accept(Integer val) {
+                    n[0]++;
+                }
+            });
+            assertEquals(expected, n[0]);
+            total += n[0];
+        }
+        assertEquals(bag2.size() - 1, total);
+        long nonNull = bag2.parallelStream().filter(new Predicate<Integer>() {
+            public boolean test(Integer val) {
+                return val != null;
+            }
+        }).count();
+        assertEquals(bag2.size() - 1000000, nonNull);
+
+        Iterator<MyBag.Entry<Integer>> it = bag2.entryIterator();
+        while (it.hasNext()) {
+            MyBag.Entry<Integer> e = it.next();
+            assertEquals(bag1.getCount(e.getElement()), e.getCount());
+            if (e.getElement() == null || e.getElement() % 2 == 0) {
+                it.remove();
+                bag1.remove(e.getElement());
+            }
+        }
+        assertTrue(bagsAreEqual(bag1, bag2));
+        assertEquals(bag1.size(), bag2.size());
+    }
+
+    /**
+     * Тесты для индекса частот: совпадение результатов с индексом и без него
+     * при случайных изменениях сумки. Проверяет методы:
+     * <ol>
+     *     <li>{@link MyBag#enableFrequencyIndex()}</li>
+     *     <li>{@link MyBag#topK(int)}</li>
+     *     <li>{@link MyBag#mostCommon()}</li>
+     *     <li>{@link MyBag#countAtLeast(int)}</li>
+     * </ol>
+     */
+    public void testFrequencyIndex() {
+        MyBag<Integer> plain = new MyBag<Integer>();
+        MyBag<Integer> indexed = new MyBag<Integer>();
+        Random r = new Random(41);
+        for (int i = 0; i < 500; i++) {
+            int val = r.nextInt(100);
+            plain.add(val, r.nextInt(5) + 1);
+            indexed.add(val, plain.getCount(val) - indexed.getCount(val));
+        }
+        indexed.enableFrequencyIndex();
+        assertTrue(indexed.hasFrequencyIndex());
+        for (int i = 0; i < 20000; i++) {
+            Integer val = (i % 97 == 0) ? null : r.nextInt(300);
+            int n = r.nextInt(4);
+            switch (r.nextInt(4)) {
+                case 0:
+                    plain.remove(val, n);
+                    indexed.remove(val, n);
+                    break;
+                case 1:
+                    if (r.nextInt(50) == 0) {
+                        plain.remove(val);
+                        indexed.remove(val);
+                    }
+                    break;
+                default:
+                    plain.add(val, n);
+                    indexed.add(val, n);
+            }
+            if (i % 1000 == 0) {
+                assertEquals(plain.countAtLeast(i % 7), indexed.countAtLeast(i % 7));
+                assertEquals(plain.mostCommon().getCount(), indexed.mostCommon().getCount());
+                assertEquals(plain.leastCommon().getCount(), indexed.leastCommon().getCount());
+                List<MyBag.Entry<Integer>> top1 = plain.topK(10);
+                List<MyBag.Entry<Integer>> top2 = indexed.topK(10);
+                assertEquals(top1.size(), top2.size());
+                for (int j = 0; j < top1.size(); j++) {
+                    assertEquals(top1.get(j).getCount(), top2.get(j).getCount());
+                    assertEquals(top2.get(j).getCount(), indexed.getCount(top2.get(j).getElement()));
+                }
+            }
+        }
+        Iterator<Integer> it = indexed.iterator();
+        while (it.hasNext()) {
+            Integer val = it.next();
+            if (val == null || val % 2 == 0) {
+                it.remove();
+                plain.remove(val, 1);
+            }
+        }
+        indexed.retainAll(Arrays.asList(1, 1, 1, 3, 5, 5));
+        plain.retainAll(Arrays.asList(1, 1, 1, 3, 5, 5));
+        assertEquals(plain.countAtLeast(1), indexed.countAtLeast(1));
+        assertEquals(plain.countAtLeast(2), indexed.countAtLeast(2));
+        assertEquals(plain.mostCommon().getCount(), indexed.mostCommon().getCount());
+        indexed.clear();
+        assertNull(indexed.mostCommon());
+        assertEquals(0, indexed.countAtLeast(0));
+    }
+
+    /**
+     * Тесты для приближенной сумки: оценки не меньше точных кратностей и
+     * укладываются в границу ошибки, оценка количества различных элементов
+     * близка к точной, объединение скетчей. Проверяет методы:
+     * <ol>
+     *     <li>{@link SketchBag#getCount(Object)}</li>
+     *     <li>{@link SketchBag#distinctEstimate()}</li>
+     *     <li>{@link SketchBag#merge(SketchBag)}</li>
+     * </ol>
+     */
+    public void testSketchBag() {
+        MyBag<Integer> exact = new MyBag<Integer>();
+        SketchBag<Integer> plain = new SketchBag<Integer>(0.001, 0.01, false);
+        SketchBag<Integer> conservative = new SketchBag<Integer>(0.001, 0.01, true);
+        SketchBag<Integer> half1 = new SketchBag<Integer>(0.001, 0.01, false);
+        SketchBag<Integer> half2 = new SketchBag<Integer>(0.001, 0.01, false);
+        long memory = plain.getMemoryBytes();
+        Random r = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            int val = (r.nextInt(4) == 0) ? r.nextInt(50) : r.nextInt(20000);
+            exact.add(val);
+            plain.add(val);
+            conservative.add(val);
+            (i % 2 == 0 ? half1 : half2).add(val);
+        }
+        assertEquals(memory, plain.getMemoryBytes());
+        assertEquals(exact.size(), plain.size());
+        half1.merge(half2);
+        int misses = 0;
+        for (Object val : exact.uniqueSet()) {
+            int count = exact.getCount(val);
+            assertTrue(plain.getCount(val) >= count);
+            assertTrue(conservative.getCount(val) >= count);
+            assertTrue(conservative.getCount(val) <= plain.getCount(val));
+            assertEquals(plain.getCount(val), half1.getCount(val));
+            if (plain.getCount(val) > count + plain.errorBound())
+                misses++;
+        }
+        assertTrue(misses <= exact.uniqueSet().size() * plain.getDelta());
+        assertTrue(plain.containsAll(Arrays.asList(1, 1, 2, 3)));
+        assertFalse(plain.containsAll(Collections.nCopies(exact.size() + 1, 7)));
+        int distinct = exact.uniqueSet().size();
+        assertTrue(Math.abs(plain.distinctEstimate() - distinct) < distinct * 0.05);
+        assertEquals(plain.distinctEstimate(), half1.distinctEstimate());
+        try {
+            plain.merge(new SketchBag<Integer>(0.01, 0.01, false));
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+            //параметры не совпадают
+        }
+        try {
+            plain.remove(1);
+            fail();
+        }
+        catch (UnsupportedOperationException e) {
+            //удаление не поддерживается
+        }
+        plain.clear();
+        assertEquals(0, plain.getCount(1));
+        assertEquals(0, plain.distinctEstimate());
+        //у всех ключей (i << 32) | i хэш-код 0: различить их может только 64-битный хэш
+        SketchBag<Long> byHashCode = new SketchBag<Long>(0.001, 0.01, false);
+        SketchBag<Long> byBytes = new SketchBag<Long>(0.001, 0.01, false, SketchBag.DEFAULT_PRECISION,
+                SketchBag.hasherOf(SpillingBag.LONGS));
+        for (long i = 0; i < 20000; i++) {
+            byHashCode.add((i << 32) | i);
+            byBytes.add((i << 32) | i, 2);
+        }
+        assertEquals(1, byHashCode.distinctEstimate());
+        assertTrue(Math.abs(byBytes.distinctEstimate() - 20000) < 20000 * 0.05);
+        assertTrue(byBytes.getCount(7L << 32 | 7) >= 2);
+        assertTrue(byBytes.getCount(7L << 32 | 7) <= 2 + byBytes.errorBound());
+    }
+
+    /**
+     * Тесты для сумки самых частых элементов: границы ошибок счетчиков и
+     * наличие всех элементов с кратностью больше <code>size() / capacity</code>.
+     * Проверяет методы:
+     * <ol>
+     *     <li>{@link HeavyHittersBag#add(Object, int)}</li>
+     *     <li>{@link HeavyHittersBag#getCount(Object)}</li>
+     *     <li>{@link HeavyHittersBag#getError(Object)}</li>
+     *     <li>{@link HeavyHittersBag#minCount()}</li>
+     *     <li>{@link HeavyHittersBag#heavyHitters(double)}</li>
+     * </ol>
+     */
+    public void testHeavyHittersBag() {
+        MyBag<Integer> exact = new MyBag<Integer>();
+        HeavyHittersBag<Integer> hitters = new HeavyHittersBag<Integer>(50);
+        Random r = new Random(43);
+        for (int i = 0; i < 50000; i++) {
+            //примерно закон Ципфа: малые значения встречаются чаще
+            int val = (int) Math.floor(Math.pow(10000, r.nextDouble()));
+            int n = (i % 10 == 0) ? r.nextInt(3) + 1 : 1;
+            exact.add(val, n);
+            hitters.add(val, n);
+        }
+        assertEquals(exact.size(), hitters.size());
+        assertEquals(50, hitters.uniqueSet().size());
+        int min = hitters.minCount();
+        for (Object val : exact.uniqueSet()) {
+            int count = exact.getCount(val);
+            if (hitters.contains(val)) {
+                assertTrue(hitters.getCount(val) >= count);
+                assertTrue(hitters.getGuaranteedCount(val) <= count);
+            }
+            else
+                assertTrue(count <= min);
+            if (count > exact.size() / 50)
+                assertTrue(hitters.contains(val));
+        }
+        List<HeavyHittersBag.Estimate<Integer>> top = hitters.topK(5);
+        assertEquals(5, top.size());
+        assertEquals(Integer.valueOf(1), top.get(0).getElement());
+        for (int i = 1; i < top.size(); i++)
+            assertTrue(top.get(i - 1).getCount() >= top.get(i).getCount());
+        for (HeavyHittersBag.Estimate<Integer> e : hitters.heavyHitters(0.05)) {
+            assertTrue(e.getCount() > exact.size() * 0.05);
+            assertEquals(hitters.getError(e.getElement()), e.getError());
+        }
+        for (Object val : exact.uniqueSet())
+            if (exact.getCount(val) > exact.size() * 0.05)
+                assertTrue(hitters.getCount(val) > 0);
+        try {
+            hitters.remove(1);
+            fail();
+        }
+        catch (UnsupportedOperationException e) {
+            //удаление не поддерживается
+        }
+        hitters.clear();
+        assertEquals(0, hitters.size());
+        assertEquals(0, hitters.minCount());
+    }
+
+    /**
+     * Тесты для упорядоченной сумки: совпадение с обычной сумкой при
+     * случайных изменениях, порядок перечисления, ранги и диапазоны.
+     * Проверяет методы:
+     * <ol>
+     *     <li>{@link SortedMyBag#add(Object, int)}</li>
+     *     <li>{@link SortedMyBag#remove(Object, int)}</li>
+     *     <li>{@link SortedMyBag#rank(Object)}</li>
+     *     <li>{@link SortedMyBag#select(int)}</li>
+     *     <li>{@link SortedMyBag#countInRange(Object, Object)}</li>
+     *     <li>{@link SortedMyBag#entryIterator()}</li>
+     * </ol>
+     */
+    public void testSortedBag() {
+        MyBag<Integer> plain = new MyBag<Integer>();
+        SortedMyBag<Integer> sorted = new SortedMyBag<Integer>();
+        Random r = new Random(44);
+        for (int i = 0; i < 20000; i++) {
+            int val = r.nextInt(500);
+            int n = r.nextInt(4);
+            if (r.nextInt(3) == 0) {
+                assertEquals(plain.remove(val, n), sorted.remove(val, n));
+            }
+            else {
+                plain.add(val, n);
+                sorted.add(val, n);
+            }
+        }
+        assertTrue(bagsAreEqual(plain, sorted));
+        assertEquals(plain.size(), sorted.size());
+        assertEquals(plain.uniqueSet().size(), sorted.uniqueSet().size());
+        assertTrue(sorted.equals(plain));
+        assertEquals(plain.hashCode(), sorted.hashCode());
+        //копии в порядке возрастания, ранг копии совпадает с ее номером
+        int index = 0;
+        Integer prev = null;
+        for (Integer val : sorted) {
+            if (prev == null || !prev.equals(val))
+                assertEquals(index, sorted.rank(val));
+            assertEquals(val, sorted.select(index));
+            assertTrue(prev == null || prev <= val);
+            prev = val;
+            index++;
+        }
+        assertEquals(sorted.size(), index);
+        for (int i = 0; i < 100; i++) {
+            int lo = r.nextInt(520) - 10;
+            int hi = lo + r.nextInt(100);
+            int expected = 0;
+            for (Object val : plain.uniqueSet())
+                if ((Integer) val >= lo && (Integer) val < hi)
+                    expected += plain.getCount(val);
+            assertEquals(expected, sorted.countInRange(lo, hi));
+            assertEquals(0, sorted.countInRange(hi, lo));
+            assertEquals(expected + plain.getCount(hi) - plain.getCount(lo),
+                    sorted.countInRange(lo, false, hi, true));
+        }
+        Iterator<MyBag.Entry<Integer>> it = sorted.entryIterator();
+        while (it.hasNext()) {
+            MyBag.Entry<Integer> e = it.next();
+            assertEquals(plain.getCount(e.getElement()), e.getCount());
+            if (e.getElement() % 3 == 0) {
+                it.remove();
+                plain.remove(e.getElement());
+            }
+        }
+        Iterator<Integer> copies = sorted.iterator();
+        while (copies.hasNext()) {
+            Integer val = copies.next();
+            if (val % 2 == 0) {
+                copies.remove();
+                plain.remove(val, 1);
+            }
+        }
+        assertTrue(bagsAreEqual(plain, sorted));
+        Integer first = sorted.first();
+        assertTrue(sorted.uniqueSet().remove(first));
+        plain.remove(first);
+        assertFalse(sorted.uniqueSet().contains(first));
+        assertTrue(plain.retainAll(Arrays.asList(1, 1, 5, 7, 7, 7, 499)));
+        assertTrue(sorted.retainAll(Arrays.asList(1, 1, 5, 7, 7, 7, 499)));
+        assertTrue(bagsAreEqual(plain, sorted));
+        SortedMyBag<String> reversed = new SortedMyBag<String>(Collections.<String>reverseOrder());
+        reversed.add("a", 2);
+        reversed.add("c");
+        reversed.add("b", 3);
+        assertEquals("[1:c,3:b,2:a]", reversed.toString());
+        assertEquals("b", reversed.select(2));
+        assertEquals(4, reversed.rank("a"));
+        assertEquals("a", reversed.last());
+        try {
+            sorted.add(null);
+            fail();
+        }
+        catch (NullPointerException e) {
+            //естественный порядок не допускает null
+        }
+    }
+
+    /**
+     * Тесты для неизменяемой сумки: совпадение с обычной сумкой, неизменность
+     * старых версий, построитель и элементы с одинаковым хэш-кодом.
+     * Проверяет методы:
+     * <ol>
+     *     <li>{@link PersistentBag#plus(Object, int)}</li>
+     *     <li>{@link PersistentBag#minus(Object, int)}</li>
+     *     <li>{@link PersistentBag#toBuilder()}</li>
+     *     <li>{@link PersistentBag.Builder#build()}</li>
+     * </ol>
+     */
+    public void testPersistentBag() {
+        MyBag<Integer> plain = new MyBag<Integer>();
+        PersistentBag<Integer> bag = PersistentBag.empty();
+        List<PersistentBag<Integer>> versions = new ArrayList<PersistentBag<Integer>>();
+        List<Integer> sizes = new ArrayList<Integer>();
+        Random r = new Random(45);
+        for (int i = 0; i < 20000; i++) {
+            Integer val = (i % 101 == 0) ? null : r.nextInt(3000);
+            int n = r.nextInt(4);
+            if (r.nextInt(3) == 0) {
+                plain.remove(val, n);
+                bag = bag.minus(val, n);
+            }
+            else {
+                plain.add(val, n);
+                bag = bag.plus(val, n);
+            }
+            if (i % 1000 == 0) {
+                versions.add(bag);
+                sizes.add(bag.size());
+            }
+        }
+        assertTrue(bagsAreEqual(plain, bag));
+        assertEquals(plain.size(), bag.size());
+        assertEquals(plain.uniqueSet().size(), bag.uniqueSet().size());
+        assertEquals(plain.hashCode(), bag.hashCode());
+        assertTrue(bag.equals(plain));
+        assertTrue(plain.equals(bag));
+        //старые версии не изменились
+        for (int i = 0; i < versions.size(); i++) {
+            int total = 0;
+            for (Integer val : versions.get(i))
+                total++;
+            assertEquals((int) sizes.get(i), total);
+        }
+        assertSame(bag, bag.minus(-1));
+        assertSame(bag, bag.plus(5, 0));
+        PersistentBag<Integer> removed = bag.without(null);
+        assertEquals(0, removed.getCount(null));
+        assertEquals(plain.getCount(null), bag.getCount(null));
+        //построитель не меняет исходную версию
+        PersistentBag.Builder<Integer> builder = bag.toBuilder();
+        for (Object val : plain.uniqueSet())
+            builder.remove(val, plain.getCount(val) - 1);
+        PersistentBag<Integer> ones = builder.build();
+        builder.add(7, 10);
+        assertEquals(plain.uniqueSet().size(), ones.size());
+        assertEquals(plain.size(), bag.size());
+        assertEquals(plain.getCount(7) == 0 ? 0 : 1, ones.getCount(7));
+        assertEquals(ones.getCount(7) + 10, builder.getCount(7));
+        PersistentBag<Integer> built = PersistentBag.of(plain);
+        assertEquals(bag, built);
+        assertEquals(bag.hashCode(), built.hashCode());
+        //элементы с одинаковым хэш-кодом попадают в узел коллизий
+        PersistentBag<String> collisions = PersistentBag.<String>empty()
+                .plus("Aa", 2).plus("BB", 3).plus("AaAa").plus("BBBB").plus("AaBB");
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertEquals(2, collisions.getCount("Aa"));
+        assertEquals(3, collisions.getCount("BB"));
+        assertEquals(8, collisions.size());
+        collisions = collisions.minus("BB", 3).minus("AaAa");
+        assertEquals(0, collisions.getCount("BB"));
+        assertEquals(2, collisions.getCount("Aa"));
+        assertEquals(4, collisions.size());
+        assertEquals(3, collisions.uniqueSet().size());
+        try {
+            bag.add(1);
+            fail();
+        }
+        catch (UnsupportedOperationException e) {
+            //сумка неизменяемая
+        }
+    }
+
+    /**
+     * Тесты для поэлементных операций над сумками: последовательный
+     * вариант для сумок разного вида и параллельный для сумок с таблицами
+     * одного размера. Проверяет методы:
+     * <ol>
+     *     <li>{@link MyBag#sum(Bag, Bag)}</li>
+     *     <li>{@link MyBag#sumAll(Collection)}</li>
+     *     <li>{@link MyBag#union(Bag, Bag)}</li>
+     *     <li>{@link MyBag#intersection(Bag, Bag)}</li>
+     *     <li>{@link MyBag#difference(Bag, Bag)}</li>
+     *     <li>{@link MyBag#addAll(Collection)}</li>
+     * </ol>
+     */
+    public void testSetOperations() {
+        Random r = new Random(46);
+        for (int size : new int[] {300, 30000}) {
+            MyBag<Integer> a = MyBag.withExpectedSize(size);
+            MyBag<Integer> b = MyBag.withExpectedSize(size);
+            HashBag<Integer> hashBag = new HashBag<Integer>();
+            for (int i = 0; i < size; i++) {
+                int val = r.nextInt(size);
+                int n = r.nextInt(3) + 1;
+                a.add(val, n);
+                hashBag.add(val, n);
+                b.add(r.nextInt(size), r.nextInt(3) + 1);
+            }
+            a.add(null, 2);
+            hashBag.add(null, 2);
+            b.add(null, 5);
+            //MyBag с MyBag и MyBag с другой сумкой должны давать одно и то же
+            for (Bag<Integer> left : Arrays.<Bag<Integer>>asList(a, hashBag)) {
+                MyBag<Integer> sum = MyBag.sum(left, b);
+                MyBag<Integer> union = MyBag.union(left, b);
+                MyBag<Integer> intersection = MyBag.intersection(left, b);
+                MyBag<Integer> difference = MyBag.difference(left, b);
+                for (int val = -1; val <= size; val++) {
+                    Integer key = (val < 0) ? null : val;
+                    int ca = left.getCount(key);
+                    int cb = b.getCount(key);
+                    assertEquals(ca + cb, sum.getCount(key));
+                    assertEquals(Math.max(ca, cb), union.getCount(key));
+                    assertEquals(Math.min(ca, cb), intersection.getCount(key));
+                    assertEquals(Math.max(ca - cb, 0), difference.getCount(key));
+                }
+                assertEquals(left.size() + b.size(), sum.size());
+                assertTrue(bagsAreEqual(sum, MyBag.sumAll(Arrays.<Bag<Integer>>asList(left, b))));
+                MyBag<Integer> copy = new MyBag<Integer>();
+                copy.addAll(left);
+                copy.addAll(b);
+                assertTrue(bagsAreEqual(sum, copy));
+            }
+        }
+        MyBag<Integer> doubled = new MyBag<Integer>(Arrays.asList(1, 1, 2, null));
+        doubled.addAll(doubled);
+        assertEquals(4, doubled.getCount(1));
+        assertEquals(2, doubled.getCount(null));
+        assertEquals(8, doubled.size());
+        assertTrue(MyBag.intersection(doubled, new MyBag<Integer>()).isEmpty());
+    }
+
+    /**
+     * Тесты для представления различных элементов: отражение изменений
+     * сумки и удаление через представление. Проверяет методы:
+     * <ol>
+     *     <li>{@link MyBag#uniqueSet()}</li>
+     *     <li>{@link MyBag#equals(Object)}</li>
+     * </ol>
+     */
+    public void testUniqueSetView() {
+        MyBag<Integer> bag = new MyBag<Integer>(Arrays.asList(1, 1, 2, 3, 3, 3, null));
+        Set<Integer> unique = bag.uniqueSet();
+        assertSame(unique, bag.uniqueSet());
+        assertEquals(4, unique.size());
+        assertTrue(unique.contains(null));
+        assertFalse(unique.contains(4));
+        bag.add(4, 2);
+        assertTrue(unique.contains(4));
+        assertEquals(5, unique.size());
+        assertTrue(unique.remove(3));
+        assertFalse(unique.remove(3));
+        assertEquals(0, bag.getCount(3));
+        assertEquals(6, bag.size());
+        Iterator<Integer> it = unique.iterator();
+        while (it.hasNext()) {
+            Integer val = it.next();
+            if (val == null)
+                it.remove();
+        }
+        assertFalse(bag.contains(null));
+        assertEquals(5, bag.size());
+        assertTrue(unique.equals(new HashSet<Integer>(Arrays.asList(1, 2, 4))));
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 2, 4)).hashCode(), unique.hashCode());
+        //представление проверяет изменение сумки во время обхода
+        it = unique.iterator();
+        it.next();
+        bag.add(5);
+        try {
+            it.next();
+            fail();
+        }
+        catch (ConcurrentModificationException e) {
+            //сумка изменилась во время обхода
+        }
+        try {
+            unique.add(6);
+            fail();
+        }
+        catch (UnsupportedOperationException e) {
+            //добавление через представление не поддерживается
+        }
+        assertTrue(unique.retainAll(Arrays.asList(1, 5)));
+        assertEquals(new MyBag<Integer>(Arrays.asList(1, 1, 5)), bag);
+        assertFalse(bag.equals(new MyBag<Integer>(Arrays.asList(1, 5, 5))));
+        assertFalse(bag.equals(new MyBag<Integer>(Arrays.asList(1, 1, 5, 6))));
+        unique.clear();
+        assertTrue(bag.isEmpty());
+        assertTrue(unique.isEmpty());
+    }
+
+    /**
+     * Тесты для элементов с одинаковыми хэш-кодами: строки из блоков "Aa"
+     * и "BB" имеют один хэш-код, поэтому длинная цепочка пробирования
+     * переходит в дерево переполнения. Проверяет методы:
+     * <ol>
+     *     <li>{@link MyBag#add(Object, int)}</li>
+     *     <li>{@link MyBag#remove(Object, int)}</li>
+     *     <li>{@link MyBag#getCount(Object)}</li>
+     *     <li>{@link MyBag#iterator()}</li>
+     * </ol>
+     */
+    public void testCollisions() {
+        List<String> colliding = new ArrayList<String>();
+        for (int mask = 0; mask < 1 << 12; mask++) {
+            StringBuilder sb = new StringBuilder();
+            for (int bit = 0; bit < 12; bit++)
+                sb.append(((mask >> bit) & 1) == 0 ? "Aa" : "BB");
+            colliding.add(sb.toString());
+        }
+        assertEquals(colliding.get(0).hashCode(), colliding.get(colliding.size() - 1).hashCode());
+        MyBag<String> bag = new MyBag<String>();
+        HashBag<String> expected = new HashBag<String>();
+        Random r = new Random(48);
+        for (String str : colliding) {
+            int n = r.nextInt(3) + 1;
+            bag.add(str, n);
+            expected.add(str, n);
+            bag.add("key" + n);
+            expected.add("key" + n);
+        }
+        assertNotNull(bag.tree);
+        assertTrue(bagsAreEqual(bag, expected));
+        assertEquals(expected.size(), bag.size());
+        assertEquals(colliding.size() + 3, bag.uniqueSet().size());
+        for (int i = 0; i < colliding.size(); i += 2) {
+            bag.remove(colliding.get(i), 1);
+            expected.remove(colliding.get(i), 1);
+        }
+        Iterator<String> it = bag.iterator();
+        while (it.hasNext()) {
+            String str = it.next();
+            if (str.startsWith("BB")) {
+                it.remove();
+                expected.remove(str, 1);
+            }
+        }
+        assertTrue(bagsAreEqual(bag, expected));
+        int total = 0;
+        for (String str : bag)
+            total++;
+        assertEquals(expected.size(), total);
+        //после перестройки таблицы элементы дерева остаются доступными
+        bag.completeRehash();
+        MyBag<String> copy = new MyBag<String>(bag);
+        assertTrue(bagsAreEqual(copy, expected));
+        assertEquals(bag, copy);
+        assertEquals(bag.hashCode(), copy.hashCode());
+        for (String str : colliding)
+            bag.remove(str);
+        assertNull(bag.tree);
+        assertEquals(3, bag.uniqueSet().size());
+    }
+
+    /**
+     * Хэш-код сумки по определению {@link org.apache.commons.collections4.bag.AbstractMapBag}.
+     * @param bag сумка.
+     * @return сумма <code>hashCode() ^ кратность</code> по элементам.
+     */
+    private static int expectedHashCode(MyBag<?> bag) {
+        final int[] res = new int[1];
+        bag.forEachEntry(new ObjIntConsumer<Object>() {
+            public void accept(Object o, int n) {
+                res[0] += ((o == null) ? 0 : o.hashCode()) ^ n;
+            }
+        });
+        return res[0];
+    }
+
+    /**
+     * Тесты для хэш-кода, который поддерживается при изменениях, и для
+     * сравнения сумок. Проверяет методы:
+     * <ol>
+     *     <li>{@link MyBag#hashCode()}</li>
+     *     <li>{@link MyBag#equals(Object)}</li>
+     * </ol>
+     */
+    public void testHashCode() {
+        MyBag<Integer> bag = new MyBag<Integer>();
+        bag.enableFrequencyIndex();
+        Random r = new Random(49);
+        for (int i = 0; i < 20000; i++) {
+            Integer val = (i % 89 == 0) ? null : r.nextInt(1000);
+            int n = r.nextInt(4);
+            switch (r.nextInt(5)) {
+                case 0:
+                    bag.remove(val, n);
+                    break;
+                case 1:
+                    bag.remove(val);
+                    break;
+                default:
+                    bag.add(val, n);
+            }
+            if (i % 500 == 0)
+                assertEquals(expectedHashCode(bag), bag.hashCode());
+        }
+        assertEquals(expectedHashCode(bag), bag.hashCode());
+        Iterator<Integer> it = bag.iterator();
+        while (it.hasNext()) {
+            Integer val = it.next();
+            if (val == null || val % 3 == 0)
+                it.remove();
+        }
+        bag.retainAll(new MyBag<Integer>(bag.uniqueSet()));
+        assertEquals(expectedHashCode(bag), bag.hashCode());
+        MyBag<Integer> sum = MyBag.sum(bag, bag);
+        assertEquals(expectedHashCode(sum), sum.hashCode());
+        bag.addAll(bag);
+        assertEquals(expectedHashCode(bag), bag.hashCode());
+        //сумки, построенные в разном порядке, равны и имеют один хэш-код
+        List<Integer> values = new ArrayList<Integer>(sum);
+        Collections.shuffle(values, r);
+        MyBag<Integer> shuffled = new MyBag<Integer>(values);
+        assertEquals(sum, shuffled);
+        assertEquals(sum.hashCode(), shuffled.hashCode());
+        assertEquals(bag, shuffled);
+        //одинаковые размеры, но разные кратности
+        MyBag<Integer> a = new MyBag<Integer>(Arrays.asList(1, 1, 2, 3));
+        MyBag<Integer> b = new MyBag<Integer>(Arrays.asList(1, 2, 2, 3));
+        assertFalse(a.equals(b));
+        b.remove(2, 1);
+        b.add(1);
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        bag.clear();
+        assertEquals(0, bag.hashCode());
+        assertEquals(new MyBag<Integer>(), bag);
+    }
+
+    /**
+     * Тесты для сумки, сбрасывающей элементы на диск. Сравнивает
+     * {@link SpillingBag} с {@link MyBag} при бюджете памяти много меньше
+     * количества различных элементов. Проверяет методы:
+     * <ol>
+     *     <li>{@link SpillingBag#add(Object, int)}</li>
+     *     <li>{@link SpillingBag#getCount(Object)}</li>
+     *     <li>{@link SpillingBag#entryIterator()}</li>
+     *     <li>{@link SpillingBag#flush()}</li>
+     *     <li>{@link SpillingBag#close()}</li>
+     * </ol>
+     */
+    public void testSpillingBag() throws IOException {
+        File parent = Files.createTempDirectory("bagtest").toFile();
+        SpillingBag<String> bag = new SpillingBag<String>(SpillingBag.STRINGS, 100, parent);
+        MyBag<String> exact = new MyBag<String>();
+        Random r = new Random(50);
+        try {
+            for (int i = 0; i < 30000; i++) {
+                String val = (i % 997 == 0) ? null : "s" + r.nextInt(5000);
+                int n = 1 + r.nextInt(3);
+                bag.add(val, n);
+                exact.add(val, n);
+                if (i % 3000 == 0)
+                    assertEquals(exact.getCount(val), bag.getCount(val));
+            }
+            assertEquals(exact.size(), bag.size());
+            assertTrue(bag.getRunCount() > 0);
+            for (int i = 0; i < 5100; i += 7)
+                assertEquals(exact.getCount("s" + i), bag.getCount("s" + i));
+            assertEquals(exact.getCount(null), bag.getCount(null));
+            assertEquals(0, bag.getCount("absent"));
+            //обход дает каждый элемент один раз с полной кратностью
+            MyBag<String> seen = new MyBag<String>();
+            Iterator<MyBag.Entry<String>> entries = bag.entryIterator();
+            while (entries.hasNext()) {
+                MyBag.Entry<String> e = entries.next();
+                assertEquals(0, seen.getCount(e.getElement()));
+                seen.add(e.getElement(), e.getCount());
+            }
+            assertEquals(exact, seen);
+            assertEquals(exact.uniqueSet().size(), bag.uniqueSet().size());
+            assertEquals(exact, new MyBag<String>(bag));
+            assertTrue(bag.containsAll(exact));
+            //после сброса и слияния все лежит на диске
+            bag.flush();
+            assertTrue(bag.getRunCount() < SpillingBag.PARTITIONS * SpillingBag.MERGE_FAN_IN);
+            assertEquals(exact, new MyBag<String>(bag));
+            for (int i = 0; i < 5000; i += 11)
+                assertEquals(exact.getCount("s" + i), bag.getCount("s" + i));
+            Iterator<String> it = bag.iterator();
+            it.next();
+            bag.add("s1");
+            try {
+                it.next();
+                fail("Expected ConcurrentModificationException");
+            }
+            catch (ConcurrentModificationException ignored) {
+            }
+            try {
+                bag.remove("s1");
+                fail("Expected UnsupportedOperationException");
+            }
+            catch (UnsupportedOperationException ignored) {
+            }
+            //итератор, поток которого отменен очисткой, не ждет вечно
+            Iterator<MyBag.Entry<String>> partial = bag.entryIterator();
+            for (int i = 0; i <= SpillingBag.BATCH_SIZE; i++)
+                partial.next();
+            bag.clear();
+            try {
+                partial.hasNext();
+                fail("Expected ConcurrentModificationException");
+            }
+            catch (ConcurrentModificationException ignored) {
+            }
+            //брошенный итератор не держит файлы очищенной сумки
+            assertTrue(awaitFiles(parent, 0));
+            assertEquals(0, bag.size());
+            assertEquals(0, bag.getRunCount());
+            assertEquals(0, bag.getCount("s1"));
+            assertFalse(bag.iterator().hasNext());
+            bag.add("s1", 5);
+            assertEquals(5, bag.getCount("s1"));
+            //недочитанные итераторы не мешают удалять слитые прогоны
+            for (int i = 0; i < 3000; i++)
+                bag.add("t" + i);
+            bag.flush();
+            for (int k = 0; k < 5; k++) {
+                Iterator<String> dropped = bag.iterator();
+                assertTrue(dropped.hasNext());
+                dropped.next();
+            }
+            for (int i = 0; i < 20000; i++)
+                bag.add("u" + i);
+            bag.flush();
+            assertTrue(awaitFiles(parent, bag.getRunCount()));
+            assertEquals(1, bag.getCount("t2999"));
+            //элементы с одинаковым хэш-кодом различаются после чтения с диска
+            SpillingBag<Long> longs = new SpillingBag<Long>(SpillingBag.LONGS, 10, parent);
+            try {
+                for (long i = 0; i < 200; i++)
+                    longs.add((i << 32) | i, (int) i + 1);
+                longs.flush();
+                for (long i = 0; i < 200; i++)
+                    assertEquals((int) i + 1, longs.getCount((i << 32) | i));
+                assertEquals(0, longs.getCount(1L));
+            }
+            finally {
+                longs.close();
+            }
+        }
+        finally {
+            bag.close();
+        }
+        String[] left = parent.list();
+        assertNotNull(left);
+        assertEquals(0, left.length);
+        parent.delete();
+    }
+
+    /**
+     * Ждет, пока в каталогах сумок не останется заданное количество
+     * файлов: файлы, которые держали брошенные итераторы, удаляются
+     * фоновыми потоками после сборки мусора.
+     * @param parent каталог, в котором сумки создают свои каталоги.
+     * @param expected ожидаемое количество файлов.
+     * @return <code>true</code>, если дождались.
+     */
+    private static boolean awaitFiles(File parent, int expected) {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            int files = 0;
+            File[] dirs = parent.listFiles();
+            if (dirs != null)
+                for (File dir : dirs) {
+                    String[] names = dir.list();
+                    if (names != null)
+                        files += names.length;
+                }
+            if (files == expected)
+                return true;
+            System.gc();
+            try {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
 }